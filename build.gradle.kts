@@ -4,6 +4,7 @@ plugins {
     `java-library`
     `maven-publish`
     jacoco
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -21,13 +22,24 @@ val seleniumVersion: String by project
 val jacocoVersion: String by project
 val wiremockTestContainerVersion: String by project
 val wiremockVersion: String by project
+val micrometerVersion: String by project
+val openTelemetryVersion: String by project
+val jakartaCdiVersion: String by project
 
 val jacocoRuntime: Configuration by configurations.creating
 
 dependencies {
     implementation(enforcedPlatform("org.keycloak.bom:keycloak-bom-parent:$keycloakVersion"))
     compileOnly("org.keycloak:keycloak-services:$keycloakVersion")
-
+    compileOnly("org.keycloak:keycloak-model-infinispan:$keycloakVersion")
+    compileOnly("io.micrometer:micrometer-core:$micrometerVersion")
+    compileOnly("io.opentelemetry:opentelemetry-api:$openTelemetryVersion")
+    compileOnly("jakarta.enterprise:jakarta.enterprise.cdi-api:$jakartaCdiVersion")
+
+    testImplementation("org.keycloak:keycloak-services:$keycloakVersion")
+    testImplementation("io.micrometer:micrometer-core:$micrometerVersion")
+    testImplementation("io.opentelemetry:opentelemetry-api:$openTelemetryVersion")
+    testImplementation("jakarta.enterprise:jakarta.enterprise.cdi-api:$jakartaCdiVersion")
     testImplementation("org.seleniumhq.selenium:selenium-remote-driver:$seleniumRemoteDriverVersion")
     testImplementation("org.seleniumhq.selenium:selenium-java:$seleniumVersion")
     testImplementation("org.junit.jupiter:junit-jupiter:$junitVersion")
@@ -39,9 +51,25 @@ dependencies {
     testImplementation("org.wiremock.integrations.testcontainers:wiremock-testcontainers-module:$wiremockTestContainerVersion")
     testImplementation("org.wiremock:wiremock:$wiremockVersion")
 
+    jmhImplementation("org.keycloak:keycloak-services:$keycloakVersion")
+    jmhImplementation("io.micrometer:micrometer-core:$micrometerVersion")
+    jmhImplementation("io.opentelemetry:opentelemetry-api:$openTelemetryVersion")
+    jmhImplementation("jakarta.enterprise:jakarta.enterprise.cdi-api:$jakartaCdiVersion")
+
     jacocoRuntime("org.jacoco:org.jacoco.agent:$jacocoVersion:runtime")
 }
 
+jmh {
+    jmhVersion.set(project.property("jmhVersion") as String)
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+    jvmArgsAppend.set(listOf("-Dorg.jboss.logging.provider=jdk"))
+
+    project.findProperty("jmhIncludes")?.let {
+        includes.set(listOf(it.toString()))
+    }
+}
+
 jacoco {
     toolVersion = jacocoVersion
 }
@@ -53,7 +81,31 @@ tasks.named<Test>("test") {
     environment("KEYCLOAK_VERSION", keycloakVersion)
     environment("JACOCO_AGENT", jacocoAgent)
 
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("load")
+    }
+}
+
+tasks.register<Test>("loadTest") {
+    description = "Runs concurrent brokered login load tests against a latency-injected Graph API stand-in"
+    group = "verification"
+    dependsOn("jar")
+
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+
+    environment("BUILD_DIR", getLayout().buildDirectory.asFile.get().absolutePath)
+    environment("KEYCLOAK_VERSION", keycloakVersion)
+
+    listOf("loadTest.users", "loadTest.concurrency", "loadTest.scenarios").forEach { name ->
+        project.findProperty(name)?.let { systemProperty(name, it) }
+    }
+
+    outputs.upToDateWhen { false }
+
+    useJUnitPlatform {
+        includeTags("load")
+    }
 }
 
 group = "fi.metatavu.keycloak.graphapi"
@@ -0,0 +1,40 @@
+package fi.metatavu.keycloak.graphapi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding Graph API values for storage in user attributes and group names
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeForStorageBenchmark {
+
+    @Param({ "Sales", "Myynti ja markkinointi \u2013 Pohjoismaat", "\u00c4\u00e4kk\u00f6set \ud83d\ude80 Team (Helsinki)" })
+    private String value;
+
+    @Benchmark
+    public String encodeForStorage() {
+        return GraphApiMapperUtils.encodeForStorage(value);
+    }
+
+    @Benchmark
+    public String normalizeGroupName() {
+        return GraphApiMapperUtils.normalizeGroupName(value);
+    }
+
+}
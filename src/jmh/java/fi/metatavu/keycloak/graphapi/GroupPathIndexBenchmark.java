@@ -0,0 +1,88 @@
+package fi.metatavu.keycloak.graphapi;
+
+import org.keycloak.models.GroupModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks resolving mapped Keycloak group paths through the group path index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupPathIndexBenchmark {
+
+    private static final int MAPPED_GROUPS = 200;
+
+    @Param({ "1000", "10000", "50000" })
+    private int groupCount;
+
+    @Param({ "1", "10" })
+    private int depth;
+
+    private SyntheticRealm realm;
+    private GroupPathIndex index;
+    private List<GroupModel> mappedGroups;
+    private List<String> mappedPaths;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        realm = new SyntheticRealm(groupCount, depth);
+        mappedGroups = realm.sampleGroups(MAPPED_GROUPS);
+        mappedPaths = mappedGroups.stream().map(GroupPathIndex::getGroupPath).toList();
+        index = new GroupPathIndex();
+        index.getGroup(realm.getSession(), realm.getRealm(), mappedPaths.getFirst());
+    }
+
+    /**
+     * Builds the index of the realm, as done on the first login after a restart
+     *
+     * @return resolved group
+     */
+    @Benchmark
+    public GroupModel buildIndex() {
+        return new GroupPathIndex().getGroup(realm.getSession(), realm.getRealm(), mappedPaths.getFirst());
+    }
+
+    /**
+     * Resolves all mapped paths from a built index, as done on every login
+     *
+     * @param blackhole blackhole
+     */
+    @Benchmark
+    public void resolveMappedPaths(Blackhole blackhole) {
+        for (String path : mappedPaths) {
+            blackhole.consume(index.getGroup(realm.getSession(), realm.getRealm(), path));
+        }
+    }
+
+    /**
+     * Computes paths of the user's groups, as done when finding managed groups to leave
+     *
+     * @param blackhole blackhole
+     */
+    @Benchmark
+    public void computeGroupPaths(Blackhole blackhole) {
+        for (GroupModel group : mappedGroups) {
+            blackhole.consume(GroupPathIndex.getGroupPath(group));
+        }
+    }
+
+}
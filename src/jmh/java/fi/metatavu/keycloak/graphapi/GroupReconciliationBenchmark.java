@@ -0,0 +1,97 @@
+package fi.metatavu.keycloak.graphapi;
+
+import io.opentelemetry.api.trace.Span;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks reconciling the managed Keycloak groups of a user with the user's Azure groups.
+ *
+ * The user belongs to half of the mapped Azure groups and to half of the mapped Keycloak groups,
+ * so every invocation keeps, joins and leaves a quarter of the mapped groups each. Info logging
+ * of the mapper is disabled so the benchmark measures the mapping, not the log handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupReconciliationBenchmark {
+
+    private static final int MAPPED_GROUPS = 200;
+    private static final Logger MAPPER_LOGGER = Logger.getLogger(GraphApiGroupsIdentityProviderMapper.class.getName());
+
+    @Param({ "1000", "10000", "50000" })
+    private int groupCount;
+
+    @Param({ "1", "10" })
+    private int depth;
+
+    private SyntheticRealm realm;
+    private GraphApiGroupsIdentityProviderMapper mapper;
+    private UserModel user;
+    private Map<String, List<String>> groupMappings;
+    private GraphApiGroupsIdentityProviderMapper.AzureGroupMembership membership;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MAPPER_LOGGER.setLevel(java.util.logging.Level.WARNING);
+
+        realm = new SyntheticRealm(groupCount, depth);
+        mapper = new GraphApiGroupsIdentityProviderMapper();
+
+        List<GroupModel> mappedGroups = realm.sampleGroups(MAPPED_GROUPS);
+        groupMappings = new HashMap<>();
+        Set<String> azureGroupNames = new LinkedHashSet<>();
+        List<GroupModel> userGroups = new ArrayList<>();
+
+        for (int i = 0; i < mappedGroups.size(); i++) {
+            String azureGroupName = "azure-group-" + i;
+            groupMappings.put(azureGroupName, List.of(GroupPathIndex.getGroupPath(mappedGroups.get(i))));
+
+            if (i % 2 == 0) {
+                azureGroupNames.add(azureGroupName);
+            }
+
+            if (i % 4 < 2) {
+                userGroups.add(mappedGroups.get(i));
+            }
+        }
+
+        membership = new GraphApiGroupsIdentityProviderMapper.AzureGroupMembership(azureGroupNames, true);
+        user = realm.createUser(userGroups);
+
+        reconcile();
+    }
+
+    /**
+     * Reconciles the user's groups with a built group path index
+     */
+    @Benchmark
+    public void reconcile() {
+        mapper.reconcileGroups(realm.getSession(), realm.getRealm(), user, groupMappings, membership, Span.getInvalid());
+    }
+
+}
@@ -0,0 +1,124 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.client.GraphSnapshotNoteFormat;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks storing the Graph API snapshot of a login into the authentication session note
+ * and reading it back, as done when mappers of a login run in separate requests, in the compact
+ * and the JSON note format
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotNoteBenchmark {
+
+    @Param({ "0", "100", "1000" })
+    private int groupCount;
+
+    @Param({ "COMPACT", "JSON" })
+    private GraphSnapshotNoteFormat format;
+
+    private GraphUserSnapshot snapshot;
+    private AuthenticationSessionModel writeSession;
+    private AuthenticationSessionModel readSession;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.allOf(GraphResource.class));
+        snapshot.setUser(createUser("user", "Megan Bowen"));
+        snapshot.setManager(createUser("manager", "Diego Siciliani"));
+        snapshot.setUserGroups(createGroups(groupCount));
+        snapshot.setUserGroupsComplete(true);
+        snapshot.setManagerGroups(createGroups(groupCount));
+        snapshot.setManagerGroupsComplete(true);
+
+        writeSession = SyntheticRealm.createAuthenticationSession();
+        readSession = SyntheticRealm.createAuthenticationSession();
+        GraphApiLoginCoordinator.writeSnapshot(readSession, snapshot, format);
+    }
+
+    @Benchmark
+    public void write() {
+        GraphApiLoginCoordinator.writeSnapshot(writeSession, snapshot, format);
+    }
+
+    @Benchmark
+    public GraphUserSnapshot read() {
+        return GraphApiLoginCoordinator.readSnapshot(readSession);
+    }
+
+    @Benchmark
+    public GraphUserSnapshot roundTrip() {
+        GraphApiLoginCoordinator.writeSnapshot(writeSession, snapshot, format);
+        return GraphApiLoginCoordinator.readSnapshot(writeSession);
+    }
+
+    /**
+     * Creates a user with typical profile properties
+     *
+     * @param id user id
+     * @param displayName display name
+     * @return user
+     */
+    private static GraphUser createUser(String id, String displayName) {
+        GraphUser user = new GraphUser();
+        user.setId(UUID.nameUUIDFromBytes(id.getBytes()).toString());
+        user.setDisplayName(displayName);
+        user.setGivenName(displayName.substring(0, displayName.indexOf(' ')));
+        user.setMail(id + "@contoso.example");
+        user.setJobTitle("Product Manager");
+        user.setDepartment("Sales & Marketing");
+        user.setCompanyName("Contoso");
+        user.setOfficeLocation("Helsinki");
+        user.setMobilePhone("+358 40 123 4567");
+        user.setPreferredLanguage("fi-FI");
+        user.setBusinessPhones(List.of("+358 9 123 4567"));
+        return user;
+    }
+
+    /**
+     * Creates groups
+     *
+     * @param count number of groups
+     * @return groups
+     */
+    private static List<TransitiveMemberOfGroup> createGroups(int count) {
+        List<TransitiveMemberOfGroup> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+            group.setId(UUID.nameUUIDFromBytes(("group-" + i).getBytes()));
+            group.setDisplayName("Azure group " + i);
+            result.add(group);
+        }
+
+        return result;
+    }
+
+}
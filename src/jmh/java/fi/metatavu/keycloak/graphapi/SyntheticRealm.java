@@ -0,0 +1,184 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.history.GraphLoginHistoryProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory realm for benchmarks.
+ *
+ * Groups are created in chains of given depth, so with depth 1 all groups are top level groups
+ * and with depth 10 every tenth group starts a new chain of nested groups. Keycloak models are
+ * dynamic proxies implementing only the methods the mappers call.
+ */
+final class SyntheticRealm {
+
+    private final List<GroupModel> groups = new ArrayList<>();
+    private final Map<String, GroupModel> groupsById = new HashMap<>();
+    private final RealmModel realm;
+    private final KeycloakSession session;
+
+    /**
+     * Constructor
+     *
+     * @param groupCount number of groups
+     * @param depth nesting depth of the groups
+     */
+    SyntheticRealm(int groupCount, int depth) {
+        GroupModel parent = null;
+        for (int i = 0; i < groupCount; i++) {
+            GroupModel group = createGroup("group-" + i, i % depth == 0 ? null : parent);
+            groups.add(group);
+            groupsById.put(group.getId(), group);
+            parent = group;
+        }
+
+        realm = proxy(RealmModel.class, (method, args) -> switch (method.getName()) {
+            case "getId", "getName" -> "synthetic";
+            case "getGroupsStream" -> groups.stream();
+            default -> null;
+        });
+
+        GroupProvider groupProvider = proxy(GroupProvider.class, (method, args) -> switch (method.getName()) {
+            case "getGroupById" -> groupsById.get((String) args[1]);
+            default -> null;
+        });
+
+        AuthenticationSessionModel authenticationSession = createAuthenticationSession();
+        KeycloakContext context = proxy(KeycloakContext.class, (method, args) -> switch (method.getName()) {
+            case "getAuthenticationSession" -> authenticationSession;
+            case "getRealm" -> realm;
+            default -> null;
+        });
+
+        GraphLoginHistoryProvider historyProvider = proxy(GraphLoginHistoryProvider.class, (method, args) -> null);
+        session = proxy(KeycloakSession.class, (method, args) -> switch (method.getName()) {
+            case "groups" -> groupProvider;
+            case "getContext" -> context;
+            case "getProvider" -> args[0] == GraphLoginHistoryProvider.class ? historyProvider : null;
+            default -> null;
+        });
+    }
+
+    RealmModel getRealm() {
+        return realm;
+    }
+
+    KeycloakSession getSession() {
+        return session;
+    }
+
+    List<GroupModel> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns groups evenly spread over the realm, deepest groups of the chains first
+     *
+     * @param count number of groups
+     * @return groups
+     */
+    List<GroupModel> sampleGroups(int count) {
+        List<GroupModel> result = new ArrayList<>(count);
+        int step = Math.max(1, groups.size() / count);
+        for (int i = groups.size() - 1; i >= 0 && result.size() < count; i -= step) {
+            result.add(groups.get(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates a user that belongs to given groups. Joining and leaving groups does not change the
+     * memberships, so every invocation of a benchmark sees the same user.
+     *
+     * @param memberOf groups of the user
+     * @return user
+     */
+    UserModel createUser(Collection<GroupModel> memberOf) {
+        List<GroupModel> userGroups = List.copyOf(memberOf);
+        return proxy(UserModel.class, (method, args) -> switch (method.getName()) {
+            case "getId", "getUsername" -> "synthetic-user";
+            case "getGroupsStream" -> userGroups.stream();
+            default -> null;
+        });
+    }
+
+    /**
+     * Creates an authentication session storing auth notes in memory
+     *
+     * @return authentication session
+     */
+    static AuthenticationSessionModel createAuthenticationSession() {
+        Map<String, String> notes = new HashMap<>();
+        return proxy(AuthenticationSessionModel.class, (method, args) -> switch (method.getName()) {
+            case "getAuthNote" -> notes.get((String) args[0]);
+            case "setAuthNote" -> notes.put((String) args[0], (String) args[1]);
+            case "removeAuthNote" -> notes.remove((String) args[0]);
+            default -> null;
+        });
+    }
+
+    /**
+     * Creates a group
+     *
+     * @param name group name
+     * @param parent parent group or null for a top level group
+     * @return group
+     */
+    private static GroupModel createGroup(String name, GroupModel parent) {
+        String id = "id-" + name;
+        String parentId = parent != null ? parent.getId() : null;
+        return proxy(GroupModel.class, (method, args) -> switch (method.getName()) {
+            case "getId" -> id;
+            case "getName" -> name;
+            case "getParent" -> parent;
+            case "getParentId" -> parentId;
+            default -> null;
+        });
+    }
+
+    /**
+     * Creates a proxy of a Keycloak model. Object methods use identity semantics and methods not
+     * handled by the handler return null.
+     *
+     * @param type model interface
+     * @param handler handler of model methods
+     * @return proxy
+     */
+    private static <T> T proxy(Class<T> type, ModelHandler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> type.getSimpleName();
+            default -> handler.invoke(method, args);
+        };
+
+        return type.cast(Proxy.newProxyInstance(SyntheticRealm.class.getClassLoader(), new Class<?>[] { type }, invocationHandler));
+    }
+
+    /**
+     * Handler of model methods
+     */
+    @FunctionalInterface
+    private interface ModelHandler {
+
+        Object invoke(Method method, Object[] args);
+
+    }
+
+}
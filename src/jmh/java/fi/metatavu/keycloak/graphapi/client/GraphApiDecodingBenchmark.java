@@ -0,0 +1,147 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroupsResponse;
+import fi.metatavu.keycloak.graphapi.model.GraphProfilePosition;
+import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding Graph API response bodies
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GraphApiDecodingBenchmark {
+
+    @Param({ "100", "999" })
+    private int pageSize;
+
+    private byte[] groupsPage;
+    private byte[] user;
+    private byte[] profilePositions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ObjectNode page = GraphApiJson.mapper().createObjectNode();
+        page.put("@odata.context", "https://graph.microsoft.com/v1.0/$metadata#directoryObjects");
+        page.put("@odata.nextLink", "https://graph.microsoft.com/v1.0/me/transitiveMemberOf/microsoft.graph.group?$skiptoken=RFNwdAIAAQAAAB8");
+        ArrayNode groups = page.putArray("value");
+        for (int i = 0; i < pageSize; i++) {
+            groups.addObject()
+                .put("@odata.type", "#microsoft.graph.group")
+                .put("id", UUID.nameUUIDFromBytes(("group-" + i).getBytes()).toString())
+                .put("displayName", "Azure group " + i)
+                .put("mail", "group-" + i + "@contoso.example");
+        }
+
+        groupsPage = GraphApiJson.mapper().writeValueAsBytes(page);
+
+        user = GraphApiJson.mapper().writeValueAsBytes(GraphApiJson.mapper().createObjectNode()
+            .put("@odata.context", "https://graph.microsoft.com/v1.0/$metadata#users/$entity")
+            .put("id", UUID.nameUUIDFromBytes("user".getBytes()).toString())
+            .put("displayName", "Megan Bowen")
+            .put("givenName", "Megan")
+            .put("surname", "Bowen")
+            .put("jobTitle", "Marketing Manager")
+            .put("mail", "megan@contoso.example")
+            .put("mobilePhone", "+358 40 123 4567")
+            .put("officeLocation", "Helsinki")
+            .put("preferredLanguage", "fi-FI")
+            .put("userPrincipalName", "megan@contoso.example"));
+
+        ObjectNode positions = GraphApiJson.mapper().createObjectNode();
+        ArrayNode positionValues = positions.putArray("value");
+        for (int i = 0; i < 3; i++) {
+            positionValues.addObject().putObject("detail").putObject("company")
+                .put("displayName", "Contoso " + i)
+                .put("department", "Sales");
+        }
+
+        profilePositions = GraphApiJson.mapper().writeValueAsBytes(positions);
+    }
+
+    /**
+     * Streams groups of a page into a callback, as done for paged group listings
+     *
+     * @param blackhole blackhole
+     * @throws IOException thrown when decoding fails
+     */
+    @Benchmark
+    public void decodeGroupsPageStreaming(Blackhole blackhole) throws IOException {
+        try (JsonParser parser = GraphApiJson.factory().createParser(groupsPage)) {
+            GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(parser, new GraphApiStreamingDecoder.GroupPageCallback() {
+                @Override
+                public void nextLink(String nextLink) {
+                    blackhole.consume(nextLink);
+                }
+
+                @Override
+                public boolean group(TransitiveMemberOfGroup group) {
+                    blackhole.consume(group);
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes a page into a response object
+     *
+     * @return decoded response
+     * @throws IOException thrown when decoding fails
+     */
+    @Benchmark
+    public TransitiveMemberOfGroupsResponse decodeGroupsPage() throws IOException {
+        try (JsonParser parser = GraphApiJson.factory().createParser(groupsPage)) {
+            return GraphApiStreamingDecoder.decodeTransitiveMemberOfGroups(parser);
+        }
+    }
+
+    /**
+     * Decodes a user with the data binding reader of the client
+     *
+     * @return decoded user
+     * @throws IOException thrown when decoding fails
+     */
+    @Benchmark
+    public GraphUser decodeUser() throws IOException {
+        return GraphApiJson.reader(GraphUser.class).readValue(user);
+    }
+
+    /**
+     * Decodes the first profile position
+     *
+     * @return decoded position
+     * @throws IOException thrown when decoding fails
+     */
+    @Benchmark
+    public GraphProfilePosition decodeProfilePosition() throws IOException {
+        try (JsonParser parser = GraphApiJson.factory().createParser(profilePositions)) {
+            return GraphApiStreamingDecoder.decodeFirstProfilePosition(parser);
+        }
+    }
+
+}
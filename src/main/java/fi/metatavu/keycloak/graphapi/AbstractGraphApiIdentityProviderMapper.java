@@ -1,9 +1,28 @@
 package fi.metatavu.keycloak.graphapi;
 
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.history.GraphLoginHistoryProvider;
+import fi.metatavu.keycloak.graphapi.history.GraphMapperExecution;
+import fi.metatavu.keycloak.graphapi.metrics.GraphApiMetrics;
+import fi.metatavu.keycloak.graphapi.tracing.GraphApiTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderFactory;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base mapper class for Graph API identity provider mappers to share boilerplate.
@@ -15,6 +34,7 @@ public abstract class AbstractGraphApiIdentityProviderMapper extends AbstractIde
     private final String helpText;
     private final List<ProviderConfigProperty> configProperties;
     private final String[] compatibleProviders;
+    private final Map<String, ConfiguredFetchPlan> fetchPlans = new ConcurrentHashMap<>();
 
     protected AbstractGraphApiIdentityProviderMapper(String providerId, String displayType, String helpText, List<ProviderConfigProperty> configProperties) {
         this(providerId, displayType, helpText, configProperties, GraphApiMapperUtils.COMPATIBLE_PROVIDERS);
@@ -57,4 +77,141 @@ public abstract class AbstractGraphApiIdentityProviderMapper extends AbstractIde
     public String getId() {
         return providerId;
     }
+
+    /**
+     * Returns Graph API fetch plan of the mapper. Plans are computed once per mapper configuration
+     * and must not be modified by callers.
+     *
+     * @param mapperModel mapper model
+     * @return fetch plan
+     */
+    final GraphFetchPlan getGraphFetchPlan(IdentityProviderMapperModel mapperModel) {
+        String mapperId = mapperModel.getId();
+        Map<String, String> config = mapperModel.getConfig();
+
+        ConfiguredFetchPlan configured = mapperId != null ? fetchPlans.get(mapperId) : null;
+        if (configured != null && configured.config().equals(config)) {
+            return configured.plan();
+        }
+
+        GraphFetchPlan plan = new GraphFetchPlan();
+        collectGraphFetchPlan(mapperModel, plan);
+
+        if (mapperId != null) {
+            fetchPlans.put(mapperId, new ConfiguredFetchPlan(new HashMap<>(config), plan));
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns fetch plan covering all Graph API mappers of an identity provider, as fetched on a
+     * login where no mapper is resolved from ID token claims
+     *
+     * @param session Keycloak session with the realm of the identity provider
+     * @param identityProviderAlias identity provider alias
+     * @return fetch plan
+     */
+    public static GraphFetchPlan getIdentityProviderFetchPlan(KeycloakSession session, String identityProviderAlias) {
+        GraphFetchPlan plan = new GraphFetchPlan();
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        session.identityProviders().getMappersByAliasStream(identityProviderAlias)
+            .forEach(mapperModel -> {
+                ProviderFactory<?> mapperFactory = sessionFactory.getProviderFactory(IdentityProviderMapper.class, mapperModel.getIdentityProviderMapper());
+                if (mapperFactory instanceof AbstractGraphApiIdentityProviderMapper graphApiMapper) {
+                    plan.merge(graphApiMapper.getGraphFetchPlan(mapperModel));
+                }
+            });
+
+        return plan;
+    }
+
+    /**
+     * Adds Graph API resources and user properties the mapper needs with given configuration into
+     * the plan. Plans of all Graph API mappers of an identity provider are fetched together once
+     * per login.
+     *
+     * @param mapperModel mapper model
+     * @param plan plan to add the resources and properties into
+     */
+    protected abstract void collectGraphFetchPlan(IdentityProviderMapperModel mapperModel, GraphFetchPlan plan);
+
+    @Override
+    public final void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        observeMapUser(session, realm, user, mapperModel, context, "importNewUser");
+    }
+
+    @Override
+    public final void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        observeMapUser(session, realm, user, mapperModel, context, "updateBrokeredUser");
+    }
+
+    /**
+     * Maps the user within a mapper span, records the execution time into mapper metrics and the
+     * execution into the login history
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param user Keycloak user
+     * @param mapperModel mapper model
+     * @param context brokered identity context
+     * @param operation mapper operation
+     */
+    private void observeMapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context, String operation) {
+        Span span = GraphApiTracing.startSpan(String.format("%s %s", providerId, operation), SpanKind.INTERNAL);
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_REALM, realm.getName());
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_IDENTITY_PROVIDER, mapperModel.getIdentityProviderAlias());
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_MAPPER, mapperModel.getName());
+
+        GraphLoginHistoryProvider history = session.getProvider(GraphLoginHistoryProvider.class);
+        GraphMapperExecution execution = history.startExecution(realm, user, mapperModel, operation);
+        RuntimeException error = null;
+
+        long started = System.nanoTime();
+        try (Scope ignored = span.makeCurrent()) {
+            mapUser(session, realm, user, mapperModel, context);
+        } catch (RuntimeException e) {
+            error = e;
+            GraphApiTracing.recordError(span, e);
+            throw e;
+        } finally {
+            history.finishExecution(execution, error);
+            span.end();
+            GraphApiMetrics.recordMapper(GraphApiMetrics.getTags(realm.getName(), mapperModel.getIdentityProviderAlias()), providerId, operation, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Maps Graph API data of a brokered user into the Keycloak user. Called both when a user is
+     * imported and when an existing user logs in, and observed with mapper metrics and spans.
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param user Keycloak user
+     * @param mapperModel mapper model
+     * @param context brokered identity context
+     */
+    protected abstract void mapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context);
+
+    /**
+     * Returns whether the mapper resolves its value from the identity provider's tokens on this
+     * login. Plans of such mappers are left out of the Graph API fetch of the login.
+     *
+     * @param mapperModel mapper model
+     * @param context brokered identity context
+     * @return whether the mapper does not need Graph API on this login
+     */
+    protected boolean isResolvedFromToken(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return false;
+    }
+
+    /**
+     * Fetch plan computed for a mapper configuration
+     *
+     * @param config mapper configuration
+     * @param plan fetch plan
+     */
+    private record ConfiguredFetchPlan(Map<String, String> config, GraphFetchPlan plan) {
+    }
 }
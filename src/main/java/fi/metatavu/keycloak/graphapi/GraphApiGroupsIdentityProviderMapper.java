@@ -1,16 +1,27 @@
 package fi.metatavu.keycloak.graphapi;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
 import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.delta.GraphDeltaIndexProvider;
+import fi.metatavu.keycloak.graphapi.history.GraphLoginHistoryProvider;
+import fi.metatavu.keycloak.graphapi.history.GraphMapperExecution;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import fi.metatavu.keycloak.graphapi.tracing.GraphApiTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.*;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessTokenResponse;
 
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -19,36 +30,119 @@ import java.util.stream.Collectors;
 public class GraphApiGroupsIdentityProviderMapper extends AbstractGraphApiIdentityProviderMapper {
 
     private static final Logger logger = Logger.getLogger(GraphApiGroupsIdentityProviderMapper.class);
-    private static final String PROVIDER_ID = "graph-api-groups-identity-provider-mapper";
+    public static final String PROVIDER_ID = "graph-api-groups-identity-provider-mapper";
     private static final Set<IdentityProviderSyncMode> IDENTITY_PROVIDER_SYNC_MODES = new HashSet<>(Arrays.asList(IdentityProviderSyncMode.values()));
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
     private static final String CONFIG_GRAPH_API_GROUP_MAPPING = "graph-api-group-mapping";
+    private static final String CONFIG_MEMBERSHIP_SOURCE = "membership-source";
+    private static final String MEMBERSHIP_SOURCE_GRAPH = "graph";
+    private static final String MEMBERSHIP_SOURCE_DELTA_INDEX = "delta-index";
+    private static final String MEMBERSHIP_SOURCE_CHECK_MEMBER_GROUPS = "check-member-groups";
+
+    private static final int UUID_LENGTH = 36;
+    private static final long GROUP_ID_RESOLUTION_TTL_MILLIS = 60 * 60 * 1000L;
+
+    private final GroupPathIndex groupPathIndex = new GroupPathIndex();
+    private final Map<String, GroupMappings> groupMappingsByMapper = new ConcurrentHashMap<>();
+    private final Map<String, ResolvedGroupIds> resolvedGroupIds = new ConcurrentHashMap<>();
 
     static {
         ProviderConfigProperty claimsProperty = new ProviderConfigProperty();
         claimsProperty.setName(CONFIG_GRAPH_API_GROUP_MAPPING);
         claimsProperty.setLabel("Groups");
-        claimsProperty.setHelpText("Map Azure groups to Keycloak groups");
+        claimsProperty.setHelpText("Map Azure groups to Keycloak groups. Azure groups are identified either by object id or by display name. Object ids keep working when groups are renamed");
         claimsProperty.setType(ProviderConfigProperty.MAP_TYPE);
         configProperties.add(claimsProperty);
+
+        ProviderConfigProperty membershipSourceProperty = new ProviderConfigProperty();
+        membershipSourceProperty.setName(CONFIG_MEMBERSHIP_SOURCE);
+        membershipSourceProperty.setLabel("Membership source");
+        membershipSourceProperty.setHelpText("Where user's Azure group memberships are read from. 'graph' calls Graph API on login, 'delta-index' reads direct memberships from a local index synchronized in the background and falls back to Graph API until the index is ready, 'check-member-groups' asks Graph API only about the mapped groups");
+        membershipSourceProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        membershipSourceProperty.setOptions(List.of(MEMBERSHIP_SOURCE_GRAPH, MEMBERSHIP_SOURCE_DELTA_INDEX, MEMBERSHIP_SOURCE_CHECK_MEMBER_GROUPS));
+        membershipSourceProperty.setDefaultValue(MEMBERSHIP_SOURCE_GRAPH);
+        configProperties.add(membershipSourceProperty);
+
+        configProperties.add(GraphApiMapperUtils.buildPreferTokenClaimsProperty("Use the groups claim of the identity provider's ID token when present. Graph API is used when the token has no groups claim or signals groups overage"));
     }
 
     public GraphApiGroupsIdentityProviderMapper() {
         super(PROVIDER_ID, "Graph API Groups", "Graph API Groups Identity Provider Mapper", configProperties);
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(groupPathIndex::onEvent);
+    }
+
     @Override
     public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
         return IDENTITY_PROVIDER_SYNC_MODES.contains(syncMode);
     }
 
     @Override
-    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        updateGroups(session, realm, user, mapperModel, context);
+    protected void collectGraphFetchPlan(IdentityProviderMapperModel mapperModel, GraphFetchPlan plan) {
+        if (!isDeltaIndexSource(mapperModel) && !isCheckMemberGroupsSource(mapperModel)) {
+            plan.addResource(GraphResource.USER_GROUPS);
+        }
+    }
+
+    @Override
+    protected boolean isResolvedFromToken(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return GraphApiMapperUtils.isPreferTokenClaims(mapperModel) && getClaimedGroupMembership(context, getGroupMappings(mapperModel)) != null;
+    }
+
+    /**
+     * Returns whether the mapper reads memberships from the delta index
+     *
+     * @param mapperModel mapper model
+     * @return whether the mapper reads memberships from the delta index
+     */
+    public static boolean isDeltaIndexSource(IdentityProviderMapperModel mapperModel) {
+        return MEMBERSHIP_SOURCE_DELTA_INDEX.equals(mapperModel.getConfig().get(CONFIG_MEMBERSHIP_SOURCE));
+    }
+
+    /**
+     * Returns whether the mapper checks memberships of the mapped groups only
+     *
+     * @param mapperModel mapper model
+     * @return whether the mapper checks memberships of the mapped groups only
+     */
+    private static boolean isCheckMemberGroupsSource(IdentityProviderMapperModel mapperModel) {
+        return MEMBERSHIP_SOURCE_CHECK_MEMBER_GROUPS.equals(mapperModel.getConfig().get(CONFIG_MEMBERSHIP_SOURCE));
+    }
+
+    /**
+     * Returns Azure groups mapped by the mapper. Groups are identified by object ids or
+     * normalized names.
+     *
+     * @param mapperModel mapper model
+     * @return mapped Azure group object ids and names
+     */
+    public static Set<String> getMappedGroupNames(IdentityProviderMapperModel mapperModel) {
+        return mapperModel.getConfigMap(CONFIG_GRAPH_API_GROUP_MAPPING).keySet();
+    }
+
+    /**
+     * Returns Azure object id of a mapped group
+     *
+     * @param mappedGroup mapped Azure group as configured in the mapper
+     * @return object id or null if the group is mapped by name
+     */
+    public static UUID getMappedGroupId(String mappedGroup) {
+        if (mappedGroup == null || mappedGroup.length() != UUID_LENGTH) {
+            return null;
+        }
+
+        try {
+            return UUID.fromString(mappedGroup);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     @Override
-    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+    protected void mapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         updateGroups(session, realm, user, mapperModel, context);
     }
 
@@ -59,78 +153,179 @@ public class GraphApiGroupsIdentityProviderMapper extends AbstractGraphApiIdenti
      * @param context brokered identity context
      */
     private void updateGroups(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        AccessTokenResponse brokerToken = getBrokerToken(context);
-        if (brokerToken == null) {
-            logger.warn("Could not retrieve broker token from context, skipping group GraphAPI group mapping");
+        GroupMappings mappings = getGroupMappings(mapperModel);
+        Map<String, List<String>> groupMappings = mappings.keycloakGroups();
+
+        AzureGroupMembership membership = null;
+        if (GraphApiMapperUtils.isPreferTokenClaims(mapperModel)) {
+            membership = getClaimedGroupMembership(context, mappings);
+        }
+
+        if (membership != null) {
+            logger.debug("Reading user's Azure groups from ID token groups claim");
+        } else if (isDeltaIndexSource(mapperModel)) {
+            membership = getIndexedGroupMembership(session, realm, mapperModel, context, mappings);
+        } else if (isCheckMemberGroupsSource(mapperModel)) {
+            membership = getCheckedGroupMembership(session, realm, mapperModel, context, mappings);
+        }
+
+        if (membership == null) {
+            GraphUserSnapshot snapshot = GraphApiLoginCoordinator.getSnapshot(session, context, GraphFetchPlan.of(EnumSet.of(GraphResource.USER_GROUPS)));
+            membership = getAzureGroupMembership(snapshot.getUserGroups(), snapshot.isUserGroupsComplete(), mappings);
+        }
+        if (membership == null) {
+            logger.warn("Could not retrieve user groups from GraphAPI, skipping group GraphAPI group mapping");
             return;
         }
 
-        Map<String, List<String>> groupMappings = getGroupMappings(mapperModel);
-        List<String> managedAzureGroupNames = groupMappings.keySet().stream().toList();
-        List<String> managedKeycloakGroupNames = groupMappings.values().stream()
-            .flatMap(List::stream)
-            .toList();
+        Set<String> targetGroupIds = membership.complete() ? getTargetGroupIds(session, realm, groupMappings, membership) : null;
+        String fingerprint = targetGroupIds != null ? getGroupsFingerprint(mapperModel, membership, targetGroupIds) : null;
+        if (fingerprint != null && GraphApiMapperUtils.isFingerprintCurrent(user, mapperModel, fingerprint) && hasManagedGroups(user, groupMappings, targetGroupIds)) {
+            logger.debug("User's managed Azure groups are unchanged since previous login, skipping group mapping");
+            return;
+        }
 
-        List<GroupModel> realmGroups = realm.getGroupsStream()
-            .toList();
+        Span span = GraphApiTracing.startSpan("graph-api reconcile groups", SpanKind.INTERNAL);
+        span.setAttribute("graph.groups.managed", membership.groupNames().size());
+        try {
+            reconcileGroups(session, realm, user, groupMappings, membership, span);
+        } catch (RuntimeException e) {
+            GraphApiTracing.recordError(span, e);
+            throw e;
+        } finally {
+            span.end();
+        }
 
-        Map<String, GroupModel> groupTree = realmGroups.stream()
-            .collect(Collectors.toMap(GroupModel::getId, group -> group));
+        if (fingerprint != null) {
+            GraphApiMapperUtils.storeFingerprint(user, mapperModel, fingerprint);
+        }
+    }
 
-        Map<String, GroupModel> managedKeycloakGroups = realmGroups.stream()
-            .map(group -> new AbstractMap.SimpleImmutableEntry<>(getGroupPath(groupTree, group.getId()), group))
-            .filter(entry -> managedKeycloakGroupNames.contains(entry.getKey()))
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    /**
+     * Returns ids of the Keycloak groups the user should belong to according to the membership
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param groupMappings Keycloak groups of managed Azure groups
+     * @param membership user's membership in managed Azure groups
+     * @return group ids or null if a mapped Keycloak group does not exist
+     */
+    private Set<String> getTargetGroupIds(KeycloakSession session, RealmModel realm, Map<String, List<String>> groupMappings, AzureGroupMembership membership) {
+        Set<String> result = new HashSet<>();
+        for (String azureGroupName : membership.groupNames()) {
+            for (String groupPath : groupMappings.getOrDefault(azureGroupName, List.of())) {
+                GroupModel group = groupPathIndex.getGroup(session, realm, groupPath);
+                if (group == null) {
+                    return null;
+                }
 
-        ArrayList<GroupModel> leaveUserGroups = new ArrayList<>(user.getGroupsStream()
-            .filter(group -> managedKeycloakGroupNames.contains(getGroupPath(groupTree, group.getId())))
-            .toList());
+                result.add(group.getId());
+            }
+        }
 
-        List<String> previousGroupNames = leaveUserGroups.stream()
-            .map(group -> getGroupPath(groupTree, group.getId()))
-            .toList();
+        return result;
+    }
 
-        ArrayList<GroupModel> joinUserGroups = new ArrayList<>();
+    /**
+     * Returns fingerprint of the mapper configuration, the user's managed Azure groups and the
+     * Keycloak groups they resolve to. Groups created, removed or moved in Keycloak therefore
+     * change the fingerprint.
+     *
+     * @param mapperModel mapper model
+     * @param membership user's membership in managed Azure groups
+     * @param targetGroupIds ids of the Keycloak groups the user should belong to
+     * @return fingerprint
+     */
+    private String getGroupsFingerprint(IdentityProviderMapperModel mapperModel, AzureGroupMembership membership, Set<String> targetGroupIds) {
+        List<String> values = new ArrayList<>(membership.groupNames());
+        targetGroupIds.forEach(groupId -> values.add("group:" + groupId));
+        return GraphApiMapperUtils.getFingerprint(mapperModel, values);
+    }
 
-        List<TransitiveMemberOfGroup> azureGroups = getAzureGroups(brokerToken);
-        if (azureGroups == null) {
-            logger.warn("Could not retrieve user groups from GraphAPI, skipping group GraphAPI group mapping");
-            return;
+    /**
+     * Returns whether the user belongs to exactly the given managed Keycloak groups, so that
+     * memberships changed in Keycloak since previous login are reconciled again
+     *
+     * @param user user model
+     * @param groupMappings Keycloak groups of managed Azure groups
+     * @param targetGroupIds ids of the Keycloak groups the user should belong to
+     * @return whether the user's managed group memberships match
+     */
+    private boolean hasManagedGroups(UserModel user, Map<String, List<String>> groupMappings, Set<String> targetGroupIds) {
+        Set<String> managedGroupPaths = groupMappings.values().stream()
+            .flatMap(List::stream)
+            .collect(Collectors.toSet());
+
+        Set<String> currentGroupIds = user.getGroupsStream()
+            .filter(group -> managedGroupPaths.contains(GroupPathIndex.getGroupPath(group)))
+            .map(GroupModel::getId)
+            .collect(Collectors.toSet());
+
+        return currentGroupIds.equals(targetGroupIds);
+    }
+
+    /**
+     * Joins user to Keycloak groups of the managed Azure groups and removes user from other
+     * managed Keycloak groups
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param user user model
+     * @param groupMappings Keycloak groups of managed Azure groups
+     * @param membership user's membership in managed Azure groups
+     * @param span reconciliation span
+     */
+    void reconcileGroups(KeycloakSession session, RealmModel realm, UserModel user, Map<String, List<String>> groupMappings, AzureGroupMembership membership, Span span) {
+        Set<String> managedKeycloakGroupNames = groupMappings.values().stream()
+            .flatMap(List::stream)
+            .collect(Collectors.toSet());
+
+        Map<String, GroupModel> managedKeycloakGroups = new HashMap<>();
+        for (String groupPath : managedKeycloakGroupNames) {
+            GroupModel group = groupPathIndex.getGroup(session, realm, groupPath);
+            if (group != null) {
+                managedKeycloakGroups.put(groupPath, group);
+            }
         }
 
-        List<String> azureGroupNames = azureGroups.stream()
-            .map(TransitiveMemberOfGroup::getDisplayName)
-            .filter(Objects::nonNull)
-            .map(GraphApiMapperUtils::encodeForStorage)
-            .map(String::trim)
-            .filter(name -> !name.isEmpty())
-            .toList();
+        Map<String, GroupModel> leaveUserGroups = new LinkedHashMap<>();
+        user.getGroupsStream().forEach(group -> {
+            String groupPath = GroupPathIndex.getGroupPath(group);
+            if (managedKeycloakGroupNames.contains(groupPath)) {
+                leaveUserGroups.put(groupPath, group);
+            }
+        });
+
+        Set<String> previousGroupNames = Set.copyOf(leaveUserGroups.keySet());
+
+        ArrayList<GroupModel> joinUserGroups = new ArrayList<>();
 
-        logger.info("User's Azure groups: " + String.join(", ", azureGroupNames));
+        logger.info("User's managed Azure groups: " + String.join(", ", membership.groupNames()));
 
-        for (String azureGroupName : azureGroupNames) {
+        for (String azureGroupName : membership.groupNames()) {
             logger.info("Processing Azure group: " + azureGroupName);
 
-            if (managedAzureGroupNames.contains(azureGroupName)) {
-                List<String> keycloakGroups = groupMappings.get(azureGroupName);
-                for (String keycloakGroup : keycloakGroups) {
-                    if (previousGroupNames.contains(keycloakGroup)) {
-                        logger.info("Not removing user from group " + keycloakGroup);
-                        leaveUserGroups.removeIf(group -> getGroupPath(groupTree, group.getId()).equals(keycloakGroup));
+            List<String> keycloakGroups = groupMappings.get(azureGroupName);
+            for (String keycloakGroup : keycloakGroups) {
+                if (previousGroupNames.contains(keycloakGroup)) {
+                    logger.info("Not removing user from group " + keycloakGroup);
+                    leaveUserGroups.remove(keycloakGroup);
+                } else {
+                    if (managedKeycloakGroups.containsKey(keycloakGroup)) {
+                        logger.info("Adding user to join group " + keycloakGroup);
+                        joinUserGroups.add(managedKeycloakGroups.get(keycloakGroup));
                     } else {
-                        if (managedKeycloakGroups.containsKey(keycloakGroup)) {
-                            logger.info("Adding user to join group " + keycloakGroup);
-                            joinUserGroups.add(managedKeycloakGroups.get(keycloakGroup));
-                        } else {
-                            logger.warn("Could not find managed Keycloak group " + keycloakGroup);
-                        }
+                        logger.warn("Could not find managed Keycloak group " + keycloakGroup);
                     }
                 }
-            } else {
-                logger.info("Skipping non-managed Azure group " + azureGroupName);
             }
         }
 
+        if (!membership.complete() && !leaveUserGroups.isEmpty()) {
+            logger.warn("User's Azure groups were truncated, not removing user from managed groups");
+            leaveUserGroups.clear();
+        }
+
         for (GroupModel group : joinUserGroups) {
             logger.info("Joining user to group " + group.getName());
 
@@ -140,7 +335,7 @@ public class GraphApiGroupsIdentityProviderMapper extends AbstractGraphApiIdenti
             user.joinGroup(group);
         }
 
-        for (GroupModel group : leaveUserGroups) {
+        for (GroupModel group : leaveUserGroups.values()) {
             logger.info("Leaving user from group " + group.getName());
 
             String groupId = group.getId();
@@ -148,80 +343,277 @@ public class GraphApiGroupsIdentityProviderMapper extends AbstractGraphApiIdenti
             session.getContext().getAuthenticationSession().setAuthNote(authNoteId, user.getId());
             user.leaveGroup(group);
         }
+
+        span.setAttribute("graph.groups.joined", joinUserGroups.size());
+        span.setAttribute("graph.groups.left", leaveUserGroups.size());
+
+        GraphMapperExecution execution = session.getProvider(GraphLoginHistoryProvider.class).getCurrentExecution();
+        if (execution != null) {
+            joinUserGroups.forEach(group -> execution.addWrite("join " + GroupPathIndex.getGroupPath(group)));
+            leaveUserGroups.keySet().forEach(groupPath -> execution.addWrite("leave " + groupPath));
+        }
+    }
+
+    /**
+     * Returns user's membership in managed Azure groups from the delta index
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param mapperModel mapper model
+     * @param context brokered identity context
+     * @param mappings group mappings
+     * @return membership in managed Azure groups or null if the index cannot be used
+     */
+    private AzureGroupMembership getIndexedGroupMembership(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context, GroupMappings mappings) {
+        String objectId = GraphApiMapperUtils.getIdTokenClaim(context, GraphApiMapperUtils.CLAIM_OBJECT_ID);
+        if (objectId == null) {
+            logger.warn("ID token does not contain Azure object id, reading groups from GraphAPI");
+            return null;
+        }
+
+        GraphDeltaIndexProvider deltaIndexProvider = session.getProvider(GraphDeltaIndexProvider.class);
+        List<TransitiveMemberOfGroup> groups = deltaIndexProvider.getUserGroups(realm, mapperModel.getIdentityProviderAlias(), objectId, mappings.keycloakGroups().keySet());
+        if (groups == null) {
+            logger.info("Azure group membership index is not ready or contains nested groups, reading groups from GraphAPI");
+            return null;
+        }
+
+        return getAzureGroupMembership(groups, true, mappings);
+    }
+
+    /**
+     * Returns user's membership in managed Azure groups from the groups claim of the ID token.
+     * Claim values are matched as object ids or, when they are not ids, as display names. Claimed
+     * object ids cannot be matched with groups mapped by name, so such mappings are read from
+     * Graph API.
+     *
+     * @param context brokered identity context
+     * @param mappings group mappings
+     * @return membership in managed Azure groups or null if the token cannot be used
+     */
+    private AzureGroupMembership getClaimedGroupMembership(BrokeredIdentityContext context, GroupMappings mappings) {
+        List<String> claimedGroups = GraphApiMapperUtils.getIdTokenGroups(context);
+        if (claimedGroups == null) {
+            return null;
+        }
+
+        List<TransitiveMemberOfGroup> groups = new ArrayList<>(claimedGroups.size());
+        for (String claimedGroup : claimedGroups) {
+            TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+            UUID groupId = getMappedGroupId(claimedGroup);
+            if (groupId != null && mappings.hasGroupNames()) {
+                return null;
+            } else if (groupId != null) {
+                group.setId(groupId);
+            } else {
+                group.setDisplayName(claimedGroup);
+            }
+
+            groups.add(group);
+        }
+
+        return getAzureGroupMembership(groups, true, mappings);
     }
 
     /**
-     * Returns parsed broker token from context
+     * Returns user's membership in managed Azure groups by checking only the mapped groups with
+     * Graph API. Groups mapped by name are resolved to object ids and the resolution is cached.
+     * When a group mapped by name does not resolve, the check cannot tell whether the user is a
+     * member, so memberships are read from Graph API instead.
      *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param mapperModel mapper model
      * @param context brokered identity context
-     * @return parsed broker token or null if token is not present
+     * @param mappings group mappings
+     * @return membership in managed Azure groups or null if the check failed or a mapped group
+     *         could not be resolved
      */
-    private AccessTokenResponse getBrokerToken(BrokeredIdentityContext context) {
-        String token = context.getToken();
-        if (token == null) {
+    private AzureGroupMembership getCheckedGroupMembership(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context, GroupMappings mappings) {
+        AccessTokenResponse brokerToken = GraphApiMapperUtils.parseBrokerToken(context, logger);
+        if (brokerToken == null) {
             return null;
         }
 
+        GraphApiClient graphApiClient = GraphApiLoginCoordinator.getClient(session, context);
+
         try {
-            return new ObjectMapper().readValue(token, AccessTokenResponse.class);
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to parse token", e);
+            Map<String, List<String>> mappedGroupsById = new HashMap<>();
+            for (String mappedGroup : mappings.keycloakGroups().keySet()) {
+                UUID groupId = getMappedGroupId(mappedGroup);
+                List<String> groupIds = groupId != null ? List.of(groupId.toString()) : resolveGroupIds(graphApiClient, brokerToken, realm, mapperModel, mappedGroup);
+                if (groupIds.isEmpty()) {
+                    logger.infof("Azure group not found for membership check, reading groups from GraphAPI [group=%s]", URLDecoder.decode(mappedGroup, StandardCharsets.UTF_8));
+                    return null;
+                }
+
+                for (String id : groupIds) {
+                    mappedGroupsById.computeIfAbsent(id, k -> new ArrayList<>()).add(mappedGroup);
+                }
+            }
+
+            Set<String> groupNames = new LinkedHashSet<>();
+            for (String memberGroupId : graphApiClient.checkMemberGroups(brokerToken, List.copyOf(mappedGroupsById.keySet()))) {
+                groupNames.addAll(mappedGroupsById.getOrDefault(memberGroupId.toLowerCase(Locale.ROOT), List.of()));
+            }
+
+            return new AzureGroupMembership(groupNames, true);
+        } catch (IOException e) {
+            logger.warn("Failed to check user's Azure group memberships, reading groups from GraphAPI", e);
             return null;
         }
     }
 
     /**
-     * Returns user groups from GraphAPI
+     * Resolves object ids of an Azure group mapped by name. Resolutions are cached for an hour.
+     * Groups that are not found are looked up again on next login, so a group created or renamed
+     * in Azure is matched right away.
      *
+     * @param graphApiClient Graph API client
      * @param accessToken access token
-     * @return user groups
+     * @param realm realm
+     * @param mapperModel mapper model
+     * @param mappedGroup normalized name of the mapped group
+     * @return object ids of groups with the name
+     * @throws IOException thrown when the lookup fails
      */
-    private List<TransitiveMemberOfGroup> getAzureGroups(AccessTokenResponse accessToken) {
-        GraphApiClient graphApiClient = new GraphApiClient();
-        try {
-            return graphApiClient.getTransitiveMemberOfGroups(accessToken)
-                .getValue()
-                .stream()
-                .filter(group -> group.getDisplayName() != null)
-                .toList();
-        } catch (Exception e) {
-            logger.error("Failed to get manager", e);
+    private List<String> resolveGroupIds(GraphApiClient graphApiClient, AccessTokenResponse accessToken, RealmModel realm, IdentityProviderMapperModel mapperModel, String mappedGroup) throws IOException {
+        String key = realm.getId() + "/" + mapperModel.getIdentityProviderAlias() + "/" + mappedGroup;
+        long now = System.currentTimeMillis();
+
+        ResolvedGroupIds resolved = resolvedGroupIds.get(key);
+        if (resolved != null && resolved.expiresAt() > now) {
+            return resolved.groupIds();
+        }
+
+        String displayName = URLDecoder.decode(mappedGroup, StandardCharsets.UTF_8);
+        List<String> groupIds = graphApiClient.getGroupsByDisplayName(accessToken, displayName).stream()
+            .map(group -> group.getId().toString())
+            .toList();
+
+        if (groupIds.isEmpty()) {
+            resolvedGroupIds.remove(key);
+        } else {
+            resolvedGroupIds.put(key, new ResolvedGroupIds(groupIds, now + GROUP_ID_RESOLUTION_TTL_MILLIS));
+        }
+
+        return groupIds;
+    }
+
+    /**
+     * Returns user's membership in managed Azure groups. Only groups present in the mappings are
+     * retained. Groups are matched by object id first and by normalized name when the mappings
+     * contain names.
+     *
+     * @param groups user's Azure groups or null if groups could not be retrieved
+     * @param complete whether the groups are complete
+     * @param mappings group mappings
+     * @return membership in managed Azure groups or null if groups could not be retrieved
+     */
+    private AzureGroupMembership getAzureGroupMembership(List<TransitiveMemberOfGroup> groups, boolean complete, GroupMappings mappings) {
+        if (groups == null) {
             return null;
         }
+
+        Set<String> groupNames = new LinkedHashSet<>();
+        for (TransitiveMemberOfGroup group : groups) {
+            boolean managed = false;
+
+            UUID groupId = group.getId();
+            if (groupId != null) {
+                int position = mappings.groupIdIndex().indexOf(groupId);
+                if (position >= 0) {
+                    groupNames.add(mappings.mappedGroupIds().get(position));
+                    managed = true;
+                }
+            }
+
+            if (mappings.hasGroupNames()) {
+                String groupName = GraphApiMapperUtils.normalizeGroupName(group.getDisplayName());
+                if (groupName != null && mappings.keycloakGroups().containsKey(groupName)) {
+                    groupNames.add(groupName);
+                    managed = true;
+                }
+            }
+
+            if (!managed && logger.isDebugEnabled()) {
+                logger.debug("Skipping non-managed Azure group " + group.getId());
+            }
+        }
+
+        return new AzureGroupMembership(groupNames, complete);
     }
 
     /**
-     * Returns group mappings from mapper configuration
+     * Returns group mappings from mapper configuration. Mappings are parsed once per mapper
+     * configuration.
      *
      * @param mapperModel mapper model configuration
      * @return group mappings
      */
-    private Map<String, List<String>> getGroupMappings(IdentityProviderMapperModel mapperModel) {
-        Map<String, List<String>> result = new HashMap<>();
+    private GroupMappings getGroupMappings(IdentityProviderMapperModel mapperModel) {
+        String mapperId = mapperModel.getId();
+        String config = mapperModel.getConfig().get(CONFIG_GRAPH_API_GROUP_MAPPING);
+
+        GroupMappings cached = mapperId != null ? groupMappingsByMapper.get(mapperId) : null;
+        if (cached != null && Objects.equals(cached.config(), config)) {
+            return cached;
+        }
+
+        Map<String, List<String>> keycloakGroups = new HashMap<>();
         for (Map.Entry<String, List<String>> entry : mapperModel.getConfigMap(CONFIG_GRAPH_API_GROUP_MAPPING).entrySet()) {
             for (String value : entry.getValue()) {
-                result.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
-                result.get(entry.getKey()).add(value);
+                keycloakGroups.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+                keycloakGroups.get(entry.getKey()).add(value);
             }
         }
 
+        List<String> mappedGroupIds = new ArrayList<>();
+        List<UUID> groupIds = new ArrayList<>();
+        for (String mappedGroup : keycloakGroups.keySet()) {
+            UUID groupId = getMappedGroupId(mappedGroup);
+            if (groupId != null) {
+                mappedGroupIds.add(mappedGroup);
+                groupIds.add(groupId);
+            }
+        }
+
+        GroupMappings result = new GroupMappings(config, keycloakGroups, new GroupIdIndex(groupIds), List.copyOf(mappedGroupIds), mappedGroupIds.size() < keycloakGroups.size());
+        if (mapperId != null) {
+            groupMappingsByMapper.put(mapperId, result);
+        }
+
         return result;
     }
 
     /**
-     * Returns group path
+     * User's membership in managed Azure groups
      *
-     * @param groupTree group tree
-     * @param id group id
-     * @return group path
+     * @param groupNames normalized names of managed Azure groups the user belongs to
+     * @param complete whether all of user's groups were read
      */
-    private String getGroupPath(Map<String, GroupModel> groupTree, String id) {
-        GroupModel group = groupTree.get(id);
-        if (group.getParentId() != null) {
-            return getGroupPath(groupTree, group.getParentId()) + "/" + group.getName();
-        }
+    record AzureGroupMembership(Set<String> groupNames, boolean complete) {
+    }
+
+    /**
+     * Object ids resolved for a group mapped by name
+     *
+     * @param groupIds object ids
+     * @param expiresAt time when the resolution expires in epoch milliseconds
+     */
+    private record ResolvedGroupIds(List<String> groupIds, long expiresAt) {
+    }
 
-        return group.getName();
+    /**
+     * Parsed group mappings of a mapper configuration
+     *
+     * @param config raw group mapping configuration
+     * @param keycloakGroups Keycloak group paths by mapped Azure group
+     * @param groupIdIndex index of Azure groups mapped by object id
+     * @param mappedGroupIds mapped Azure groups in the positions of the id index
+     * @param hasGroupNames whether some Azure groups are mapped by name
+     */
+    private record GroupMappings(String config, Map<String, List<String>> keycloakGroups, GroupIdIndex groupIdIndex, List<String> mappedGroupIds, boolean hasGroupNames) {
     }
 
 }
@@ -0,0 +1,310 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.cache.GraphSnapshotCacheProvider;
+import fi.metatavu.keycloak.graphapi.cache.GraphSnapshotKey;
+import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import fi.metatavu.keycloak.graphapi.client.GraphApiJson;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.client.GraphSnapshotNoteFormat;
+import fi.metatavu.keycloak.graphapi.history.GraphLoginHistoryProvider;
+import fi.metatavu.keycloak.graphapi.history.GraphMapperExecution;
+import fi.metatavu.keycloak.graphapi.metrics.GraphApiMetrics;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import fi.metatavu.keycloak.graphapi.tracing.GraphApiTracing;
+import io.micrometer.core.instrument.Tags;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.io.IOException;
+
+/**
+ * Coordinates Graph API fetches of a single login.
+ *
+ * The first Graph API mapper invoked during a login works out which resources all Graph API
+ * mappers of the identity provider need, fetches them once and stores the snapshot in the
+ * Keycloak session. Later mappers of the same login are served from the snapshot. Unless
+ * disabled, the snapshot is also kept in an authentication session note so that mappers running
+ * in later requests of the same login do not fetch it again. Across logins, resources are shared
+ * through the Graph API snapshot cache when the identity provider issues Azure tenant and object
+ * ids. While Graph API is unavailable, resources that could not be fetched are served from stale
+ * cache entries.
+ */
+final class GraphApiLoginCoordinator {
+
+    private static final Logger logger = Logger.getLogger(GraphApiLoginCoordinator.class);
+
+    private static final String SNAPSHOT_AUTH_NOTE = "graph-api-snapshot";
+    private static final String SNAPSHOT_SESSION_ATTRIBUTE = GraphApiLoginCoordinator.class.getName() + ".snapshot";
+
+    private GraphApiLoginCoordinator() {
+    }
+
+    /**
+     * Returns Graph API snapshot of the login. Resources are fetched when the login does not yet
+     * have a snapshot that contains the required resources.
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param required fetch plan of the calling mapper
+     * @return snapshot, never null. Resources that could not be fetched are null in the snapshot
+     */
+    static GraphUserSnapshot getSnapshot(KeycloakSession session, BrokeredIdentityContext context, GraphFetchPlan required) {
+        AuthenticationSessionModel authenticationSession = context.getAuthenticationSession();
+        GraphSnapshotNoteFormat noteFormat = session.getProvider(GraphApiClient.class).getSnapshotNoteFormat();
+
+        GraphUserSnapshot snapshot = session.getAttribute(SNAPSHOT_SESSION_ATTRIBUTE, GraphUserSnapshot.class);
+        if (snapshot == null && noteFormat != GraphSnapshotNoteFormat.NONE) {
+            snapshot = readSnapshot(authenticationSession);
+        }
+
+        if (snapshot != null && snapshot.getResources().containsAll(required.getResources())) {
+            session.setAttribute(SNAPSHOT_SESSION_ATTRIBUTE, snapshot);
+            return snapshot;
+        }
+
+        GraphUserSnapshot result = snapshot != null ? snapshot : new GraphUserSnapshot();
+        GraphFetchPlan plan = getPlan(session, context, required).without(result.getResources());
+
+        GraphSnapshotKey cacheKey = getCacheKey(context);
+        GraphSnapshotCacheProvider cacheProvider = session.getProvider(GraphSnapshotCacheProvider.class);
+        if (cacheKey != null) {
+            GraphUserSnapshot cached = getCached(session, context, cacheProvider, cacheKey, plan);
+            plan = plan.without(cached.getResources());
+            result.merge(cached);
+        }
+
+        if (!plan.getResources().isEmpty()) {
+            AccessTokenResponse brokerToken = GraphApiMapperUtils.parseBrokerToken(context, logger);
+            if (brokerToken == null) {
+                logger.warn("Broker token is null, cannot retrieve Graph API data");
+                return result;
+            }
+
+            logger.debugf("Fetching Graph API resources for login [resources=%s, user=%s, manager=%s]", plan.getResources(), plan.getUserSelect(), plan.getManagerSelect());
+
+            GraphApiClient graphApiClient = getClient(session, context);
+            GraphUserSnapshot fetched = fetch(graphApiClient, brokerToken, plan);
+            if (cacheKey != null) {
+                cacheProvider.put(cacheKey, plan, fetched);
+                if (!graphApiClient.isAvailable()) {
+                    mergeStale(session, context, fetched, cacheProvider.getStale(cacheKey, plan));
+                }
+            }
+
+            result.merge(fetched);
+        }
+
+        session.setAttribute(SNAPSHOT_SESSION_ATTRIBUTE, result);
+        if (noteFormat != GraphSnapshotNoteFormat.NONE) {
+            writeSnapshot(authenticationSession, result, noteFormat);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns Graph API client of the session with the login deadline started, metrics tagged
+     * with the realm and identity provider of the login and requests recorded into the current
+     * mapper execution
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @return Graph API client
+     */
+    static GraphApiClient getClient(KeycloakSession session, BrokeredIdentityContext context) {
+        GraphApiClient graphApiClient = session.getProvider(GraphApiClient.class);
+        graphApiClient.startLoginDeadline();
+        graphApiClient.setMetricTags(context.getAuthenticationSession().getRealm().getName(), context.getIdpConfig().getAlias());
+        graphApiClient.setExecution(session.getProvider(GraphLoginHistoryProvider.class).getCurrentExecution());
+        return graphApiClient;
+    }
+
+    /**
+     * Looks resources of a plan up from the snapshot cache within a cache lookup span
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param cacheProvider cache provider
+     * @param cacheKey cache key of the user
+     * @param plan plan to look up
+     * @return cached resources
+     */
+    private static GraphUserSnapshot getCached(KeycloakSession session, BrokeredIdentityContext context, GraphSnapshotCacheProvider cacheProvider, GraphSnapshotKey cacheKey, GraphFetchPlan plan) {
+        Span span = GraphApiTracing.startSpan("graph-api cache lookup", SpanKind.INTERNAL);
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_RESOURCES, plan.getResources().toString());
+        try {
+            GraphUserSnapshot cached = cacheProvider.get(cacheKey, plan);
+            span.setAttribute("graph.cache.hits", cached.getResources().toString());
+            recordCacheLookups(session, context, cacheProvider, plan, cached);
+            return cached;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Fetches resources of a plan from Graph API within a span covering all requests of the fetch
+     *
+     * @param graphApiClient Graph API client
+     * @param brokerToken broker token
+     * @param plan plan to fetch
+     * @return fetched snapshot
+     */
+    private static GraphUserSnapshot fetch(GraphApiClient graphApiClient, AccessTokenResponse brokerToken, GraphFetchPlan plan) {
+        Span span = GraphApiTracing.startSpan("graph-api fetch", SpanKind.INTERNAL);
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_RESOURCES, plan.getResources().toString());
+        try (Scope ignored = span.makeCurrent()) {
+            return graphApiClient.getSnapshot(brokerToken, plan);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Fills resources that could not be fetched from stale cache entries
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param fetched fetched snapshot
+     * @param stale snapshot of stale cache entries
+     */
+    private static void mergeStale(KeycloakSession session, BrokeredIdentityContext context, GraphUserSnapshot fetched, GraphUserSnapshot stale) {
+        for (GraphResource resource : stale.getResources()) {
+            GraphUserSnapshot staleResource = stale.select(resource);
+            if (fetched.select(resource) == null && staleResource != null) {
+                logger.debugf("Graph API is unavailable, using stale cached %s", resource);
+                recordCacheLookup(session, context, resource, "stale");
+                fetched.merge(staleResource);
+            }
+        }
+    }
+
+    /**
+     * Records cache hits and misses of cached resources of a plan
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param cacheProvider cache provider
+     * @param plan plan looked up from the cache
+     * @param cached resources found from the cache
+     */
+    private static void recordCacheLookups(KeycloakSession session, BrokeredIdentityContext context, GraphSnapshotCacheProvider cacheProvider, GraphFetchPlan plan, GraphUserSnapshot cached) {
+        for (GraphResource resource : plan.getResources()) {
+            if (cacheProvider.isCached(resource)) {
+                recordCacheLookup(session, context, resource, cached.getResources().contains(resource) ? "hit" : "miss");
+            }
+        }
+    }
+
+    /**
+     * Records a cache lookup result into metrics and the current mapper execution
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param resource resource
+     * @param result lookup result: hit, miss or stale
+     */
+    private static void recordCacheLookup(KeycloakSession session, BrokeredIdentityContext context, GraphResource resource, String result) {
+        Tags tags = GraphApiMetrics.getTags(context.getAuthenticationSession().getRealm().getName(), context.getIdpConfig().getAlias());
+        GraphApiMetrics.recordCacheLookup(tags, resource, result);
+
+        GraphMapperExecution execution = session.getProvider(GraphLoginHistoryProvider.class).getCurrentExecution();
+        if (execution != null) {
+            execution.addCacheLookup(resource.name(), result);
+        }
+    }
+
+    /**
+     * Returns cache key of the user from the validated ID token of the identity provider
+     *
+     * @param context brokered identity context
+     * @return cache key or null if the ID token does not contain tenant and object ids
+     */
+    private static GraphSnapshotKey getCacheKey(BrokeredIdentityContext context) {
+        String tenantId = GraphApiMapperUtils.getIdTokenClaim(context, GraphApiMapperUtils.CLAIM_TENANT_ID);
+        String objectId = GraphApiMapperUtils.getIdTokenClaim(context, GraphApiMapperUtils.CLAIM_OBJECT_ID);
+        if (tenantId == null || objectId == null) {
+            return null;
+        }
+
+        return new GraphSnapshotKey(tenantId, objectId);
+    }
+
+    /**
+     * Returns fetch plan covering all Graph API mappers of the identity provider
+     *
+     * @param session Keycloak session
+     * @param context brokered identity context
+     * @param required fetch plan of the calling mapper
+     * @return plan to fetch
+     */
+    private static GraphFetchPlan getPlan(KeycloakSession session, BrokeredIdentityContext context, GraphFetchPlan required) {
+        GraphFetchPlan plan = new GraphFetchPlan().merge(required);
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        session.identityProviders().getMappersByAliasStream(context.getIdpConfig().getAlias())
+            .forEach(mapperModel -> {
+                ProviderFactory<?> mapperFactory = sessionFactory.getProviderFactory(IdentityProviderMapper.class, mapperModel.getIdentityProviderMapper());
+                if (mapperFactory instanceof AbstractGraphApiIdentityProviderMapper graphApiMapper && !graphApiMapper.isResolvedFromToken(mapperModel, context)) {
+                    plan.merge(graphApiMapper.getGraphFetchPlan(mapperModel));
+                }
+            });
+
+        return plan;
+    }
+
+    /**
+     * Reads snapshot from authentication session note. Notes in both the compact and the JSON
+     * format are read, so logins started before the format was changed are not fetched again.
+     *
+     * @param authenticationSession authentication session
+     * @return snapshot or null if not present
+     */
+    static GraphUserSnapshot readSnapshot(AuthenticationSessionModel authenticationSession) {
+        String note = authenticationSession.getAuthNote(SNAPSHOT_AUTH_NOTE);
+        if (note == null) {
+            return null;
+        }
+
+        try {
+            if (GraphSnapshotNoteCodec.isCompact(note)) {
+                return GraphSnapshotNoteCodec.decode(note);
+            }
+
+            return GraphApiJson.reader(GraphUserSnapshot.class).readValue(note);
+        } catch (IOException e) {
+            logger.error("Failed to parse cached Graph API snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes snapshot into authentication session note
+     *
+     * @param authenticationSession authentication session
+     * @param snapshot snapshot
+     * @param format note format, either compact or JSON
+     */
+    static void writeSnapshot(AuthenticationSessionModel authenticationSession, GraphUserSnapshot snapshot, GraphSnapshotNoteFormat format) {
+        try {
+            String note = format == GraphSnapshotNoteFormat.JSON
+                ? GraphApiJson.writer(GraphUserSnapshot.class).writeValueAsString(snapshot)
+                : GraphSnapshotNoteCodec.encode(snapshot);
+
+            authenticationSession.setAuthNote(SNAPSHOT_AUTH_NOTE, note);
+        } catch (IOException e) {
+            logger.error("Failed to cache Graph API snapshot", e);
+        }
+    }
+
+}
@@ -1,21 +1,35 @@
 package fi.metatavu.keycloak.graphapi;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.metatavu.keycloak.graphapi.client.GraphApiJson;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.history.GraphLoginHistoryProvider;
+import fi.metatavu.keycloak.graphapi.history.GraphMapperExecution;
 import fi.metatavu.keycloak.graphapi.model.GraphUser;
 import org.jboss.logging.Logger;
+import org.keycloak.broker.oidc.OIDCIdentityProvider;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.keycloak.utils.KeycloakSessionUtil;
 
-import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Function;
 
 /**
@@ -24,6 +38,16 @@ import java.util.function.Function;
 final class GraphApiMapperUtils {
 
     static final String[] COMPATIBLE_PROVIDERS = new String[] {"oidc"};
+    static final String CLAIM_TENANT_ID = "tid";
+    static final String CLAIM_OBJECT_ID = "oid";
+    static final String CLAIM_USER_PRINCIPAL_NAME = "upn";
+    static final String CLAIM_GROUPS = "groups";
+    static final String CONFIG_PREFER_TOKEN_CLAIMS = "prefer-token-claims";
+    private static final String CLAIM_CLAIM_NAMES = "_claim_names";
+    private static final String CLAIM_HAS_GROUPS = "hasgroups";
+    static final String FINGERPRINT_ATTRIBUTE_PREFIX = "graph-api-fingerprint-";
+    static final String ENTITY_TAG_ATTRIBUTE_PREFIX = "graph-api-etag-";
+    private static final int FINGERPRINT_BYTES = 12;
 
     private GraphApiMapperUtils() {
     }
@@ -38,7 +62,7 @@ final class GraphApiMapperUtils {
         }
 
         try {
-            return new ObjectMapper().readValue(token, AccessTokenResponse.class);
+            return GraphApiJson.reader(AccessTokenResponse.class).readValue(token);
         } catch (JsonProcessingException e) {
             logger.error("Failed to parse token", e);
             return null;
@@ -46,16 +70,274 @@ final class GraphApiMapperUtils {
     }
 
     /**
-     * Updates a user attribute in Keycloak.
+     * Returns a claim of the validated ID token issued by the identity provider.
+     *
+     * @param context brokered identity context
+     * @param claim claim name
+     * @return claim value or null if the context has no ID token or the claim is missing
+     */
+    static String getIdTokenClaim(BrokeredIdentityContext context, String claim) {
+        IDToken idToken = getIdToken(context);
+        if (idToken == null) {
+            return null;
+        }
+
+        Object value = idToken.getOtherClaims().get(claim);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Returns the validated ID token issued by the identity provider.
+     *
+     * @param context brokered identity context
+     * @return ID token or null if the context has no ID token
+     */
+    static IDToken getIdToken(BrokeredIdentityContext context) {
+        if (context.getContextData().get(OIDCIdentityProvider.VALIDATED_ID_TOKEN) instanceof IDToken idToken) {
+            return idToken;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns values of the groups claim of the validated ID token.
+     *
+     * @param context brokered identity context
+     * @return group object ids or names, or null if the token has no groups claim or signals groups
+     *     overage, in which case the groups must be read from Graph API
+     */
+    static List<String> getIdTokenGroups(BrokeredIdentityContext context) {
+        IDToken idToken = getIdToken(context);
+        if (idToken == null) {
+            return null;
+        }
+
+        Map<String, Object> claims = idToken.getOtherClaims();
+        boolean overage = claims.get(CLAIM_CLAIM_NAMES) instanceof Map<?, ?> claimNames && claimNames.containsKey(CLAIM_GROUPS);
+        if (overage || Boolean.parseBoolean(String.valueOf(claims.get(CLAIM_HAS_GROUPS)))) {
+            return null;
+        }
+
+        if (!(claims.get(CLAIM_GROUPS) instanceof Collection<?> groups)) {
+            return null;
+        }
+
+        List<String> result = new ArrayList<>(groups.size());
+        for (Object group : groups) {
+            if (group != null) {
+                result.add(group.toString());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether the mapper is configured to prefer ID token claims over Graph API
+     */
+    static boolean isPreferTokenClaims(IdentityProviderMapperModel mapperModel) {
+        return Boolean.parseBoolean(mapperModel.getConfig().get(CONFIG_PREFER_TOKEN_CLAIMS));
+    }
+
+    /**
+     * Builds configuration property for preferring ID token claims over Graph API.
+     */
+    static ProviderConfigProperty buildPreferTokenClaimsProperty(String helpText) {
+        ProviderConfigProperty property = new ProviderConfigProperty();
+        property.setName(CONFIG_PREFER_TOKEN_CLAIMS);
+        property.setLabel("Prefer ID token claims");
+        property.setHelpText(helpText);
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("false");
+        return property;
+    }
+
+    /**
+     * Updates a user attribute in Keycloak. Nothing is written when the attribute already has the
+     * same values, in any order.
      */
     static void updateUserAttribute(UserModel user, String attributeName, Object value) {
-        if (value == null) {
+        List<String> values = toAttributeValues(value);
+        if (hasSameValues(user.getAttributeStream(attributeName).toList(), values)) {
+            return;
+        }
+
+        if (values.isEmpty()) {
             user.removeAttribute(attributeName);
         } else if (value instanceof List) {
-            user.setAttribute(attributeName, (List<String>) value);
+            user.setAttribute(attributeName, values);
         } else {
-            user.setSingleAttribute(attributeName, value.toString());
+            user.setSingleAttribute(attributeName, values.get(0));
+        }
+
+        recordWrite("attribute " + attributeName);
+    }
+
+    /**
+     * Records a write into the mapper execution currently running in the session of the thread
+     */
+    private static void recordWrite(String write) {
+        KeycloakSession session = KeycloakSessionUtil.getKeycloakSession();
+        GraphMapperExecution execution = session != null ? session.getProvider(GraphLoginHistoryProvider.class).getCurrentExecution() : null;
+        if (execution != null) {
+            execution.addWrite(write);
+        }
+    }
+
+    /**
+     * Applies a mapped value into a user attribute. The attribute is left untouched when the
+     * fingerprint of the mapper configuration and value matches the one applied on previous login.
+     */
+    static void applyMappedValue(UserModel user, IdentityProviderMapperModel mapperModel, String attributeName, Object value) {
+        String fingerprint = getFingerprint(mapperModel, toAttributeValues(value));
+        if (isFingerprintCurrent(user, mapperModel, fingerprint)) {
+            return;
+        }
+
+        updateUserAttribute(user, attributeName, value);
+        storeFingerprint(user, mapperModel, fingerprint);
+    }
+
+    /**
+     * Returns a compact fingerprint of mapper configuration and mapped values. Values are
+     * fingerprinted in sorted order.
+     *
+     * @param mapperModel mapper model
+     * @param values mapped values
+     * @return fingerprint
+     */
+    static String getFingerprint(IdentityProviderMapperModel mapperModel, Collection<String> values) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        new TreeMap<>(mapperModel.getConfig()).forEach((name, value) -> {
+            updateDigest(digest, name);
+            updateDigest(digest, value);
+        });
+
+        digest.update((byte) 1);
+        values.stream().sorted().forEach(value -> updateDigest(digest, value));
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), FINGERPRINT_BYTES));
+    }
+
+    /**
+     * Returns whether the fingerprint stored on the user by the mapper matches given fingerprint
+     */
+    static boolean isFingerprintCurrent(UserModel user, IdentityProviderMapperModel mapperModel, String fingerprint) {
+        return fingerprint.equals(user.getFirstAttribute(getFingerprintAttribute(mapperModel)));
+    }
+
+    /**
+     * Stores the fingerprint of the mapper on the user
+     */
+    static void storeFingerprint(UserModel user, IdentityProviderMapperModel mapperModel, String fingerprint) {
+        updateUserAttribute(user, getFingerprintAttribute(mapperModel), fingerprint);
+    }
+
+    /**
+     * Returns entity tag of the Graph API resource the mapper applied on previous login. The tag
+     * is returned only while the mapper configuration is unchanged, so a resource applied with
+     * another configuration is read again.
+     *
+     * @return entity tag or null if the resource must be read unconditionally
+     */
+    static String getEntityTag(UserModel user, IdentityProviderMapperModel mapperModel) {
+        String entityTag = user.getFirstAttribute(getEntityTagAttribute(mapperModel));
+        if (entityTag == null || !isFingerprintCurrent(user, mapperModel, getFingerprint(mapperModel, List.of(entityTag)))) {
+            return null;
         }
+
+        return entityTag;
+    }
+
+    /**
+     * Stores entity tag of the Graph API resource applied by the mapper together with a
+     * fingerprint of the mapper configuration
+     *
+     * @param entityTag entity tag or null if Graph API did not return one
+     */
+    static void storeEntityTag(UserModel user, IdentityProviderMapperModel mapperModel, String entityTag) {
+        updateUserAttribute(user, getEntityTagAttribute(mapperModel), entityTag);
+        storeFingerprint(user, mapperModel, getFingerprint(mapperModel, entityTag != null ? List.of(entityTag) : List.of()));
+    }
+
+    /**
+     * Returns name of the user attribute holding the entity tag of the resource applied by a mapper
+     */
+    private static String getEntityTagAttribute(IdentityProviderMapperModel mapperModel) {
+        return ENTITY_TAG_ATTRIBUTE_PREFIX + mapperModel.getId();
+    }
+
+    /**
+     * Returns name of the user attribute holding the fingerprint of a mapper
+     */
+    private static String getFingerprintAttribute(IdentityProviderMapperModel mapperModel) {
+        return FINGERPRINT_ATTRIBUTE_PREFIX + mapperModel.getId();
+    }
+
+    /**
+     * Updates digest with a string value followed by a separator
+     */
+    private static void updateDigest(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Converts a mapped value into attribute values
+     */
+    private static List<String> toAttributeValues(Object value) {
+        if (value == null) {
+            return List.of();
+        }
+
+        if (value instanceof List<?> list) {
+            List<String> result = new ArrayList<>(list.size());
+            for (Object item : list) {
+                if (item != null) {
+                    result.add(item.toString());
+                }
+            }
+
+            return result;
+        }
+
+        return List.of(value.toString());
+    }
+
+    /**
+     * Returns whether two value lists contain the same values the same number of times
+     */
+    private static boolean hasSameValues(List<String> current, List<String> values) {
+        if (current.size() != values.size()) {
+            return false;
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        current.forEach(value -> counts.merge(value, 1, Integer::sum));
+        for (String value : values) {
+            Integer count = counts.get(value);
+            if (count == null) {
+                return false;
+            }
+
+            if (count == 1) {
+                counts.remove(value);
+            } else {
+                counts.put(value, count - 1);
+            }
+        }
+
+        return counts.isEmpty();
     }
 
     /**
@@ -70,60 +352,65 @@ final class GraphApiMapperUtils {
     }
 
     /**
-     * Fetches a GraphUser from the context or by calling the fetcher.
+     * Normalizes an Azure group display name into the form used in mappings and attributes.
+     *
+     * @return normalized name or null if the name is empty
      */
-    static GraphUser fetchGraphUser(BrokeredIdentityContext context, Logger logger, String cacheKey, GraphUserFetcher fetcher) {
-        String cachedUser = context.getAuthenticationSession().getAuthNote(cacheKey);
-        if (cachedUser != null) {
-            try {
-                return new ObjectMapper().readValue(cachedUser, GraphUser.class);
-            } catch (JsonProcessingException e) {
-                logger.error("Failed to parse cached user", e);
-            }
-        }
-
-        AccessTokenResponse brokerToken = parseBrokerToken(context, logger);
-        if (brokerToken == null) {
-            logger.warn("Broker token is null, cannot retrieve user");
+    static String normalizeGroupName(String displayName) {
+        if (displayName == null) {
             return null;
         }
 
-        GraphUser graphUser;
-        try {
-            graphUser = fetcher.fetch(brokerToken);
-        } catch (IOException e) {
-            logger.error("Failed to get user", e);
+        String name = encodeForStorage(displayName).trim();
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Returns normalized names of Graph API groups
+     *
+     * @param groups groups or null if groups could not be retrieved
+     * @param complete whether the groups are complete
+     * @param subject subject of the groups for logging
+     * @param logger logger
+     * @return normalized group names or null if groups could not be retrieved
+     */
+    static List<String> getGroupNames(List<TransitiveMemberOfGroup> groups, boolean complete, String subject, Logger logger) {
+        if (groups == null) {
             return null;
         }
 
-        if (graphUser != null) {
-            try {
-                context.getAuthenticationSession().setAuthNote(cacheKey, new ObjectMapper().writeValueAsString(graphUser));
-            } catch (JsonProcessingException e) {
-                logger.error("Failed to cache user", e);
+        List<String> groupNames = new ArrayList<>(groups.size());
+        for (TransitiveMemberOfGroup group : groups) {
+            String groupName = normalizeGroupName(group.getDisplayName());
+            if (groupName != null) {
+                groupNames.add(groupName);
             }
         }
 
-        return graphUser;
+        if (!complete) {
+            logger.warnf("%s group names truncated to %d groups", subject, groupNames.size());
+        }
+
+        return groupNames;
     }
 
     /**
      * Applies attribute mapping from a GraphUser to a Keycloak UserModel.
      */
-    static void applyAttributeMapping(GraphUser graphUser, String sourceAttribute, String keycloakAttribute, UserModel userModel, Map<String, Function<GraphUser, Object>> mapping, Logger logger) {
+    static void applyAttributeMapping(GraphUser graphUser, String sourceAttribute, String keycloakAttribute, UserModel userModel, IdentityProviderMapperModel mapperModel, Map<String, Function<GraphUser, Object>> mapping, Logger logger) {
         Function<GraphUser, Object> extractor = mapping.get(sourceAttribute);
         if (extractor == null) {
             logger.warnf("Unsupported Graph API user attribute: %s", sourceAttribute);
             return;
         }
 
-        updateUserAttribute(userModel, keycloakAttribute, extractor.apply(graphUser));
+        applyMappedValue(userModel, mapperModel, keycloakAttribute, extractor.apply(graphUser));
     }
 
     /**
      * Builds configuration properties for the Graph API and Keycloak mapping.
      */
-    static List<ProviderConfigProperty> buildConfigProperties(String graphApiConfigName, String graphApiLabel, String graphApiHelp, List<String> options, String keycloakConfigName, String keycloakLabel, String keycloakHelp) {
+    static List<ProviderConfigProperty> buildConfigProperties(String graphApiConfigName, String graphApiLabel, String graphApiHelp, List<String> options, String keycloakConfigName, String keycloakLabel, String keycloakHelp, ProviderConfigProperty... additionalProperties) {
         ProviderConfigProperty graphApiProperty = new ProviderConfigProperty();
         graphApiProperty.setName(graphApiConfigName);
         graphApiProperty.setLabel(graphApiLabel);
@@ -140,11 +427,7 @@ final class GraphApiMapperUtils {
         List<ProviderConfigProperty> config = new ArrayList<>();
         config.add(graphApiProperty);
         config.add(keycloakProperty);
+        config.addAll(Arrays.asList(additionalProperties));
         return Collections.unmodifiableList(config);
     }
-
-    @FunctionalInterface
-    interface GraphUserFetcher {
-        GraphUser fetch(AccessTokenResponse accessToken) throws IOException;
-    }
 }
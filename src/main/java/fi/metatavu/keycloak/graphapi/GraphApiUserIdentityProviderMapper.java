@@ -1,9 +1,9 @@
 package fi.metatavu.keycloak.graphapi;
 
-import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
-import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
-import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroupsResponse;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
 import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.IdentityProviderMapperModel;
@@ -11,11 +11,10 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
-import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.function.Function;
 
 /**
@@ -43,7 +42,6 @@ public class GraphApiUserIdentityProviderMapper extends AbstractGraphApiIdentity
     private static final String USER_SURNAME = "User Surname";
     private static final String USER_USER_PRINCIPAL_NAME = "User User Principal Name";
 
-    private static final String USER_AUTH_NOTE = "graph-api-user";
     private static final List<String> ATTRIBUTE_OPTIONS = List.of(
         USER_ID,
         USER_GIVEN_NAME,
@@ -75,6 +73,29 @@ public class GraphApiUserIdentityProviderMapper extends AbstractGraphApiIdentity
         Map.entry(USER_SURNAME, GraphUser::getSurname),
         Map.entry(USER_USER_PRINCIPAL_NAME, GraphUser::getUserPrincipalName)
     );
+    private static final Map<String, String> ATTRIBUTE_PROPERTIES = Map.ofEntries(
+        Map.entry(USER_ID, "id"),
+        Map.entry(USER_GIVEN_NAME, "givenName"),
+        Map.entry(USER_BUSINESS_PHONES, "businessPhones"),
+        Map.entry(USER_DISPLAY_NAME, "displayName"),
+        Map.entry(USER_COMPANY_NAME, "companyName"),
+        Map.entry(USER_DEPARTMENT, "department"),
+        Map.entry(USER_JOB_TITLE, "jobTitle"),
+        Map.entry(USER_MAIL, "mail"),
+        Map.entry(USER_MOBILE_PHONE, "mobilePhone"),
+        Map.entry(USER_OFFICE_LOCATION, "officeLocation"),
+        Map.entry(USER_PREFERRED_LANGUAGE, "preferredLanguage"),
+        Map.entry(USER_SURNAME, "surname"),
+        Map.entry(USER_USER_PRINCIPAL_NAME, "userPrincipalName")
+    );
+    private static final Map<String, Function<IDToken, Object>> CLAIM_EXTRACTORS = Map.ofEntries(
+        Map.entry(USER_ID, idToken -> idToken.getOtherClaims().get(GraphApiMapperUtils.CLAIM_OBJECT_ID)),
+        Map.entry(USER_GIVEN_NAME, IDToken::getGivenName),
+        Map.entry(USER_DISPLAY_NAME, IDToken::getName),
+        Map.entry(USER_MAIL, IDToken::getEmail),
+        Map.entry(USER_SURNAME, IDToken::getFamilyName),
+        Map.entry(USER_USER_PRINCIPAL_NAME, idToken -> idToken.getOtherClaims().get(GraphApiMapperUtils.CLAIM_USER_PRINCIPAL_NAME))
+    );
     private static final List<ProviderConfigProperty> configProperties = GraphApiMapperUtils.buildConfigProperties(
         CONFIG_GRAPH_API_USER_ATTRIBUTE,
         "User attribute",
@@ -82,7 +103,8 @@ public class GraphApiUserIdentityProviderMapper extends AbstractGraphApiIdentity
         ATTRIBUTE_OPTIONS,
         CONFIG_GRAPH_API_USER_ATTRIBUTE_KEYCLOAK_NAME,
         "Keycloak attribute name",
-        "Keycloak attribute to map the user attribute to"
+        "Keycloak attribute to map the user attribute to",
+        GraphApiMapperUtils.buildPreferTokenClaimsProperty("Use the matching claim of the identity provider's ID token when present and call Graph API only when the claim is missing. Supported for user id (oid), given name, surname, display name, mail and user principal name (upn)")
     );
 
     /**
@@ -93,79 +115,85 @@ public class GraphApiUserIdentityProviderMapper extends AbstractGraphApiIdentity
     }
 
     /**
-     * Imports a new user into Keycloak.
+     * Maps user attributes of a new or an existing user.
      */
     @Override
-    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        updateUserAttributes(context, mapperModel, user);
+    protected void mapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        updateUserAttributes(session, context, mapperModel, user);
     }
 
-    /**
-     * Updates an existing user in Keycloak.
-     */
     @Override
-    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        updateUserAttributes(context, mapperModel, user);
-    }
-
-    /**
-     * Updates user attributes in Keycloak.
-     */
-    private void updateUserAttributes(BrokeredIdentityContext context, IdentityProviderMapperModel mapperModel, UserModel user) {
+    protected void collectGraphFetchPlan(IdentityProviderMapperModel mapperModel, GraphFetchPlan plan) {
         String graphApiAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_ATTRIBUTE);
-        String keycloakAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_ATTRIBUTE_KEYCLOAK_NAME);
+        String property = ATTRIBUTE_PROPERTIES.get(graphApiAttribute);
 
         if (USER_GROUP_NAMES.equals(graphApiAttribute)) {
-            List<String> groupNames = getUserGroupNames(context);
-            GraphApiMapperUtils.updateUserAttribute(user, keycloakAttribute, groupNames);
-            return;
-        }
-
-        GraphUser graphUser = getUser(context);
-        if (graphUser == null) {
-            logger.warn("Could not retrieve user from Graph API, skipping user update");
-            return;
+            plan.addResource(GraphResource.USER_GROUPS);
+        } else if (property != null) {
+            plan.addUserProperty(property);
+        } else {
+            plan.addResource(GraphResource.USER);
         }
+    }
 
-        GraphApiMapperUtils.applyAttributeMapping(graphUser, graphApiAttribute, keycloakAttribute, user, ATTRIBUTE_EXTRACTORS, logger);
+    @Override
+    protected boolean isResolvedFromToken(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return getClaimValue(mapperModel, context) != null;
     }
 
     /**
-     * Returns user of the context
+     * Returns value of the mapped attribute from the ID token
      *
+     * @param mapperModel mapper model
      * @param context brokered identity context
-     * @return user of the context
+     * @return claim value or null if the mapper does not prefer claims or the claim is missing
      */
-    private GraphUser getUser(BrokeredIdentityContext context) {
-        GraphApiClient graphApiClient = new GraphApiClient();
-        return GraphApiMapperUtils.fetchGraphUser(context, logger, USER_AUTH_NOTE, graphApiClient::getUser);
+    private Object getClaimValue(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        if (!GraphApiMapperUtils.isPreferTokenClaims(mapperModel)) {
+            return null;
+        }
+
+        Function<IDToken, Object> extractor = CLAIM_EXTRACTORS.get(mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_ATTRIBUTE));
+        IDToken idToken = GraphApiMapperUtils.getIdToken(context);
+        if (extractor == null || idToken == null) {
+            return null;
+        }
+
+        return extractor.apply(idToken);
     }
 
-    private List<String> getUserGroupNames(BrokeredIdentityContext context) {
-        AccessTokenResponse brokerToken = GraphApiMapperUtils.parseBrokerToken(context, logger);
-        if (brokerToken == null) {
-            logger.warn("Broker token is null, cannot retrieve user groups");
-            return List.of();
+    /**
+     * Updates user attributes in Keycloak.
+     */
+    private void updateUserAttributes(KeycloakSession session, BrokeredIdentityContext context, IdentityProviderMapperModel mapperModel, UserModel user) {
+        String graphApiAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_ATTRIBUTE);
+        String keycloakAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_ATTRIBUTE_KEYCLOAK_NAME);
+
+        Object claimValue = getClaimValue(mapperModel, context);
+        if (claimValue != null) {
+            GraphApiMapperUtils.applyMappedValue(user, mapperModel, keycloakAttribute, claimValue);
+            return;
         }
 
-        GraphApiClient graphApiClient = new GraphApiClient();
-        try {
-            TransitiveMemberOfGroupsResponse response = graphApiClient.getTransitiveMemberOfGroups(brokerToken);
-            if (response == null || response.getValue() == null) {
-                return List.of();
+        GraphUserSnapshot snapshot = GraphApiLoginCoordinator.getSnapshot(session, context, getGraphFetchPlan(mapperModel));
+
+        if (USER_GROUP_NAMES.equals(graphApiAttribute)) {
+            List<String> groupNames = GraphApiMapperUtils.getGroupNames(snapshot.getUserGroups(), snapshot.isUserGroupsComplete(), "User", logger);
+            if (groupNames == null) {
+                logger.warn("Could not retrieve user groups from Graph API, skipping group names update");
+                return;
             }
 
-            List<String> groupNames = response.getValue().stream()
-                .map(TransitiveMemberOfGroup::getDisplayName)
-                .filter(Objects::nonNull)
-                .map(GraphApiMapperUtils::encodeForStorage)
-                .map(String::trim)
-                .filter(name -> !name.isEmpty())
-                .toList();
-            return groupNames;
-        } catch (Exception e) {
-            logger.error("Failed to get user groups", e);
-            return List.of();
+            GraphApiMapperUtils.applyMappedValue(user, mapperModel, keycloakAttribute, groupNames);
+            return;
         }
+
+        GraphUser graphUser = snapshot.getUser();
+        if (graphUser == null) {
+            logger.warn("Could not retrieve user from Graph API, skipping user update");
+            return;
+        }
+
+        GraphApiMapperUtils.applyAttributeMapping(graphUser, graphApiAttribute, keycloakAttribute, user, mapperModel, ATTRIBUTE_EXTRACTORS, logger);
     }
 }
@@ -1,9 +1,9 @@
 package fi.metatavu.keycloak.graphapi;
 
-import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
-import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
-import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroupsResponse;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
 import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.IdentityProviderMapperModel;
@@ -11,11 +11,9 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
-import org.keycloak.representations.AccessTokenResponse;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.function.Function;
 
 public class GraphApiUserManagerIdentityProviderMapper extends AbstractGraphApiIdentityProviderMapper {
@@ -40,7 +38,6 @@ public class GraphApiUserManagerIdentityProviderMapper extends AbstractGraphApiI
     private static final String MANAGER_SURNAME = "Manager Surname";
     private static final String MANAGER_USER_PRINCIPAL_NAME = "Manager User Principal Name";
 
-    private static final String MANAGER_AUTH_NOTE = "graph-api-user-manager";
     private static final List<String> ATTRIBUTE_OPTIONS = List.of(
         MANAGER_ID,
         MANAGER_GIVEN_NAME,
@@ -72,6 +69,21 @@ public class GraphApiUserManagerIdentityProviderMapper extends AbstractGraphApiI
         Map.entry(MANAGER_SURNAME, GraphUser::getSurname),
         Map.entry(MANAGER_USER_PRINCIPAL_NAME, GraphUser::getUserPrincipalName)
     );
+    private static final Map<String, String> ATTRIBUTE_PROPERTIES = Map.ofEntries(
+        Map.entry(MANAGER_ID, "id"),
+        Map.entry(MANAGER_GIVEN_NAME, "givenName"),
+        Map.entry(MANAGER_BUSINESS_PHONES, "businessPhones"),
+        Map.entry(MANAGER_DISPLAY_NAME, "displayName"),
+        Map.entry(MANAGER_COMPANY_NAME, "companyName"),
+        Map.entry(MANAGER_DEPARTMENT, "department"),
+        Map.entry(MANAGER_JOB_TITLE, "jobTitle"),
+        Map.entry(MANAGER_MAIL, "mail"),
+        Map.entry(MANAGER_MOBILE_PHONE, "mobilePhone"),
+        Map.entry(MANAGER_OFFICE_LOCATION, "officeLocation"),
+        Map.entry(MANAGER_PREFERRED_LANGUAGE, "preferredLanguage"),
+        Map.entry(MANAGER_SURNAME, "surname"),
+        Map.entry(MANAGER_USER_PRINCIPAL_NAME, "userPrincipalName")
+    );
     private static final List<ProviderConfigProperty> configProperties = GraphApiMapperUtils.buildConfigProperties(
         CONFIG_GRAPH_API_USER_MANAGER_ATTRIBUTE,
         "Manager attribute",
@@ -87,75 +99,48 @@ public class GraphApiUserManagerIdentityProviderMapper extends AbstractGraphApiI
     }
 
     @Override
-    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        updateManagerAttributes(context, mapperModel, user);
+    protected void mapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        updateManagerAttributes(session, context, mapperModel, user);
     }
 
     @Override
-    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        updateManagerAttributes(context, mapperModel, user);
+    protected void collectGraphFetchPlan(IdentityProviderMapperModel mapperModel, GraphFetchPlan plan) {
+        String graphApiAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_MANAGER_ATTRIBUTE);
+        String property = ATTRIBUTE_PROPERTIES.get(graphApiAttribute);
+
+        if (MANAGER_GROUP_NAMES.equals(graphApiAttribute)) {
+            plan.addManagerProperty("id");
+            plan.addResource(GraphResource.MANAGER_GROUPS);
+        } else if (property != null) {
+            plan.addManagerProperty(property);
+        } else {
+            plan.addResource(GraphResource.MANAGER);
+        }
     }
 
-    private void updateManagerAttributes(BrokeredIdentityContext context, IdentityProviderMapperModel mapperModel, UserModel user) {
+    private void updateManagerAttributes(KeycloakSession session, BrokeredIdentityContext context, IdentityProviderMapperModel mapperModel, UserModel user) {
         String graphApiAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_MANAGER_ATTRIBUTE);
         String keycloakAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_MANAGER_ATTRIBUTE_KEYCLOAK_NAME);
 
-        GraphUser manager = getManager(context);
+        GraphUserSnapshot snapshot = GraphApiLoginCoordinator.getSnapshot(session, context, getGraphFetchPlan(mapperModel));
+
+        GraphUser manager = snapshot.getManager();
         if (manager == null) {
             logger.warn("Could not retrieve manager from Graph API, skipping manager update");
             return;
         }
 
         if (MANAGER_GROUP_NAMES.equals(graphApiAttribute)) {
-            List<String> groupNames = getManagerGroupNames(context, manager);
-            GraphApiMapperUtils.updateUserAttribute(user, keycloakAttribute, groupNames);
-            return;
-        }
-
-        GraphApiMapperUtils.applyAttributeMapping(manager, graphApiAttribute, keycloakAttribute, user, ATTRIBUTE_EXTRACTORS, logger);
-    }
-
-    /**
-     * Returns manager of the user
-     *
-     * @param context brokered identity context
-     * @return manager of the user
-     */
-    private GraphUser getManager(BrokeredIdentityContext context) {
-        GraphApiClient graphApiClient = new GraphApiClient();
-        return GraphApiMapperUtils.fetchGraphUser(context, logger, MANAGER_AUTH_NOTE, graphApiClient::getManager);
-    }
-
-    private List<String> getManagerGroupNames(BrokeredIdentityContext context, GraphUser manager) {
-        AccessTokenResponse brokerToken = GraphApiMapperUtils.parseBrokerToken(context, logger);
-        if (brokerToken == null) {
-            logger.warn("Broker token is null, cannot retrieve manager groups");
-            return List.of();
-        }
-
-        if (manager.getId() == null) {
-            logger.warn("Manager id is null, cannot retrieve manager groups");
-            return List.of();
-        }
-
-        GraphApiClient graphApiClient = new GraphApiClient();
-        try {
-            TransitiveMemberOfGroupsResponse response = graphApiClient.getTransitiveMemberOfGroupsForUser(brokerToken, manager.getId());
-            if (response == null || response.getValue() == null) {
-                return List.of();
+            List<String> groupNames = GraphApiMapperUtils.getGroupNames(snapshot.getManagerGroups(), snapshot.isManagerGroupsComplete(), "Manager", logger);
+            if (groupNames == null) {
+                logger.warn("Could not retrieve manager groups from Graph API, skipping group names update");
+                return;
             }
 
-            List<String> groupNames = response.getValue().stream()
-                .map(TransitiveMemberOfGroup::getDisplayName)
-                .filter(Objects::nonNull)
-                .map(GraphApiMapperUtils::encodeForStorage)
-                .map(String::trim)
-                .filter(name -> !name.isEmpty())
-                .toList();
-            return groupNames;
-        } catch (Exception e) {
-            logger.error("Failed to get manager groups", e);
-            return List.of();
+            GraphApiMapperUtils.applyMappedValue(user, mapperModel, keycloakAttribute, groupNames);
+            return;
         }
+
+        GraphApiMapperUtils.applyAttributeMapping(manager, graphApiAttribute, keycloakAttribute, user, mapperModel, ATTRIBUTE_EXTRACTORS, logger);
     }
 }
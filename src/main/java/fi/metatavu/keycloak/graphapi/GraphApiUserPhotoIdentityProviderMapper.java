@@ -0,0 +1,118 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import fi.metatavu.keycloak.graphapi.client.GraphConditionalResponse;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.model.GraphUserPhoto;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.AccessTokenResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Graph API user photo identity provider mapper. Maps the profile photo of the user into a user
+ * attribute as a data URL.
+ *
+ * Photos are requested with the entity tag of the photo applied on previous login, so unchanged
+ * photos are neither downloaded nor written.
+ */
+public class GraphApiUserPhotoIdentityProviderMapper extends AbstractGraphApiIdentityProviderMapper {
+    private static final Logger logger = Logger.getLogger(GraphApiUserPhotoIdentityProviderMapper.class);
+
+    private static final String PROVIDER_ID = "graph-api-user-photo-identity-provider-mapper";
+    private static final String CONFIG_GRAPH_API_USER_PHOTO_SIZE = "graph-api-user-photo-size";
+    private static final String CONFIG_GRAPH_API_USER_PHOTO_KEYCLOAK_NAME = "graph-api-user-photo-keycloak-name";
+
+    private static final String DEFAULT_SIZE = "96x96";
+
+    private static final List<String> SIZE_OPTIONS = List.of(
+        "48x48",
+        "64x64",
+        "96x96",
+        "120x120",
+        "240x240",
+        "360x360",
+        "432x432",
+        "504x504",
+        "648x648"
+    );
+    private static final List<ProviderConfigProperty> configProperties = GraphApiMapperUtils.buildConfigProperties(
+        CONFIG_GRAPH_API_USER_PHOTO_SIZE,
+        "Photo size",
+        "Size of the photo to map. Photos are stored in the user attribute, so small sizes are preferred. Defaults to 96x96",
+        SIZE_OPTIONS,
+        CONFIG_GRAPH_API_USER_PHOTO_KEYCLOAK_NAME,
+        "Keycloak attribute name",
+        "Keycloak attribute to map the photo to as a data URL, such as picture"
+    );
+
+    /**
+     * Constructor for GraphApiUserPhotoIdentityProviderMapper.
+     */
+    public GraphApiUserPhotoIdentityProviderMapper() {
+        super(PROVIDER_ID, "Graph API User Photo", "Graph API User Photo Identity Provider Mapper", configProperties);
+    }
+
+    /**
+     * Photos are read with a conditional request of their own instead of the login snapshot.
+     */
+    @Override
+    protected void collectGraphFetchPlan(IdentityProviderMapperModel mapperModel, GraphFetchPlan plan) {
+    }
+
+    /**
+     * Maps the photo of a new or an existing user.
+     */
+    @Override
+    protected void mapUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        String keycloakAttribute = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_PHOTO_KEYCLOAK_NAME);
+        if (keycloakAttribute == null || keycloakAttribute.isBlank()) {
+            logger.warn("Keycloak attribute name is not configured, skipping photo update");
+            return;
+        }
+
+        AccessTokenResponse brokerToken = GraphApiMapperUtils.parseBrokerToken(context, logger);
+        if (brokerToken == null) {
+            logger.warn("Broker token is null, cannot retrieve user photo from Graph API");
+            return;
+        }
+
+        // A photo removed from the user in Keycloak is downloaded again even if it has not changed
+        String entityTag = user.getFirstAttribute(keycloakAttribute) != null ? GraphApiMapperUtils.getEntityTag(user, mapperModel) : null;
+
+        GraphApiClient graphApiClient = GraphApiLoginCoordinator.getClient(session, context);
+        GraphConditionalResponse<GraphUserPhoto> response;
+        try {
+            response = graphApiClient.getPhoto(brokerToken, getSize(mapperModel), entityTag);
+        } catch (IOException e) {
+            logger.warnf("Could not retrieve user photo from Graph API, skipping photo update [error=%s]", e.getMessage());
+            return;
+        }
+
+        if (!response.modified()) {
+            return;
+        }
+
+        GraphUserPhoto photo = response.value();
+        GraphApiMapperUtils.updateUserAttribute(user, keycloakAttribute, photo != null ? photo.toDataUrl() : null);
+        GraphApiMapperUtils.storeEntityTag(user, mapperModel, response.entityTag());
+    }
+
+    /**
+     * Returns configured photo size
+     *
+     * @param mapperModel mapper model
+     * @return photo size
+     */
+    private String getSize(IdentityProviderMapperModel mapperModel) {
+        String size = mapperModel.getConfig().get(CONFIG_GRAPH_API_USER_PHOTO_SIZE);
+        return size != null && SIZE_OPTIONS.contains(size) ? size : DEFAULT_SIZE;
+    }
+}
@@ -0,0 +1,368 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Compact encoding of Graph API snapshots for authentication session notes.
+ *
+ * Authentication sessions are replicated across the cluster for every login in flight, so the
+ * note holds only the fields mappers read, without OData annotations or property names. The
+ * note is a Base64 encoded binary that starts with a format version. Absent values are marked
+ * in bit masks and take no space. The order of fields below is part of the format, so new
+ * fields are added to the end or under a new version.
+ */
+final class GraphSnapshotNoteCodec {
+
+    private static final int VERSION = 1;
+
+    private static final int RESOURCE_USER = 1;
+    private static final int RESOURCE_USER_GROUPS = 1 << 1;
+    private static final int RESOURCE_MANAGER = 1 << 2;
+    private static final int RESOURCE_MANAGER_GROUPS = 1 << 3;
+
+    private static final int HAS_USER = 1;
+    private static final int HAS_USER_GROUPS = 1 << 1;
+    private static final int USER_GROUPS_COMPLETE = 1 << 2;
+    private static final int HAS_MANAGER = 1 << 3;
+    private static final int HAS_MANAGER_GROUPS = 1 << 4;
+    private static final int MANAGER_GROUPS_COMPLETE = 1 << 5;
+
+    private static final int GROUP_ID = 1;
+    private static final int GROUP_DISPLAY_NAME = 1 << 1;
+    private static final int GROUP_MAIL = 1 << 2;
+
+    private static final List<UserField> USER_FIELDS = List.of(
+        new UserField(GraphUser::getId, GraphUser::setId),
+        new UserField(GraphUser::getDisplayName, GraphUser::setDisplayName),
+        new UserField(GraphUser::getCompanyName, GraphUser::setCompanyName),
+        new UserField(GraphUser::getDepartment, GraphUser::setDepartment),
+        new UserField(GraphUser::getGivenName, GraphUser::setGivenName),
+        new UserField(GraphUser::getJobTitle, GraphUser::setJobTitle),
+        new UserField(GraphUser::getMail, GraphUser::setMail),
+        new UserField(GraphUser::getMobilePhone, GraphUser::setMobilePhone),
+        new UserField(GraphUser::getOfficeLocation, GraphUser::setOfficeLocation),
+        new UserField(GraphUser::getPreferredLanguage, GraphUser::setPreferredLanguage),
+        new UserField(GraphUser::getSurname, GraphUser::setSurname),
+        new UserField(GraphUser::getUserPrincipalName, GraphUser::setUserPrincipalName)
+    );
+
+    private static final int USER_BUSINESS_PHONES = 1 << USER_FIELDS.size();
+
+    private GraphSnapshotNoteCodec() {
+    }
+
+    /**
+     * Returns whether a note is in the compact format. Notes written in the JSON format start
+     * with a brace, which is not a Base64 character.
+     *
+     * @param note note value
+     * @return whether the note is in the compact format
+     */
+    static boolean isCompact(String note) {
+        return !note.isEmpty() && note.charAt(0) != '{';
+    }
+
+    /**
+     * Encodes a snapshot into note value
+     *
+     * @param snapshot snapshot
+     * @return note value
+     * @throws IOException when a value is too long to be encoded
+     */
+    static String encode(GraphUserSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(VERSION);
+            output.writeByte(getResourceFlags(snapshot.getResources()));
+
+            int flags = 0;
+            flags |= snapshot.getUser() != null ? HAS_USER : 0;
+            flags |= snapshot.getUserGroups() != null ? HAS_USER_GROUPS : 0;
+            flags |= snapshot.isUserGroupsComplete() ? USER_GROUPS_COMPLETE : 0;
+            flags |= snapshot.getManager() != null ? HAS_MANAGER : 0;
+            flags |= snapshot.getManagerGroups() != null ? HAS_MANAGER_GROUPS : 0;
+            flags |= snapshot.isManagerGroupsComplete() ? MANAGER_GROUPS_COMPLETE : 0;
+            output.writeByte(flags);
+
+            if (snapshot.getUser() != null) {
+                writeUser(output, snapshot.getUser());
+            }
+
+            if (snapshot.getUserGroups() != null) {
+                writeGroups(output, snapshot.getUserGroups());
+            }
+
+            if (snapshot.getManager() != null) {
+                writeUser(output, snapshot.getManager());
+            }
+
+            if (snapshot.getManagerGroups() != null) {
+                writeGroups(output, snapshot.getManagerGroups());
+            }
+        }
+
+        return Base64.getEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a snapshot from note value
+     *
+     * @param note note value
+     * @return snapshot
+     * @throws IOException when the note is truncated or of an unsupported version
+     */
+    static GraphUserSnapshot decode(String note) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(note);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Snapshot note is not valid Base64", e);
+        }
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = input.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported snapshot note version %d", version));
+            }
+
+            GraphUserSnapshot snapshot = new GraphUserSnapshot();
+            snapshot.setResources(getResources(input.readUnsignedByte()));
+
+            int flags = input.readUnsignedByte();
+            snapshot.setUserGroupsComplete((flags & USER_GROUPS_COMPLETE) != 0);
+            snapshot.setManagerGroupsComplete((flags & MANAGER_GROUPS_COMPLETE) != 0);
+
+            if ((flags & HAS_USER) != 0) {
+                snapshot.setUser(readUser(input));
+            }
+
+            if ((flags & HAS_USER_GROUPS) != 0) {
+                snapshot.setUserGroups(readGroups(input));
+            }
+
+            if ((flags & HAS_MANAGER) != 0) {
+                snapshot.setManager(readUser(input));
+            }
+
+            if ((flags & HAS_MANAGER_GROUPS) != 0) {
+                snapshot.setManagerGroups(readGroups(input));
+            }
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Writes present user fields preceded by a mask of the present fields
+     *
+     * @param output output
+     * @param user user
+     * @throws IOException when a value is too long to be encoded
+     */
+    private static void writeUser(DataOutputStream output, GraphUser user) throws IOException {
+        int mask = 0;
+        for (int i = 0; i < USER_FIELDS.size(); i++) {
+            if (USER_FIELDS.get(i).getter().apply(user) != null) {
+                mask |= 1 << i;
+            }
+        }
+
+        List<String> businessPhones = user.getBusinessPhones();
+        if (businessPhones != null) {
+            mask |= USER_BUSINESS_PHONES;
+        }
+
+        output.writeShort(mask);
+
+        for (UserField field : USER_FIELDS) {
+            String value = field.getter().apply(user);
+            if (value != null) {
+                output.writeUTF(value);
+            }
+        }
+
+        if (businessPhones != null) {
+            output.writeShort(businessPhones.size());
+            for (String businessPhone : businessPhones) {
+                output.writeUTF(businessPhone);
+            }
+        }
+    }
+
+    /**
+     * Reads user written with {@link #writeUser(DataOutputStream, GraphUser)}
+     *
+     * @param input input
+     * @return user
+     * @throws IOException when the note is truncated
+     */
+    private static GraphUser readUser(DataInputStream input) throws IOException {
+        GraphUser user = new GraphUser();
+        int mask = input.readUnsignedShort();
+
+        for (int i = 0; i < USER_FIELDS.size(); i++) {
+            if ((mask & (1 << i)) != 0) {
+                USER_FIELDS.get(i).setter().accept(user, input.readUTF());
+            }
+        }
+
+        if ((mask & USER_BUSINESS_PHONES) != 0) {
+            int count = input.readUnsignedShort();
+            List<String> businessPhones = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                businessPhones.add(input.readUTF());
+            }
+
+            user.setBusinessPhones(businessPhones);
+        }
+
+        return user;
+    }
+
+    /**
+     * Writes groups preceded by the group count. Each group starts with a mask of its present
+     * fields and the id is written as two longs.
+     *
+     * @param output output
+     * @param groups groups
+     * @throws IOException when a value is too long to be encoded
+     */
+    private static void writeGroups(DataOutputStream output, List<TransitiveMemberOfGroup> groups) throws IOException {
+        output.writeInt(groups.size());
+
+        for (TransitiveMemberOfGroup group : groups) {
+            UUID id = group.getId();
+            String displayName = group.getDisplayName();
+            String mail = group.getMail();
+
+            int mask = 0;
+            mask |= id != null ? GROUP_ID : 0;
+            mask |= displayName != null ? GROUP_DISPLAY_NAME : 0;
+            mask |= mail != null ? GROUP_MAIL : 0;
+            output.writeByte(mask);
+
+            if (id != null) {
+                output.writeLong(id.getMostSignificantBits());
+                output.writeLong(id.getLeastSignificantBits());
+            }
+
+            if (displayName != null) {
+                output.writeUTF(displayName);
+            }
+
+            if (mail != null) {
+                output.writeUTF(mail);
+            }
+        }
+    }
+
+    /**
+     * Reads groups written with {@link #writeGroups(DataOutputStream, List)}
+     *
+     * @param input input
+     * @return groups
+     * @throws IOException when the note is truncated
+     */
+    private static List<TransitiveMemberOfGroup> readGroups(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0) {
+            throw new IOException(String.format("Invalid group count %d in snapshot note", count));
+        }
+
+        List<TransitiveMemberOfGroup> groups = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+            int mask = input.readUnsignedByte();
+
+            if ((mask & GROUP_ID) != 0) {
+                group.setId(new UUID(input.readLong(), input.readLong()));
+            }
+
+            if ((mask & GROUP_DISPLAY_NAME) != 0) {
+                group.setDisplayName(input.readUTF());
+            }
+
+            if ((mask & GROUP_MAIL) != 0) {
+                group.setMail(input.readUTF());
+            }
+
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    /**
+     * Returns resource flags of resources
+     *
+     * @param resources resources
+     * @return resource flags
+     */
+    private static int getResourceFlags(Set<GraphResource> resources) {
+        int flags = 0;
+        for (GraphResource resource : resources) {
+            flags |= getResourceFlag(resource);
+        }
+
+        return flags;
+    }
+
+    /**
+     * Returns resources of resource flags
+     *
+     * @param flags resource flags
+     * @return resources
+     */
+    private static Set<GraphResource> getResources(int flags) {
+        Set<GraphResource> resources = EnumSet.noneOf(GraphResource.class);
+        for (GraphResource resource : GraphResource.values()) {
+            if ((flags & getResourceFlag(resource)) != 0) {
+                resources.add(resource);
+            }
+        }
+
+        return resources;
+    }
+
+    /**
+     * Returns flag of a resource. Flags are fixed here rather than derived from enum ordinals
+     * so that reordering the enum does not change the format.
+     *
+     * @param resource resource
+     * @return resource flag
+     */
+    private static int getResourceFlag(GraphResource resource) {
+        return switch (resource) {
+            case USER -> RESOURCE_USER;
+            case USER_GROUPS -> RESOURCE_USER_GROUPS;
+            case MANAGER -> RESOURCE_MANAGER;
+            case MANAGER_GROUPS -> RESOURCE_MANAGER_GROUPS;
+        };
+    }
+
+    /**
+     * String property of Graph API user stored in the note
+     *
+     * @param getter property getter
+     * @param setter property setter
+     */
+    private record UserField(Function<GraphUser, String> getter, BiConsumer<GraphUser, String> setter) {
+    }
+}
@@ -0,0 +1,86 @@
+package fi.metatavu.keycloak.graphapi;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Open addressing index of Azure group object ids.
+ *
+ * Ids are stored as pairs of longs in flat arrays and probed linearly, so lookups do not allocate
+ * or hash strings. The index is immutable after construction.
+ */
+final class GroupIdIndex {
+
+    private final long[] mostSignificantBits;
+    private final long[] leastSignificantBits;
+    private final int[] positions;
+    private final int mask;
+
+    /**
+     * Constructor
+     *
+     * @param ids ids to index. Lookups return positions in this list
+     */
+    GroupIdIndex(List<UUID> ids) {
+        int capacity = Integer.highestOneBit(Math.max(ids.size(), 1) * 2 - 1) << 1;
+        mostSignificantBits = new long[capacity];
+        leastSignificantBits = new long[capacity];
+        positions = new int[capacity];
+        mask = capacity - 1;
+
+        for (int position = 0; position < ids.size(); position++) {
+            UUID id = ids.get(position);
+            int slot = findSlot(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (positions[slot] == 0) {
+                mostSignificantBits[slot] = id.getMostSignificantBits();
+                leastSignificantBits[slot] = id.getLeastSignificantBits();
+                positions[slot] = position + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns position of an id
+     *
+     * @param id id
+     * @return position of the id in the indexed list or -1 if the id is not indexed
+     */
+    int indexOf(UUID id) {
+        return positions[findSlot(id.getMostSignificantBits(), id.getLeastSignificantBits())] - 1;
+    }
+
+    /**
+     * Returns slot holding given id or the empty slot where the id would be stored
+     *
+     * @param most most significant bits of the id
+     * @param least least significant bits of the id
+     * @return slot
+     */
+    private int findSlot(long most, long least) {
+        int slot = hash(most, least) & mask;
+        while (positions[slot] != 0 && (mostSignificantBits[slot] != most || leastSignificantBits[slot] != least)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Returns hash of an id. Bits are mixed with the MurmurHash3 finalizer so that ids with
+     * similar prefixes spread over the table.
+     *
+     * @param most most significant bits of the id
+     * @param least least significant bits of the id
+     * @return hash
+     */
+    private static int hash(long most, long least) {
+        long hash = most ^ Long.rotateLeft(least, 32);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+}
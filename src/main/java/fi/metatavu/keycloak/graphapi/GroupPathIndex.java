@@ -0,0 +1,245 @@
+package fi.metatavu.keycloak.graphapi;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of realm groups by path.
+ *
+ * The index of a realm is built from all realm groups on first use and then kept up to date from
+ * group created, removed and path change events of this Keycloak node. Events are published before
+ * transactions commit and changes made on other cluster nodes are not seen, so every group found
+ * from the index is verified against the live group model. Stale entries are replaced with a direct
+ * path lookup.
+ */
+final class GroupPathIndex {
+
+    private static final Logger logger = Logger.getLogger(GroupPathIndex.class);
+
+    private final Map<String, RealmGroupPaths> realms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns group by path
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param path group path without leading slash
+     * @return group or null if not found
+     */
+    GroupModel getGroup(KeycloakSession session, RealmModel realm, String path) {
+        RealmGroupPaths groupPaths = realms.computeIfAbsent(realm.getId(), realmId -> build(realm));
+
+        String groupId = groupPaths.getGroupId(path);
+        if (groupId != null) {
+            GroupModel group = session.groups().getGroupById(realm, groupId);
+            if (group != null && path.equals(getGroupPath(group))) {
+                return group;
+            }
+
+            logger.debugf("Group path index entry is stale [realm=%s, path=%s]", realm.getName(), path);
+            groupPaths.remove(groupId);
+        }
+
+        GroupModel group = KeycloakModelUtils.findGroupByPath(session, realm, "/" + path);
+        if (group != null && path.equals(getGroupPath(group))) {
+            groupPaths.put(path, group.getId());
+            return group;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns path of a group
+     *
+     * @param group group
+     * @return group path without leading slash
+     */
+    static String getGroupPath(GroupModel group) {
+        GroupModel parent = group.getParent();
+        if (parent != null) {
+            return getGroupPath(parent) + "/" + group.getName();
+        }
+
+        return group.getName();
+    }
+
+    /**
+     * Updates indexes from Keycloak events
+     *
+     * @param event provider event
+     */
+    void onEvent(ProviderEvent event) {
+        if (event instanceof GroupModel.GroupCreatedEvent createdEvent) {
+            RealmGroupPaths groupPaths = realms.get(createdEvent.getRealm().getId());
+            if (groupPaths != null) {
+                GroupModel group = createdEvent.getGroup();
+                groupPaths.put(getGroupPath(group), group.getId());
+            }
+        } else if (event instanceof GroupModel.GroupRemovedEvent removedEvent) {
+            RealmGroupPaths groupPaths = realms.get(removedEvent.getRealm().getId());
+            if (groupPaths != null) {
+                groupPaths.remove(removedEvent.getGroup().getId());
+            }
+        } else if (event instanceof GroupModel.GroupPathChangeEvent pathChangeEvent) {
+            RealmGroupPaths groupPaths = realms.get(pathChangeEvent.getRealm().getId());
+            if (groupPaths != null) {
+                groupPaths.move(stripLeadingSlash(pathChangeEvent.getPreviousPath()), stripLeadingSlash(pathChangeEvent.getNewPath()));
+            }
+        } else if (event instanceof RealmModel.RealmRemovedEvent realmRemovedEvent) {
+            realms.remove(realmRemovedEvent.getRealm().getId());
+        }
+    }
+
+    /**
+     * Builds group path index of a realm
+     *
+     * @param realm realm
+     * @return group paths of the realm
+     */
+    private RealmGroupPaths build(RealmModel realm) {
+        long started = System.currentTimeMillis();
+
+        Map<String, GroupModel> groups = new HashMap<>();
+        realm.getGroupsStream().forEach(group -> groups.put(group.getId(), group));
+
+        Map<String, String> pathsById = new HashMap<>(groups.size());
+        RealmGroupPaths result = new RealmGroupPaths();
+        for (String groupId : groups.keySet()) {
+            result.put(getGroupPath(groups, pathsById, groupId), groupId);
+        }
+
+        logger.debugf("Built group path index [realm=%s, groups=%d, took=%dms]", realm.getName(), groups.size(), System.currentTimeMillis() - started);
+
+        return result;
+    }
+
+    /**
+     * Returns group path using already computed paths of parent groups
+     *
+     * @param groups groups by id
+     * @param pathsById computed paths by group id
+     * @param groupId group id
+     * @return group path
+     */
+    private String getGroupPath(Map<String, GroupModel> groups, Map<String, String> pathsById, String groupId) {
+        String path = pathsById.get(groupId);
+        if (path != null) {
+            return path;
+        }
+
+        GroupModel group = groups.get(groupId);
+        String parentId = group.getParentId();
+        path = parentId != null && groups.containsKey(parentId) ? getGroupPath(groups, pathsById, parentId) + "/" + group.getName() : group.getName();
+        pathsById.put(groupId, path);
+
+        return path;
+    }
+
+    /**
+     * Returns path without leading slash
+     *
+     * @param path path
+     * @return path without leading slash
+     */
+    private static String stripLeadingSlash(String path) {
+        return path != null && path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * Group paths of a realm
+     */
+    private static final class RealmGroupPaths {
+
+        private final Map<String, String> idsByPath = new ConcurrentHashMap<>();
+        private final Map<String, String> pathsById = new ConcurrentHashMap<>();
+
+        /**
+         * Returns group id by path
+         *
+         * @param path group path
+         * @return group id or null if not indexed
+         */
+        String getGroupId(String path) {
+            return idsByPath.get(path);
+        }
+
+        /**
+         * Indexes a group
+         *
+         * @param path group path
+         * @param groupId group id
+         */
+        synchronized void put(String path, String groupId) {
+            String previousPath = pathsById.put(groupId, path);
+            if (previousPath != null && !previousPath.equals(path)) {
+                idsByPath.remove(previousPath, groupId);
+            }
+
+            idsByPath.put(path, groupId);
+        }
+
+        /**
+         * Removes a group and its subgroups from the index
+         *
+         * @param groupId group id
+         */
+        synchronized void remove(String groupId) {
+            String path = pathsById.remove(groupId);
+            if (path == null) {
+                return;
+            }
+
+            idsByPath.remove(path, groupId);
+
+            String prefix = path + "/";
+            idsByPath.entrySet().removeIf(entry -> {
+                if (entry.getKey().startsWith(prefix)) {
+                    pathsById.remove(entry.getValue());
+                    return true;
+                }
+
+                return false;
+            });
+        }
+
+        /**
+         * Moves a group and its subgroups to a new path
+         *
+         * @param previousPath previous group path
+         * @param newPath new group path
+         */
+        synchronized void move(String previousPath, String newPath) {
+            if (previousPath == null || newPath == null || previousPath.equals(newPath)) {
+                return;
+            }
+
+            String prefix = previousPath + "/";
+            Map<String, String> moved = new HashMap<>();
+            idsByPath.entrySet().removeIf(entry -> {
+                String path = entry.getKey();
+                if (path.equals(previousPath) || path.startsWith(prefix)) {
+                    moved.put(newPath + path.substring(previousPath.length()), entry.getValue());
+                    return true;
+                }
+
+                return false;
+            });
+
+            moved.forEach((path, groupId) -> {
+                idsByPath.put(path, groupId);
+                pathsById.put(groupId, path);
+            });
+        }
+
+    }
+
+}
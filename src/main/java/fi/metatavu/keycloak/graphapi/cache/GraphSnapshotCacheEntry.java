@@ -0,0 +1,16 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+
+import java.util.Set;
+
+/**
+ * Cached resource of a Graph API user
+ *
+ * @param cachedAt time the resource was cached in epoch milliseconds
+ * @param properties selected user properties of a user or manager resource, or null when
+ *                   default properties were fetched
+ * @param snapshot snapshot containing the resource
+ */
+public record GraphSnapshotCacheEntry(long cachedAt, Set<String> properties, GraphUserSnapshot snapshot) {
+}
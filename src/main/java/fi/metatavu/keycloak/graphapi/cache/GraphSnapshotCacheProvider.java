@@ -0,0 +1,57 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.keycloak.provider.Provider;
+
+/**
+ * Cache of Graph API user snapshots shared between logins
+ */
+public interface GraphSnapshotCacheProvider extends Provider {
+
+    /**
+     * Returns cached resources of a user. User and manager are found only when they were cached
+     * with at least the properties of the plan.
+     *
+     * @param key cache key
+     * @param plan fetch plan to look up
+     * @return snapshot containing the resources found from the cache, never null
+     */
+    GraphUserSnapshot get(GraphSnapshotKey key, GraphFetchPlan plan);
+
+    /**
+     * Returns cached resources of a user including resources whose lifespan has passed but that
+     * are still within the stale period. Used when Graph API is unavailable.
+     *
+     * @param key cache key
+     * @param plan fetch plan to look up
+     * @return snapshot containing the resources found from the cache, never null
+     */
+    GraphUserSnapshot getStale(GraphSnapshotKey key, GraphFetchPlan plan);
+
+    /**
+     * Stores resources of a snapshot into the cache
+     *
+     * @param key cache key
+     * @param plan fetch plan the snapshot was fetched with
+     * @param snapshot snapshot
+     */
+    void put(GraphSnapshotKey key, GraphFetchPlan plan, GraphUserSnapshot snapshot);
+
+    /**
+     * Returns whether given resource is cached
+     *
+     * @param resource resource
+     * @return whether given resource is cached
+     */
+    boolean isCached(GraphResource resource);
+
+    /**
+     * Returns cache statistics of this Keycloak node
+     *
+     * @return cache statistics
+     */
+    GraphSnapshotCacheStatistics getStatistics();
+
+}
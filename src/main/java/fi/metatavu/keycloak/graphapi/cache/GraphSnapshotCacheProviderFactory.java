@@ -0,0 +1,9 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Provider factory for Graph API snapshot caches
+ */
+public interface GraphSnapshotCacheProviderFactory extends ProviderFactory<GraphSnapshotCacheProvider> {
+}
@@ -0,0 +1,35 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI for caches of Graph API user snapshots
+ */
+public class GraphSnapshotCacheSpi implements Spi {
+
+    public static final String NAME = "graph-api-snapshot-cache";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return GraphSnapshotCacheProvider.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return GraphSnapshotCacheProviderFactory.class;
+    }
+
+}
@@ -0,0 +1,11 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+/**
+ * Graph API snapshot cache statistics
+ *
+ * @param hits number of resources served from the cache
+ * @param misses number of resources not found from the cache
+ * @param staleHits number of expired resources served while Graph API was unavailable
+ */
+public record GraphSnapshotCacheStatistics(long hits, long misses, long staleHits) {
+}
@@ -0,0 +1,24 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+
+/**
+ * Cache key of a Graph API user
+ *
+ * @param tenantId Azure tenant id
+ * @param objectId Azure object id of the user
+ */
+public record GraphSnapshotKey(String tenantId, String objectId) {
+
+    /**
+     * Returns cache entry key for a resource of the user. Selected properties are not part of
+     * the key, so a resource cached with more properties is found by plans selecting fewer.
+     *
+     * @param resource resource
+     * @return cache entry key
+     */
+    String getEntryKey(GraphResource resource) {
+        return tenantId + ":" + objectId + ":" + resource.name();
+    }
+
+}
@@ -0,0 +1,194 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import fi.metatavu.keycloak.graphapi.client.GraphApiJson;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Graph API snapshot cache stored in Keycloak's Infinispan container.
+ *
+ * Each resource of a user is stored as a separate JSON entry, so resources can have different
+ * lifespans and entries stay plain strings for cluster marshalling. Entries are kept in the
+ * cache for the stale period after their lifespan, so they can still be served while Graph API is
+ * unavailable.
+ *
+ * Users and managers are stored with the properties they were selected with, and an entry is
+ * found by every plan selecting a subset of them. Plans of logins leave out mappers resolved
+ * from token claims, so they can select fewer properties than the plan a pre-warm job cached.
+ */
+public class InfinispanGraphSnapshotCacheProvider implements GraphSnapshotCacheProvider {
+
+    private static final Logger logger = Logger.getLogger(InfinispanGraphSnapshotCacheProvider.class);
+
+    private final Cache<String, String> cache;
+    private final Map<GraphResource, Long> lifespans;
+    private final long staleTtl;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder staleHits;
+
+    /**
+     * Constructor
+     *
+     * @param cache Infinispan cache or null when caching is disabled
+     * @param lifespans lifespans of resources in seconds
+     * @param staleTtl time in seconds entries are kept after their lifespan
+     * @param hits hit counter
+     * @param misses miss counter
+     * @param staleHits stale hit counter
+     */
+    public InfinispanGraphSnapshotCacheProvider(Cache<String, String> cache, Map<GraphResource, Long> lifespans, long staleTtl, LongAdder hits, LongAdder misses, LongAdder staleHits) {
+        this.cache = cache;
+        this.lifespans = lifespans;
+        this.staleTtl = staleTtl;
+        this.hits = hits;
+        this.misses = misses;
+        this.staleHits = staleHits;
+    }
+
+    @Override
+    public GraphUserSnapshot get(GraphSnapshotKey key, GraphFetchPlan plan) {
+        return get(key, plan, false);
+    }
+
+    @Override
+    public GraphUserSnapshot getStale(GraphSnapshotKey key, GraphFetchPlan plan) {
+        return get(key, plan, true);
+    }
+
+    /**
+     * Returns cached resources of a user
+     *
+     * @param key cache key
+     * @param plan fetch plan to look up
+     * @param allowStale whether resources past their lifespan are returned
+     * @return snapshot containing the resources found from the cache, never null
+     */
+    private GraphUserSnapshot get(GraphSnapshotKey key, GraphFetchPlan plan, boolean allowStale) {
+        GraphUserSnapshot result = new GraphUserSnapshot();
+        if (cache == null) {
+            return result;
+        }
+
+        for (GraphResource resource : plan.getResources()) {
+            if (!isCached(resource)) {
+                continue;
+            }
+
+            String value = cache.get(key.getEntryKey(resource));
+            if (value == null) {
+                misses.increment();
+                continue;
+            }
+
+            try {
+                GraphSnapshotCacheEntry entry = GraphApiJson.reader(GraphSnapshotCacheEntry.class).readValue(value);
+                if (!isCovered(getProperties(resource, plan), entry.properties())) {
+                    misses.increment();
+                    continue;
+                }
+
+                boolean fresh = System.currentTimeMillis() - entry.cachedAt() < TimeUnit.SECONDS.toMillis(lifespans.get(resource));
+                if (fresh) {
+                    hits.increment();
+                } else if (allowStale) {
+                    staleHits.increment();
+                } else {
+                    misses.increment();
+                    continue;
+                }
+
+                result.merge(entry.snapshot());
+            } catch (JsonProcessingException e) {
+                logger.warnf(e, "Failed to parse cached Graph API %s", resource);
+                misses.increment();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void put(GraphSnapshotKey key, GraphFetchPlan plan, GraphUserSnapshot snapshot) {
+        if (cache == null) {
+            return;
+        }
+
+        for (GraphResource resource : snapshot.getResources()) {
+            if (!isCached(resource)) {
+                continue;
+            }
+
+            GraphUserSnapshot selected = snapshot.select(resource);
+            if (selected == null) {
+                continue;
+            }
+
+            try {
+                String value = GraphApiJson.writer(GraphSnapshotCacheEntry.class).writeValueAsString(new GraphSnapshotCacheEntry(System.currentTimeMillis(), getProperties(resource, plan), selected));
+                cache.getAdvancedCache()
+                    .withFlags(Flag.IGNORE_RETURN_VALUES)
+                    .put(key.getEntryKey(resource), value, lifespans.get(resource) + staleTtl, TimeUnit.SECONDS);
+            } catch (JsonProcessingException e) {
+                logger.warnf(e, "Failed to cache Graph API %s", resource);
+            }
+        }
+    }
+
+    @Override
+    public GraphSnapshotCacheStatistics getStatistics() {
+        return new GraphSnapshotCacheStatistics(hits.sum(), misses.sum(), staleHits.sum());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isCached(GraphResource resource) {
+        return lifespans.getOrDefault(resource, 0L) > 0;
+    }
+
+    /**
+     * Returns properties a plan selects for a resource
+     *
+     * @param resource resource
+     * @param plan fetch plan
+     * @return selected properties or null when default properties are fetched or the resource
+     *         has no properties
+     */
+    private static Set<String> getProperties(GraphResource resource, GraphFetchPlan plan) {
+        return switch (resource) {
+            case USER -> plan.getUserProperties();
+            case MANAGER -> plan.getManagerProperties();
+            default -> null;
+        };
+    }
+
+    /**
+     * Returns whether cached properties cover requested properties. Default properties cover
+     * only default properties, because they do not include all properties that can be selected.
+     *
+     * @param requested requested properties or null for default properties
+     * @param cached cached properties or null for default properties
+     * @return whether cached properties cover requested properties
+     */
+    private static boolean isCovered(Set<String> requested, Set<String> cached) {
+        if (requested == null || cached == null) {
+            return requested == cached;
+        }
+
+        return cached.containsAll(requested);
+    }
+
+}
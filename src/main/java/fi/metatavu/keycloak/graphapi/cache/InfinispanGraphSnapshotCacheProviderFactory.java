@@ -0,0 +1,184 @@
+package fi.metatavu.keycloak.graphapi.cache;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Infinispan Graph API snapshot cache provider factory.
+ *
+ * Uses a cache named {@value #CACHE_NAME} from Keycloak's cache container. When the cache is not
+ * defined in the cache configuration, it is defined on first use with the clustering mode of
+ * Keycloak's work cache, so entries are visible on every node of the cluster. When a stale period is
+ * configured, entries outlive their lifespan by the stale period and are served only while Graph
+ * API is unavailable.
+ */
+public class InfinispanGraphSnapshotCacheProviderFactory implements GraphSnapshotCacheProviderFactory, ServerInfoAwareProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(InfinispanGraphSnapshotCacheProviderFactory.class);
+
+    public static final String PROVIDER_ID = "infinispan";
+    public static final String CACHE_NAME = "graph-api-snapshots";
+
+    private static final String CONFIG_USER_TTL = "userTtl";
+    private static final String CONFIG_MANAGER_TTL = "managerTtl";
+    private static final String CONFIG_GROUPS_TTL = "groupsTtl";
+    private static final String CONFIG_MAX_ENTRIES = "maxEntries";
+    private static final String CONFIG_STALE_TTL = "staleTtl";
+
+    private static final long DEFAULT_MAX_ENTRIES = 10000;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    private Map<GraphResource, Long> lifespans;
+    private long staleTtl;
+    private long maxEntries;
+    private volatile Cache<String, String> cache;
+
+    @Override
+    public GraphSnapshotCacheProvider create(KeycloakSession session) {
+        return new InfinispanGraphSnapshotCacheProvider(isEnabled() ? getCache(session) : null, lifespans, staleTtl, hits, misses, staleHits);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        long userTtl = config.getLong(CONFIG_USER_TTL, 0L);
+        long managerTtl = config.getLong(CONFIG_MANAGER_TTL, 0L);
+        long groupsTtl = config.getLong(CONFIG_GROUPS_TTL, 0L);
+
+        lifespans = new EnumMap<>(GraphResource.class);
+        lifespans.put(GraphResource.USER, userTtl);
+        lifespans.put(GraphResource.USER_GROUPS, groupsTtl);
+        lifespans.put(GraphResource.MANAGER, managerTtl);
+        lifespans.put(GraphResource.MANAGER_GROUPS, groupsTtl);
+
+        maxEntries = config.getLong(CONFIG_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        staleTtl = config.getLong(CONFIG_STALE_TTL, 0L);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (isEnabled()) {
+            logger.infof("Graph API snapshot cache enabled [lifespans=%s, staleTtl=%d, maxEntries=%d]", lifespans, staleTtl, maxEntries);
+        }
+    }
+
+    @Override
+    public void close() {
+        cache = null;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("enabled", String.valueOf(isEnabled()));
+        info.put("hits", String.valueOf(hits.sum()));
+        info.put("misses", String.valueOf(misses.sum()));
+        info.put("staleHits", String.valueOf(staleHits.sum()));
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+                .name(CONFIG_USER_TTL)
+                .type("int")
+                .helpText("Lifespan of cached Graph API users in seconds, 0 disables caching of users")
+                .defaultValue(0)
+                .add()
+            .property()
+                .name(CONFIG_MANAGER_TTL)
+                .type("int")
+                .helpText("Lifespan of cached Graph API managers in seconds, 0 disables caching of managers")
+                .defaultValue(0)
+                .add()
+            .property()
+                .name(CONFIG_GROUPS_TTL)
+                .type("int")
+                .helpText("Lifespan of cached Graph API group memberships in seconds, 0 disables caching of groups")
+                .defaultValue(0)
+                .add()
+            .property()
+                .name(CONFIG_MAX_ENTRIES)
+                .type("int")
+                .helpText("Maximum number of entries in the cache when it is defined by the extension")
+                .defaultValue(DEFAULT_MAX_ENTRIES)
+                .add()
+            .property()
+                .name(CONFIG_STALE_TTL)
+                .type("int")
+                .helpText("Time in seconds cached resources are kept after their lifespan and served while Graph API is unavailable, 0 disables stale entries")
+                .defaultValue(0)
+                .add()
+            .build();
+    }
+
+    /**
+     * Returns whether any resource is cached
+     *
+     * @return whether any resource is cached
+     */
+    private boolean isEnabled() {
+        return lifespans.values().stream().anyMatch(lifespan -> lifespan > 0);
+    }
+
+    /**
+     * Returns the Infinispan cache, defining it when necessary
+     *
+     * @param session Keycloak session
+     * @return Infinispan cache
+     */
+    private Cache<String, String> getCache(KeycloakSession session) {
+        Cache<String, String> result = cache;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            if (cache == null) {
+                InfinispanConnectionProvider connectionProvider = session.getProvider(InfinispanConnectionProvider.class);
+                Cache<Object, Object> workCache = connectionProvider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+                EmbeddedCacheManager cacheManager = workCache.getCacheManager();
+
+                if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+                    CacheMode cacheMode = workCache.getCacheConfiguration().clustering().cacheMode();
+                    cacheManager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder()
+                        .clustering().cacheMode(cacheMode)
+                        .memory().maxCount(maxEntries)
+                        .build());
+
+                    logger.infof("Defined Graph API snapshot cache [name=%s, mode=%s]", CACHE_NAME, cacheMode);
+                }
+
+                cache = cacheManager.getCache(CACHE_NAME);
+            }
+
+            return cache;
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+
+import java.net.http.HttpClient;
+import java.net.URI;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default Graph API client provider factory.
+ *
+ * Owns a single long-lived HTTP/2 client per Keycloak node, so connections to Graph API are
+ * multiplexed and reused across logins instead of being re-established on every request. The
+ * factory also owns the node's client side throttle and circuit breaker, so rate limits, breaker
+ * state and their statistics are shared by all clients.
+ */
+public class DefaultGraphApiClientProviderFactory implements GraphApiClientProviderFactory, ServerInfoAwareProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(DefaultGraphApiClientProviderFactory.class);
+
+    public static final String PROVIDER_ID = "default";
+
+    private static final String CONFIG_CONNECT_TIMEOUT = "connectTimeout";
+    private static final String CONFIG_EXECUTOR = "executor";
+    private static final String CONFIG_POOL_SIZE = "poolSize";
+    private static final String CONFIG_GROUPS_PAGE_SIZE = "groupsPageSize";
+    private static final String CONFIG_MAX_GROUPS = "maxGroups";
+    private static final String CONFIG_BATCH_ENABLED = "batchEnabled";
+    private static final String CONFIG_EXPAND_MANAGER = "expandManager";
+    private static final String CONFIG_RATE_LIMIT = "rateLimit";
+    private static final String CONFIG_RATE_LIMIT_BURST = "rateLimitBurst";
+    private static final String CONFIG_MAX_RETRIES = "maxRetries";
+    private static final String CONFIG_RETRY_BUDGET = "retryBudget";
+    private static final String CONFIG_REQUEST_TIMEOUT = "requestTimeout";
+    private static final String CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "circuitBreakerFailureThreshold";
+    private static final String CONFIG_CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+    private static final String CONFIG_LOGIN_TIMEOUT = "loginTimeout";
+    private static final String CONFIG_SNAPSHOT_NOTE = "snapshotNote";
+
+    private static final String EXECUTOR_DEFAULT = "default";
+    private static final String EXECUTOR_FIXED = "fixed";
+    private static final String EXECUTOR_VIRTUAL = "virtual";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_POOL_SIZE = 8;
+    private static final int DEFAULT_GROUPS_PAGE_SIZE = 999;
+    private static final int DEFAULT_MAX_GROUPS = 20000;
+    private static final int DEFAULT_RATE_LIMIT_BURST = 20;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final int DEFAULT_RETRY_BUDGET = 15000;
+    private static final int DEFAULT_REQUEST_TIMEOUT = 10000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_TIME = 30000;
+    private static final int DEFAULT_LOGIN_TIMEOUT = 20000;
+
+    private HttpClient httpClient;
+    private ExecutorService executor;
+    private ExecutorService fetchExecutor;
+    private GraphApiClientSettings settings;
+    private GraphApiThrottle throttle;
+    private GraphApiCircuitBreaker circuitBreaker;
+
+    private int connectTimeout;
+    private String executorType;
+    private int poolSize;
+
+    @Override
+    public GraphApiClient create(KeycloakSession session) {
+        return new GraphApiClient(httpClient, fetchExecutor, settings, throttle, circuitBreaker);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        connectTimeout = config.getInt(CONFIG_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+        executorType = config.get(CONFIG_EXECUTOR, EXECUTOR_FIXED);
+        poolSize = config.getInt(CONFIG_POOL_SIZE, DEFAULT_POOL_SIZE);
+
+        settings = new GraphApiClientSettings();
+        settings.setGroupsPageSize(config.getInt(CONFIG_GROUPS_PAGE_SIZE, DEFAULT_GROUPS_PAGE_SIZE));
+        settings.setMaxGroups(config.getInt(CONFIG_MAX_GROUPS, DEFAULT_MAX_GROUPS));
+        settings.setBatchEnabled(config.getBoolean(CONFIG_BATCH_ENABLED, false));
+        settings.setExpandManager(config.getBoolean(CONFIG_EXPAND_MANAGER, false));
+        settings.setRateLimit(config.getInt(CONFIG_RATE_LIMIT, 0));
+        settings.setRateLimitBurst(config.getInt(CONFIG_RATE_LIMIT_BURST, DEFAULT_RATE_LIMIT_BURST));
+        settings.setMaxRetries(config.getInt(CONFIG_MAX_RETRIES, DEFAULT_MAX_RETRIES));
+        settings.setRetryBudget(config.getInt(CONFIG_RETRY_BUDGET, DEFAULT_RETRY_BUDGET));
+        settings.setRequestTimeout(config.getInt(CONFIG_REQUEST_TIMEOUT, DEFAULT_REQUEST_TIMEOUT));
+        settings.setCircuitBreakerFailureThreshold(config.getInt(CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD));
+        settings.setCircuitBreakerOpenTime(config.getInt(CONFIG_CIRCUIT_BREAKER_OPEN_TIME, DEFAULT_CIRCUIT_BREAKER_OPEN_TIME));
+        settings.setLoginTimeout(config.getInt(CONFIG_LOGIN_TIMEOUT, DEFAULT_LOGIN_TIMEOUT));
+        settings.setSnapshotNoteFormat(GraphSnapshotNoteFormat.valueOf(config.get(CONFIG_SNAPSHOT_NOTE, GraphSnapshotNoteFormat.COMPACT.name()).toUpperCase(Locale.ROOT)));
+
+        throttle = new GraphApiThrottle(settings);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(connectTimeout));
+
+        executor = createExecutor();
+        if (executor != null) {
+            builder.executor(executor);
+        }
+
+        httpClient = builder.build();
+        fetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        circuitBreaker = new GraphApiCircuitBreaker(settings, httpClient, fetchExecutor, URI.create(GraphApiClient.getGraphApiUrl()));
+
+        logger.infof(
+            "Graph API HTTP client started [connectTimeout=%d, executor=%s, poolSize=%d]",
+            connectTimeout,
+            executorType,
+            poolSize
+        );
+    }
+
+    @Override
+    public void close() {
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+
+        shutdown(fetchExecutor);
+        fetchExecutor = null;
+
+        shutdown(executor);
+        executor = null;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        GraphApiThrottleStatistics statistics = throttle.getStatistics();
+
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("rateLimit", String.valueOf(settings.getRateLimit()));
+        info.put("snapshotNote", settings.getSnapshotNoteFormat().name().toLowerCase(Locale.ROOT));
+        info.put("throttledResponses", String.valueOf(statistics.throttledResponses()));
+        info.put("retries", String.valueOf(statistics.retries()));
+        info.put("delayedRequests", String.valueOf(statistics.delayedRequests()));
+        info.put("exhaustedRequests", String.valueOf(statistics.exhaustedRequests()));
+        info.put("circuitBreakerOpen", String.valueOf(circuitBreaker != null && circuitBreaker.isOpen()));
+        info.put("circuitBreakerTrips", String.valueOf(circuitBreaker != null ? circuitBreaker.getTrips() : 0));
+        info.put("rejectedRequests", String.valueOf(circuitBreaker != null ? circuitBreaker.getRejectedRequests() : 0));
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+                .name(CONFIG_CONNECT_TIMEOUT)
+                .type("int")
+                .helpText("Connect timeout for Graph API connections in milliseconds")
+                .defaultValue(DEFAULT_CONNECT_TIMEOUT)
+                .add()
+            .property()
+                .name(CONFIG_EXECUTOR)
+                .type("string")
+                .helpText("Executor used by the HTTP client: fixed, virtual or default")
+                .options(EXECUTOR_FIXED, EXECUTOR_VIRTUAL, EXECUTOR_DEFAULT)
+                .defaultValue(EXECUTOR_FIXED)
+                .add()
+            .property()
+                .name(CONFIG_POOL_SIZE)
+                .type("int")
+                .helpText("Number of threads in the fixed executor")
+                .defaultValue(DEFAULT_POOL_SIZE)
+                .add()
+            .property()
+                .name(CONFIG_GROUPS_PAGE_SIZE)
+                .type("int")
+                .helpText("Page size ($top) for group membership listings, at most 999")
+                .defaultValue(DEFAULT_GROUPS_PAGE_SIZE)
+                .add()
+            .property()
+                .name(CONFIG_MAX_GROUPS)
+                .type("int")
+                .helpText("Maximum number of groups read for a single user")
+                .defaultValue(DEFAULT_MAX_GROUPS)
+                .add()
+            .property()
+                .name(CONFIG_BATCH_ENABLED)
+                .type("boolean")
+                .helpText("Whether Graph API reads of a login are sent through the JSON batch endpoint")
+                .defaultValue(false)
+                .add()
+            .property()
+                .name(CONFIG_EXPAND_MANAGER)
+                .type("boolean")
+                .helpText("Whether the manager is expanded into the user request when both are needed")
+                .defaultValue(false)
+                .add()
+            .property()
+                .name(CONFIG_RATE_LIMIT)
+                .type("int")
+                .helpText("Maximum Graph API requests per second per Azure tenant on this node, 0 disables the client side rate limit")
+                .defaultValue(0)
+                .add()
+            .property()
+                .name(CONFIG_RATE_LIMIT_BURST)
+                .type("int")
+                .helpText("Number of requests per tenant that may be sent at once above the rate limit")
+                .defaultValue(DEFAULT_RATE_LIMIT_BURST)
+                .add()
+            .property()
+                .name(CONFIG_MAX_RETRIES)
+                .type("int")
+                .helpText("Maximum number of retries of a throttled (429 or 503) Graph API request")
+                .defaultValue(DEFAULT_MAX_RETRIES)
+                .add()
+            .property()
+                .name(CONFIG_RETRY_BUDGET)
+                .type("int")
+                .helpText("Maximum time in milliseconds a Graph API request may spend waiting for rate limits and retries")
+                .defaultValue(DEFAULT_RETRY_BUDGET)
+                .add()
+            .property()
+                .name(CONFIG_REQUEST_TIMEOUT)
+                .type("int")
+                .helpText("Timeout in milliseconds for a single Graph API response")
+                .defaultValue(DEFAULT_REQUEST_TIMEOUT)
+                .add()
+            .property()
+                .name(CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD)
+                .type("int")
+                .helpText("Number of consecutive failed Graph API requests after which requests fail fast until Graph API recovers, 0 disables the circuit breaker")
+                .defaultValue(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD)
+                .add()
+            .property()
+                .name(CONFIG_CIRCUIT_BREAKER_OPEN_TIME)
+                .type("int")
+                .helpText("Interval in milliseconds between background probes of Graph API while the circuit breaker is open")
+                .defaultValue(DEFAULT_CIRCUIT_BREAKER_OPEN_TIME)
+                .add()
+            .property()
+                .name(CONFIG_LOGIN_TIMEOUT)
+                .type("int")
+                .helpText("Time in milliseconds all Graph API calls of a login may take. Optional calls are skipped first when the remaining time runs low. 0 disables the login deadline")
+                .defaultValue(DEFAULT_LOGIN_TIMEOUT)
+                .add()
+            .property()
+                .name(CONFIG_SNAPSHOT_NOTE)
+                .type("string")
+                .helpText("How the Graph API snapshot of a login is kept in the replicated authentication session: compact, json or none. With none, mappers running in later requests of the login read Graph API or the snapshot cache again")
+                .options("compact", "json", "none")
+                .defaultValue("compact")
+                .add()
+            .build();
+    }
+
+    /**
+     * Shuts down an executor, waiting briefly for running tasks
+     *
+     * @param executorService executor or null
+     */
+    private void shutdown(ExecutorService executorService) {
+        if (executorService == null) {
+            return;
+        }
+
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates executor for the HTTP client according to configuration
+     *
+     * @return executor or null when the JDK default executor should be used
+     */
+    private ExecutorService createExecutor() {
+        return switch (executorType) {
+            case EXECUTOR_VIRTUAL -> Executors.newVirtualThreadPerTaskExecutor();
+            case EXECUTOR_DEFAULT -> null;
+            default -> Executors.newFixedThreadPool(poolSize, createThreadFactory());
+        };
+    }
+
+    /**
+     * Creates thread factory for daemon HTTP client threads
+     *
+     * @return thread factory
+     */
+    private ThreadFactory createThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "graph-api-http-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,192 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchRequest;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchRequestItem;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchResponse;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchResponseItem;
+import org.jboss.logging.Logger;
+import org.keycloak.representations.AccessTokenResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects Graph API GET requests and executes them through the JSON batch endpoint in a single
+ * round trip.
+ *
+ * Sub-requests that fail inside the batch, or all of them when the batch request itself fails,
+ * are retried as individual requests. Batches with a single request are sent directly.
+ */
+class GraphApiBatch {
+
+    private static final Logger logger = Logger.getLogger(GraphApiBatch.class);
+
+    static final int MAX_BATCH_SIZE = 20;
+
+    private final GraphApiClient client;
+    private final AccessTokenResponse accessToken;
+    private final List<Part<?>> parts = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param client Graph API client
+     * @param accessToken access token
+     */
+    GraphApiBatch(GraphApiClient client, AccessTokenResponse accessToken) {
+        this.client = client;
+        this.accessToken = accessToken;
+    }
+
+    /**
+     * Adds a request into the batch
+     *
+     * @param path API path relative to the Graph API base URL
+     * @param decoder response decoder
+     * @return part that holds the result after execution
+     * @param <T> result type
+     */
+    <T> Part<T> add(String path, GraphApiClient.ResponseDecoder<T> decoder) {
+        if (parts.size() >= MAX_BATCH_SIZE) {
+            throw new IllegalStateException("Graph API batch is full");
+        }
+
+        Part<T> part = new Part<>(String.valueOf(parts.size() + 1), path, decoder);
+        parts.add(part);
+        return part;
+    }
+
+    /**
+     * Executes the batch
+     */
+    void execute() {
+        if (parts.isEmpty()) {
+            return;
+        }
+
+        if (parts.size() == 1) {
+            parts.getFirst().executeIndividually();
+            return;
+        }
+
+        GraphBatchResponse response;
+        try {
+            response = client.postBatch(accessToken, createRequest());
+        } catch (IOException e) {
+            logger.warnf("Graph batch request failed, falling back to individual requests [error=%s]", e.getMessage());
+            parts.forEach(Part::executeIndividually);
+            return;
+        }
+
+        Map<String, GraphBatchResponseItem> items = new HashMap<>();
+        if (response != null && response.getResponses() != null) {
+            response.getResponses().forEach(item -> items.put(item.getId(), item));
+        }
+
+        for (Part<?> part : parts) {
+            part.complete(items.get(part.id));
+        }
+    }
+
+    /**
+     * Creates batch request model
+     *
+     * @return batch request
+     */
+    private GraphBatchRequest createRequest() {
+        List<GraphBatchRequestItem> items = new ArrayList<>(parts.size());
+        for (Part<?> part : parts) {
+            GraphBatchRequestItem item = new GraphBatchRequestItem();
+            item.setId(part.id);
+            item.setMethod("GET");
+            item.setUrl("/" + part.path);
+            items.add(item);
+        }
+
+        GraphBatchRequest request = new GraphBatchRequest();
+        request.setRequests(items);
+        return request;
+    }
+
+    /**
+     * Single request of the batch
+     *
+     * @param <T> result type
+     */
+    class Part<T> {
+
+        private final String id;
+        private final String path;
+        private final GraphApiClient.ResponseDecoder<T> decoder;
+        private T result;
+        private IOException error;
+
+        private Part(String id, String path, GraphApiClient.ResponseDecoder<T> decoder) {
+            this.id = id;
+            this.path = path;
+            this.decoder = decoder;
+        }
+
+        /**
+         * Returns result of the request
+         *
+         * @return result or null if resource was not found
+         * @throws IOException thrown when request failed
+         */
+        T get() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+
+            return result;
+        }
+
+        /**
+         * Completes the part from a batch response item, falling back to an individual request
+         * when the sub-request failed
+         *
+         * @param item batch response item or null if batch response did not contain the part
+         */
+        private void complete(GraphBatchResponseItem item) {
+            if (item == null) {
+                logger.warnf("Graph batch response missing [path=%s], falling back to individual request", path);
+                executeIndividually();
+                return;
+            }
+
+            int status = item.getStatus();
+            if (status == 404) {
+                result = null;
+                return;
+            }
+
+            if (status != 200 || item.getBody() == null) {
+                logger.warnf("Graph batch sub-request failed [path=%s, status=%d], falling back to individual request", path, status);
+                executeIndividually();
+                return;
+            }
+
+            try (JsonParser parser = GraphApiJson.mapper().treeAsTokens(item.getBody())) {
+                result = decoder.decode(parser);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Executes the request individually
+         */
+        private void executeIndividually() {
+            try {
+                result = client.getGraphApiResource(accessToken, path, decoder);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker of Graph API requests.
+ *
+ * The breaker opens after a number of consecutive failed exchanges, where a failure is a connect
+ * error, a timeout or a 5xx response. Throttled responses (429 and 503) are retried by the client
+ * and recorded only when the client gives the request up, so a throttling burst that is honored
+ * with Retry-After does not open the breaker. While the breaker is open, Graph API requests fail
+ * immediately instead of waiting for timeouts, so logins are not held up by an outage. Recovery
+ * is probed in the background with an unauthenticated request to the Graph API root, and the
+ * breaker closes as soon as Graph API answers the probe with anything but a server error. The
+ * breaker state is kept per Keycloak node.
+ */
+class GraphApiCircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(GraphApiCircuitBreaker.class);
+
+    private final int failureThreshold;
+    private final long openTime;
+    private final long requestTimeout;
+    private final HttpClient httpClient;
+    private final Executor executor;
+    private final URI probeUri;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean open = new AtomicBoolean();
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param settings client settings
+     * @param httpClient HTTP client used for recovery probes
+     * @param executor executor used for scheduling recovery probes
+     * @param probeUri URI requested by recovery probes
+     */
+    GraphApiCircuitBreaker(GraphApiClientSettings settings, HttpClient httpClient, Executor executor, URI probeUri) {
+        this.failureThreshold = settings.getCircuitBreakerFailureThreshold();
+        this.openTime = settings.getCircuitBreakerOpenTime();
+        this.requestTimeout = settings.getRequestTimeout();
+        this.httpClient = httpClient;
+        this.executor = executor;
+        this.probeUri = probeUri;
+    }
+
+    /**
+     * Returns whether the breaker is open and requests should not be sent
+     *
+     * @return whether the breaker is open
+     */
+    boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * Records a request that was not sent because the breaker is open
+     *
+     * @return exception to fail the request with
+     */
+    IOException reject() {
+        rejectedRequests.increment();
+        return new IOException("Graph API circuit breaker is open");
+    }
+
+    /**
+     * Records outcome of a single HTTP exchange with Graph API
+     *
+     * @param response response or null if the exchange failed
+     * @param error error or null if a response was received
+     */
+    void record(HttpResponse<?> response, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) {
+            return;
+        }
+
+        if (cause != null || response.statusCode() >= 500) {
+            onFailure();
+        } else {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * Returns number of times the breaker has opened on this Keycloak node
+     *
+     * @return number of times the breaker has opened
+     */
+    long getTrips() {
+        return trips.sum();
+    }
+
+    /**
+     * Returns number of requests failed fast while the breaker was open
+     *
+     * @return number of rejected requests
+     */
+    long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    /**
+     * Counts a failed exchange and opens the breaker when the threshold is reached
+     */
+    private void onFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && open.compareAndSet(false, true)) {
+            trips.increment();
+            logger.warnf("Graph API circuit breaker opened [consecutiveFailures=%d, probeInterval=%dms]", consecutiveFailures.get(), openTime);
+            scheduleProbe();
+        }
+    }
+
+    /**
+     * Schedules a recovery probe after the open time
+     */
+    private void scheduleProbe() {
+        CompletableFuture.runAsync(this::probe, CompletableFuture.delayedExecutor(openTime, TimeUnit.MILLISECONDS, executor))
+            .exceptionally(e -> {
+                logger.debug("Graph API circuit breaker probe could not be scheduled", e);
+                return null;
+            });
+    }
+
+    /**
+     * Probes whether Graph API responds again and closes the breaker when it does
+     */
+    private void probe() {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(probeUri)
+            .timeout(Duration.ofMillis(requestTimeout))
+            .GET()
+            .build();
+
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error == null && response.statusCode() < 500) {
+                consecutiveFailures.set(0);
+                open.set(false);
+                logger.infof("Graph API circuit breaker closed [probeStatus=%d]", response.statusCode());
+            } else {
+                logger.debugf("Graph API circuit breaker probe failed [status=%s, error=%s]", response != null ? response.statusCode() : null, error);
+                scheduleProbe();
+            }
+        });
+    }
+
+}
@@ -1,47 +1,351 @@
 package fi.metatavu.keycloak.graphapi.client;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import fi.metatavu.keycloak.graphapi.client.model.CheckMemberGroupsRequest;
+import fi.metatavu.keycloak.graphapi.client.model.CheckMemberGroupsResponse;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchRequest;
+import fi.metatavu.keycloak.graphapi.client.model.GraphBatchResponse;
+import fi.metatavu.keycloak.graphapi.client.model.GraphUserWithManager;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
 import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroupsResponse;
+import fi.metatavu.keycloak.graphapi.history.GraphMapperExecution;
+import fi.metatavu.keycloak.graphapi.metrics.GraphApiMetrics;
 import fi.metatavu.keycloak.graphapi.model.GraphProfilePosition;
-import fi.metatavu.keycloak.graphapi.model.GraphProfilePositionsResponse;
 import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserPhoto;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import fi.metatavu.keycloak.graphapi.tracing.GraphApiTracing;
+import io.micrometer.core.instrument.Tags;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
 import org.jboss.logging.Logger;
+import org.keycloak.provider.Provider;
 import org.keycloak.representations.AccessTokenResponse;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpTimeoutException;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 
 /**
- * Microsoft Graph API client
+ * Microsoft Graph API client.
+ *
+ * Instances are obtained from the Keycloak session and share the node-wide HTTP client
+ * owned by {@link DefaultGraphApiClientProviderFactory}.
  */
-public class GraphApiClient {
+public class GraphApiClient implements Provider {
     private static final Logger logger = Logger.getLogger(GraphApiClient.class);
 
+    private static final int MAX_GROUPS_PAGE_SIZE = 999;
+
+    private static final String USER_PATH = "me";
+    private static final String OTHER_USER_PATH = "users/%s";
+    private static final String DEFAULT_MANAGER_SELECT = "id,businessPhones,displayName,givenName,jobTitle,mail,mobilePhone,officeLocation,preferredLanguage,surname,userPrincipalName,companyName,department";
+    private static final String PROFILE_POSITIONS_PATH = "%s/profile/positions?$top=1";
+    private static final String GROUPS_PATH = "%s/transitiveMemberOf/microsoft.graph.group";
+    private static final String MANAGER_PATH = "%s/manager";
+    private static final String GROUP_MEMBERS_PATH = "groups/%s/transitiveMembers/microsoft.graph.user?$select=id&$top=999";
+    private static final String GROUPS_BY_DISPLAY_NAME_PATH = "groups?$filter=%s&$select=id,displayName";
+    private static final String GROUPS_DELTA_PATH = "groups/delta?$filter=%s&$select=displayName,members";
+    private static final String CLIENT_CREDENTIALS_SCOPE = "https://graph.microsoft.com/.default";
+    private static final int MAX_GROUPS_DELTA_FILTER_IDS = 50;
+    private static final String CHECK_MEMBER_GROUPS_PATH = "me/checkMemberGroups";
+    private static final String PHOTO_PATH = "%s/photos/%s/$value";
+    private static final String DEFAULT_PHOTO_CONTENT_TYPE = "image/jpeg";
+    private static final int MAX_PHOTO_BYTES = 256 * 1024;
+    private static final int MAX_CHECK_MEMBER_GROUPS_IDS = 20;
+
+    private final String graphApiUrl;
+    private final HttpClient httpClient;
+    private final Executor fetchExecutor;
+    private final GraphApiClientSettings settings;
+    private final GraphApiThrottle throttle;
+    private final GraphApiCircuitBreaker circuitBreaker;
+    private GraphLoginDeadline loginDeadline;
+    private Tags metricTags = GraphApiMetrics.getUnknownTags();
+    private GraphMapperExecution execution;
+
+    /**
+     * Constructor
+     *
+     * @param httpClient shared HTTP client
+     * @param fetchExecutor executor for concurrent snapshot fetches
+     * @param settings client settings
+     * @param throttle client side throttle shared by clients of the node
+     * @param circuitBreaker circuit breaker shared by clients of the node
+     */
+    GraphApiClient(HttpClient httpClient, Executor fetchExecutor, GraphApiClientSettings settings, GraphApiThrottle throttle, GraphApiCircuitBreaker circuitBreaker) {
+        this(httpClient, fetchExecutor, settings, throttle, circuitBreaker, getGraphApiUrl());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param httpClient shared HTTP client
+     * @param fetchExecutor executor for concurrent snapshot fetches
+     * @param settings client settings
+     * @param throttle client side throttle shared by clients of the node
+     * @param circuitBreaker circuit breaker shared by clients of the node
+     * @param graphApiUrl Graph API base URL
+     */
+    GraphApiClient(HttpClient httpClient, Executor fetchExecutor, GraphApiClientSettings settings, GraphApiThrottle throttle, GraphApiCircuitBreaker circuitBreaker, String graphApiUrl) {
+        this.graphApiUrl = graphApiUrl;
+        this.httpClient = httpClient;
+        this.fetchExecutor = fetchExecutor;
+        this.settings = settings;
+        this.throttle = throttle;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns whether Graph API is available. Graph API is unavailable while the circuit breaker
+     * is open after repeated failures, and requests fail immediately until it recovers.
+     *
+     * @return whether Graph API is available
+     */
+    public boolean isAvailable() {
+        return !circuitBreaker.isOpen();
+    }
+
+    /**
+     * Returns how the snapshot of a login is kept in the authentication session
+     *
+     * @return snapshot note format
+     */
+    public GraphSnapshotNoteFormat getSnapshotNoteFormat() {
+        return settings.getSnapshotNoteFormat();
+    }
+
+    /**
+     * Starts the login deadline of this client unless it is already running. Every Graph API
+     * request sent after this is bounded by the deadline, and optional calls are skipped when
+     * the remaining time runs low. Clients are scoped to a Keycloak session, so the deadline
+     * covers the Graph API calls of a single login request.
+     */
+    public void startLoginDeadline() {
+        if (loginDeadline == null && settings.getLoginTimeout() > 0) {
+            loginDeadline = new GraphLoginDeadline(settings.getLoginTimeout());
+        }
+    }
+
+    /**
+     * Sets realm and identity provider that metrics of this client's requests are tagged with
+     *
+     * @param realm realm name
+     * @param identityProviderAlias identity provider alias
+     */
+    public void setMetricTags(String realm, String identityProviderAlias) {
+        metricTags = GraphApiMetrics.getTags(realm, identityProviderAlias);
+    }
+
+    /**
+     * Sets mapper execution that requests of this client are recorded into
+     *
+     * @param execution mapper execution or null to stop recording
+     */
+    public void setExecution(GraphMapperExecution execution) {
+        this.execution = execution;
+    }
+
+    /**
+     * Returns Graph API data needed for a login.
+     *
+     * When batching is enabled, independent requests are sent through the JSON batch endpoint
+     * in one round trip and requests that depend on the manager id in a second one. Otherwise,
+     * user, user groups and manager are fetched concurrently, and when manager expansion is
+     * enabled, user and manager are read with a single request. Failures of single resources are
+     * logged and the resource is left empty in the snapshot. While the circuit breaker is open,
+     * nothing is fetched and all resources are left empty.
+     *
+     * @param accessToken access token
+     * @param resources resources to fetch
+     * @return snapshot of fetched resources
+     */
+    public GraphUserSnapshot getSnapshot(AccessTokenResponse accessToken, Set<GraphResource> resources) {
+        return getSnapshot(accessToken, GraphFetchPlan.of(resources));
+    }
+
+    /**
+     * Returns Graph API data described by a fetch plan. User and manager are read with the
+     * $select projections of the plan and profile positions are read only when the plan needs
+     * company properties.
+     *
+     * @param accessToken access token
+     * @param plan fetch plan
+     * @return snapshot of fetched resources
+     */
+    public GraphUserSnapshot getSnapshot(AccessTokenResponse accessToken, GraphFetchPlan plan) {
+        return getSnapshot(accessToken, USER_PATH, plan);
+    }
+
+    /**
+     * Returns Graph API data of a user described by a fetch plan. Used with app-only tokens to
+     * read data of users other than the signed-in user.
+     *
+     * @param accessToken access token
+     * @param userId Azure object id of the user
+     * @param plan fetch plan
+     * @return snapshot of fetched resources
+     */
+    public GraphUserSnapshot getUserSnapshot(AccessTokenResponse accessToken, String userId, GraphFetchPlan plan) {
+        return getSnapshot(accessToken, getOtherUserPath(userId), plan);
+    }
+
+    /**
+     * Returns Azure object id of a user
+     *
+     * @param accessToken access token
+     * @param userPrincipalName user principal name or object id of the user
+     * @return object id or null if the user is not found
+     * @throws IOException thrown when request fails
+     */
+    public String getUserObjectId(AccessTokenResponse accessToken, String userPrincipalName) throws IOException {
+        GraphUser user = getGraphApiResource(accessToken, withSelect(getOtherUserPath(userPrincipalName), "id"), GraphUser.class);
+        return user != null ? user.getId() : null;
+    }
+
     /**
-     * Returns logged user's membership of groups
+     * Returns object ids of users that are direct or transitive members of a group. All pages are
+     * fetched until the limit is reached.
      *
      * @param accessToken access token
-     * @return logged user's membership of groups
+     * @param groupId Azure object id of the group
+     * @param max maximum number of ids to return
+     * @return member user ids
+     * @throws IOException thrown when request fails, the group is not found or a page of the
+     *                     listing is not found
+     */
+    public List<String> getGroupMemberIds(AccessTokenResponse accessToken, String groupId, int max) throws IOException {
+        List<String> result = new ArrayList<>();
+        String[] nextLink = { String.format("%s/%s", graphApiUrl, String.format(GROUP_MEMBERS_PATH, encodePathSegment(groupId))) };
+        int page = 0;
+
+        while (nextLink[0] != null && result.size() < max) {
+            HttpResponse<InputStream> response = await(sendAsync(accessToken, createRequest(accessToken, URI.create(nextLink[0])), ++page));
+            nextLink[0] = null;
+
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 404) {
+                    throw new IOException(page == 1
+                        ? String.format("Group %s not found", groupId)
+                        : String.format("Page %d of members of group %s not found, member list is incomplete", page, groupId));
+                } else if (response.statusCode() != 200) {
+                    throw new IOException(String.format("Failed to execute: %s", response.statusCode()));
+                }
+
+                try (JsonParser parser = GraphApiJson.factory().createParser(body)) {
+                    GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(parser, new GraphApiStreamingDecoder.GroupPageCallback() {
+                        @Override
+                        public void nextLink(String link) {
+                            nextLink[0] = link;
+                        }
+
+                        @Override
+                        public boolean group(TransitiveMemberOfGroup member) {
+                            if (result.size() >= max) {
+                                return false;
+                            }
+
+                            result.add(member.getId().toString());
+                            return true;
+                        }
+                    });
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns Graph API data of a user described by a fetch plan
+     *
+     * @param accessToken access token
+     * @param userPath path of the user, me for the signed-in user
+     * @param plan fetch plan
+     * @return snapshot of fetched resources
+     */
+    private GraphUserSnapshot getSnapshot(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan) {
+        if (!isAvailable()) {
+            circuitBreaker.reject();
+            logger.debugf("Graph API circuit breaker is open, skipping fetch [resources=%s]", plan.getResources());
+            GraphUserSnapshot snapshot = new GraphUserSnapshot();
+            snapshot.getResources().addAll(plan.getResources());
+            return snapshot;
+        }
+
+        GraphUserSnapshot snapshot = settings.isBatchEnabled() ? getSnapshotBatched(accessToken, userPath, plan) : getSnapshotIndividually(accessToken, userPath, plan);
+        snapshot.getResources().addAll(plan.getResources());
+        return snapshot;
+    }
+
+    /**
+     * Returns logged user's membership of groups. All pages are fetched.
+     *
+     * @param accessToken access token
+     * @return logged user's membership of groups or null if the user is not found
      * @throws IOException thrown when request fails
      */
     public TransitiveMemberOfGroupsResponse getTransitiveMemberOfGroups(AccessTokenResponse accessToken) throws IOException {
-        return getGraphApiResource(accessToken, "me/transitiveMemberOf/microsoft.graph.group?$select=id,displayName,description,mail", TransitiveMemberOfGroupsResponse.class);
+        return collectGroups(visitor -> visitTransitiveMemberOfGroups(accessToken, visitor));
     }
 
     /**
-     * Returns user's membership of groups by user id
+     * Returns user's membership of groups by user id. All pages are fetched.
      *
      * @param accessToken access token
      * @param userId user id
-     * @return user's membership of groups
+     * @return user's membership of groups or null if the user is not found
      * @throws IOException thrown when request fails
      */
     public TransitiveMemberOfGroupsResponse getTransitiveMemberOfGroupsForUser(AccessTokenResponse accessToken, String userId) throws IOException {
-        return getGraphApiResource(accessToken, String.format("users/%s/transitiveMemberOf/microsoft.graph.group?$select=id,displayName,description,mail", userId), TransitiveMemberOfGroupsResponse.class);
+        return collectGroups(visitor -> visitTransitiveMemberOfGroupsForUser(accessToken, userId, visitor));
+    }
+
+    /**
+     * Streams logged user's membership of groups page by page into the visitor.
+     *
+     * @param accessToken access token
+     * @param visitor group visitor
+     * @return true when all groups were visited, false when the configured group cap was reached
+     * @throws IOException thrown when request fails or the user or a page is not found
+     */
+    public boolean visitTransitiveMemberOfGroups(AccessTokenResponse accessToken, TransitiveMemberOfGroupVisitor visitor) throws IOException {
+        return visitGroupPages(accessToken, String.format(GROUPS_PATH, USER_PATH), visitor);
+    }
+
+    /**
+     * Streams user's membership of groups page by page into the visitor.
+     *
+     * @param accessToken access token
+     * @param userId user id
+     * @param visitor group visitor
+     * @return true when all groups were visited, false when the configured group cap was reached
+     * @throws IOException thrown when request fails or the user or a page is not found
+     */
+    public boolean visitTransitiveMemberOfGroupsForUser(AccessTokenResponse accessToken, String userId, TransitiveMemberOfGroupVisitor visitor) throws IOException {
+        return visitGroupPages(accessToken, String.format(GROUPS_PATH, getOtherUserPath(userId)), visitor);
     }
 
     /**
@@ -52,12 +356,12 @@ public class GraphApiClient {
      * @throws IOException thrown when request fails
      */
     public GraphUser getManager(AccessTokenResponse accessToken) throws IOException {
-        GraphUser manager = getGraphApiResource(accessToken, "me/manager", GraphUser.class);
+        GraphUser manager = getGraphApiResource(accessToken, String.format(MANAGER_PATH, USER_PATH), GraphUser.class);
         if (manager == null || manager.getId() == null) {
             return manager;
         }
 
-        return enrichWithProfileCompany(accessToken, manager, String.format("users/%s/profile/positions?$top=1", manager.getId()));
+        return enrichWithProfileCompany(accessToken, manager, String.format(PROFILE_POSITIONS_PATH, getOtherUserPath(manager.getId())));
     }
 
     /**
@@ -68,185 +372,1494 @@ public class GraphApiClient {
      * @throws IOException thrown when request fails
      */
     public GraphUser getUser(AccessTokenResponse accessToken) throws IOException {
-        GraphUser user = getGraphApiResource(accessToken, "me", GraphUser.class);
+        GraphUser user = getGraphApiResource(accessToken, USER_PATH, GraphUser.class);
         if (user == null) {
             return null;
         }
 
-        return enrichWithProfileCompany(accessToken, user, "me/profile/positions?$top=1");
+        return enrichWithProfileCompany(accessToken, user, String.format(PROFILE_POSITIONS_PATH, USER_PATH));
     }
 
     /**
-     * Populates companyName and department from profile positions when top-level fields are missing.
+     * Returns profile photo of logged user. When an entity tag of a previously read photo is
+     * given, the photo is downloaded only if it has changed since.
+     *
+     * The photo is optional enrichment, so the request is skipped and reported as not modified
+     * when the login is already running low on time. Photos larger than 256 KiB are rejected,
+     * because they are stored in a user attribute.
      *
      * @param accessToken access token
-     * @param user user to enrich
-     * @param profilePath profile positions endpoint path
-     * @return enriched user
+     * @param size photo size such as 96x96
+     * @param entityTag entity tag of the previously read photo or null
+     * @return response with the photo. The photo is null if the user has no photo
+     * @throws IOException thrown when request fails or the photo is too large
      */
-    private GraphUser enrichWithProfileCompany(AccessTokenResponse accessToken, GraphUser user, String profilePath) {
-        logger.infof(
-            "Graph profile enrichment start [path=%s, userId=%s, companyName='%s', department='%s']",
-            profilePath,
-            user.getId(),
-            user.getCompanyName(),
-            user.getDepartment()
-        );
+    public GraphConditionalResponse<GraphUserPhoto> getPhoto(AccessTokenResponse accessToken, String size, String entityTag) throws IOException {
+        String path = String.format(PHOTO_PATH, USER_PATH, encodePathSegment(size));
 
-        if (hasText(user.getCompanyName()) && hasText(user.getDepartment())) {
-            logger.infof(
-                "Graph profile enrichment skipped [path=%s, userId=%s, reason=top-level-fields-present]",
-                profilePath,
-                user.getId()
-            );
-            return user;
+        if (!isAllowed(GraphCallPriority.OPTIONAL, path)) {
+            return GraphConditionalResponse.notModified(entityTag);
         }
 
-        GraphProfilePosition profilePosition = getLatestProfilePosition(accessToken, profilePath);
-        if (profilePosition == null || profilePosition.getDetail() == null || profilePosition.getDetail().getCompany() == null) {
-            logger.infof(
-                "Graph profile enrichment no company data [path=%s, userId=%s]",
-                profilePath,
-                user.getId()
-            );
-            return user;
-        }
+        return getConditionalResource(accessToken, path, entityTag, (headers, body) -> {
+            byte[] content = body.readNBytes(MAX_PHOTO_BYTES + 1);
+            if (content.length > MAX_PHOTO_BYTES) {
+                throw new IOException(String.format("Photo exceeds %d bytes", MAX_PHOTO_BYTES));
+            }
 
-        String profileCompanyName = profilePosition.getDetail().getCompany().getDisplayName();
-        String profileDepartment = profilePosition.getDetail().getCompany().getDepartment();
-        logger.infof(
-            "Graph profile company data [path=%s, userId=%s, profileCompanyName='%s', profileDepartment='%s']",
-            profilePath,
-            user.getId(),
-            profileCompanyName,
-            profileDepartment
-        );
+            return new GraphUserPhoto(content, headers.firstValue("Content-Type").orElse(DEFAULT_PHOTO_CONTENT_TYPE));
+        });
+    }
 
-        if (!hasText(user.getCompanyName())) {
-            user.setCompanyName(profileCompanyName);
-        }
+    /**
+     * Returns an app-only access token for Graph API using the client credentials grant
+     *
+     * @param tokenUrl token endpoint URL
+     * @param clientId client id
+     * @param clientSecret client secret
+     * @return access token
+     * @throws IOException thrown when request fails
+     */
+    public AccessTokenResponse getClientCredentialsToken(String tokenUrl, String clientId, String clientSecret) throws IOException {
+        String form = String.join("&",
+            "grant_type=client_credentials",
+            "client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8),
+            "client_secret=" + URLEncoder.encode(clientSecret, StandardCharsets.UTF_8),
+            "scope=" + URLEncoder.encode(CLIENT_CREDENTIALS_SCOPE, StandardCharsets.UTF_8)
+        );
 
-        if (!hasText(user.getDepartment())) {
-            user.setDepartment(profileDepartment);
-        }
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(tokenUrl))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .timeout(Duration.ofMillis(settings.getRequestTimeout()))
+            .POST(HttpRequest.BodyPublishers.ofString(form))
+            .build();
 
-        logger.infof(
-            "Graph profile enrichment result [path=%s, userId=%s, companyName='%s', department='%s']",
-            profilePath,
-            user.getId(),
-            user.getCompanyName(),
-            user.getDepartment()
-        );
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            AccessTokenResponse result = handleResponse(response, readerDecoder(AccessTokenResponse.class));
+            if (result == null) {
+                throw new IOException("Token endpoint not found");
+            }
 
-        return user;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
     }
 
-    private boolean hasText(String value) {
-        return value != null && !value.isBlank();
+    /**
+     * Returns groups with given display name
+     *
+     * @param accessToken access token
+     * @param displayName group display name
+     * @return groups with given display name
+     * @throws IOException thrown when request fails
+     */
+    public List<TransitiveMemberOfGroup> getGroupsByDisplayName(AccessTokenResponse accessToken, String displayName) throws IOException {
+        String filter = String.format("displayName eq '%s'", displayName.replace("'", "''"));
+        String path = String.format(GROUPS_BY_DISPLAY_NAME_PATH, encodeQueryValue(filter));
+        TransitiveMemberOfGroupsResponse response = getGraphApiResource(accessToken, path, GraphApiStreamingDecoder::decodeTransitiveMemberOfGroups);
+        return response != null && response.getValue() != null ? response.getValue() : List.of();
     }
 
     /**
-     * Returns first profile position from profile positions endpoint.
+     * Returns which of given groups the user is a member of, directly or transitively. Graph API
+     * accepts 20 ids per request, so ids are checked in chunks that are sent concurrently.
      *
      * @param accessToken access token
-     * @param profilePath profile positions endpoint path
-     * @return first profile position or null
+     * @param groupIds ids of the groups to check
+     * @return ids of the groups the user is a member of
+     * @throws IOException thrown when any of the requests fails
      */
-    private GraphProfilePosition getLatestProfilePosition(AccessTokenResponse accessToken, String profilePath) {
+    public Set<String> checkMemberGroups(AccessTokenResponse accessToken, List<String> groupIds) throws IOException {
+        URI uri = URI.create(String.format("%s/%s", graphApiUrl, CHECK_MEMBER_GROUPS_PATH));
+
+        List<CompletableFuture<HttpResponse<InputStream>>> futures = new ArrayList<>();
+        for (int start = 0; start < groupIds.size(); start += MAX_CHECK_MEMBER_GROUPS_IDS) {
+            CheckMemberGroupsRequest checkRequest = new CheckMemberGroupsRequest();
+            checkRequest.setGroupIds(groupIds.subList(start, Math.min(start + MAX_CHECK_MEMBER_GROUPS_IDS, groupIds.size())));
+
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(uri)
+                .header("Authorization", "Bearer " + accessToken.getToken())
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofMillis(settings.getRequestTimeout()))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(GraphApiJson.writer(CheckMemberGroupsRequest.class).writeValueAsBytes(checkRequest)))
+                .build();
+
+            futures.add(sendAsync(accessToken, request));
+        }
+
+        Set<String> result = new HashSet<>();
         try {
-            GraphProfilePositionsResponse response = getGraphApiResource(accessToken, profilePath, GraphProfilePositionsResponse.class);
-            if (response == null || response.getValue() == null || response.getValue().isEmpty()) {
-                logger.infof("Graph profile positions empty [path=%s]", profilePath);
-                return null;
-            }
+            for (CompletableFuture<HttpResponse<InputStream>> future : futures) {
+                CheckMemberGroupsResponse response = handleResponse(await(future), readerDecoder(CheckMemberGroupsResponse.class));
+                if (response == null) {
+                    throw new IOException("Member groups check not found");
+                }
 
-            logger.infof(
-                "Graph profile positions fetched [path=%s, count=%d]",
-                profilePath,
-                response.getValue().size()
-            );
-            return response.getValue().getFirst();
+                if (response.getValue() != null) {
+                    result.addAll(response.getValue());
+                }
+            }
         } catch (IOException e) {
-            // Profile permissions vary per tenant, so fallback must be best-effort.
-            logger.warnf(
-                "Graph profile positions fetch failed [path=%s, error=%s]",
-                profilePath,
-                e.getMessage()
-            );
-            return null;
+            futures.forEach(this::discard);
+            throw e;
         }
+
+        return result;
     }
 
     /**
-     * Fetches a resource from the Microsoft Graph API.
+     * Starts a groups delta round for given groups. All current members of the groups are passed
+     * to the callback.
      *
      * @param accessToken access token
-     * @param path API path
-     * @param clazz target class
-     * @return resource
+     * @param groupIds ids of the groups, at most 50
+     * @param callback delta callback
+     * @return delta link for the next round or null if Graph API requires the round to be restarted
      * @throws IOException thrown when request fails
      */
-    private <T> T getGraphApiResource(AccessTokenResponse accessToken, String path, Class<T> clazz) throws IOException {
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(String.format("%s/%s", getGraphApiUrl(), path)))
-                .header("Authorization", "Bearer " + accessToken.getToken())
-                .build();
-
-        try {
-            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-            return handleResponse(response, clazz);
-        } catch (InterruptedException e) {
-            throw new IOException(e);
+    public String startGroupsDelta(AccessTokenResponse accessToken, List<String> groupIds, GroupDeltaCallback callback) throws IOException {
+        if (groupIds.isEmpty() || groupIds.size() > MAX_GROUPS_DELTA_FILTER_IDS) {
+            throw new IllegalArgumentException(String.format("Groups delta accepts 1 to %d group ids", MAX_GROUPS_DELTA_FILTER_IDS));
         }
+
+        String filter = groupIds.stream()
+            .map(groupId -> String.format("id eq '%s'", groupId))
+            .collect(Collectors.joining(" or "));
+
+        URI uri = URI.create(String.format("%s/%s", graphApiUrl, String.format(GROUPS_DELTA_PATH, encodeQueryValue(filter))));
+        return followGroupsDelta(accessToken, uri, callback);
     }
 
     /**
-     * Handles the HTTP response from the Microsoft Graph API.
+     * Continues a groups delta round from a delta link. Changes since the link was issued are
+     * passed to the callback.
      *
-     * @param response HTTP response
-     * @param clazz target class
-     * @return resource
-     * @throws IOException thrown when response handling fails
+     * @param accessToken access token
+     * @param deltaLink delta link of the previous round
+     * @param callback delta callback
+     * @return delta link for the next round or null if Graph API requires the round to be restarted
+     * @throws IOException thrown when request fails
      */
-    private <T> T handleResponse(HttpResponse<InputStream> response, Class<T> clazz) throws IOException {
-        int statusCode = response.statusCode();
+    public String continueGroupsDelta(AccessTokenResponse accessToken, String deltaLink, GroupDeltaCallback callback) throws IOException {
+        return followGroupsDelta(accessToken, URI.create(deltaLink), callback);
+    }
 
-        if (statusCode == 200) {
-            return deserialize(response.body(), clazz);
-        } else if (statusCode == 404) {
-            return null;
+    /**
+     * Fetches snapshot resources with individual requests. User, user groups and manager
+     * branches are independent of each other, so they are fetched concurrently.
+     *
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param plan fetch plan
+     * @return snapshot
+     */
+    private GraphUserSnapshot getSnapshotIndividually(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan) {
+        Set<GraphResource> resources = plan.getResources();
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        List<Runnable> branches = new ArrayList<>();
+
+        boolean managerNeeded = resources.contains(GraphResource.MANAGER) || resources.contains(GraphResource.MANAGER_GROUPS);
+
+        if (settings.isExpandManager() && managerNeeded && resources.contains(GraphResource.USER)) {
+            branches.add(() -> fetchUserWithManager(accessToken, userPath, plan, snapshot));
         } else {
-            throw new IOException(String.format("Failed to execute: %s", statusCode));
+            if (resources.contains(GraphResource.USER)) {
+                branches.add(() -> fetchUser(accessToken, userPath, plan, snapshot));
+            }
+
+            if (managerNeeded && isAllowed(GraphCallPriority.SECONDARY, String.format(MANAGER_PATH, userPath))) {
+                branches.add(() -> fetchManager(accessToken, userPath, plan, snapshot));
+            }
+        }
+
+        if (resources.contains(GraphResource.USER_GROUPS)) {
+            branches.add(() -> fetchUserGroups(accessToken, userPath, snapshot));
+        }
+
+        if (branches.isEmpty()) {
+            return snapshot;
         }
+
+        // Each branch writes distinct snapshot fields and join() publishes them to this thread
+        List<CompletableFuture<Void>> futures = branches.subList(1, branches.size()).stream()
+            .map(branch -> CompletableFuture.runAsync(Context.current().wrap(branch), fetchExecutor))
+            .toList();
+
+        branches.getFirst().run();
+        futures.forEach(CompletableFuture::join);
+
+        return snapshot;
     }
 
     /**
-     * Deserializes JSON to object
+     * Fetches user into the snapshot
      *
-     * @param json JSON input stream
-     * @param clazz target class
-     * @return deserialized object
-     * @param <T> target class type
-     * @throws IOException thrown when deserialization fails
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param plan fetch plan
+     * @param snapshot snapshot
      */
-    @SuppressWarnings("SameParameterValue")
-    private <T> T deserialize(InputStream json, Class<T> clazz) throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(json, clazz);
+    private void fetchUser(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan, GraphUserSnapshot snapshot) {
+        try {
+            GraphUser user = getGraphApiResource(accessToken, withSelect(userPath, plan.getUserSelect()), GraphUser.class);
+            if (user != null && plan.isUserCompanyNeeded()) {
+                user = enrichWithProfileCompany(accessToken, user, String.format(PROFILE_POSITIONS_PATH, userPath));
+            }
+
+            snapshot.setUser(user);
+        } catch (IOException e) {
+            logger.error("Failed to get user", e);
+        }
     }
 
     /**
-     * Returns base URL for Microsoft Graph API
+     * Fetches user groups into the snapshot
      *
-     * @return base URL for Microsoft Graph API
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param snapshot snapshot
      */
-    private String getGraphApiUrl() {
-        if (System.getenv("GRAPH_API_URL") != null) {
-            return System.getenv("GRAPH_API_URL");
+    private void fetchUserGroups(AccessTokenResponse accessToken, String userPath, GraphUserSnapshot snapshot) {
+        try {
+            List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+            snapshot.setUserGroupsComplete(visitGroupPages(accessToken, String.format(GROUPS_PATH, userPath), groups::add));
+            snapshot.setUserGroups(groups);
+        } catch (GroupsNotFoundException e) {
+            logger.warnf("User groups not found [path=%s]", e.getPath());
+        } catch (IOException e) {
+            logger.error("Failed to get user groups", e);
         }
+    }
 
-        return "https://graph.microsoft.com/v1.0";
+    /**
+     * Fetches user and manager with a single request that expands the manager into the user.
+     *
+     * Manager's enrichment and groups do not depend on the user, so they are started as soon as
+     * the response has been decoded and run while the user is being enriched.
+     *
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param plan fetch plan
+     * @param snapshot snapshot
+     */
+    private void fetchUserWithManager(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan, GraphUserSnapshot snapshot) {
+        String managerSelect = plan.getManagerSelect() != null ? plan.getManagerSelect() : DEFAULT_MANAGER_SELECT;
+        String selectedPath = withSelect(userPath, plan.getUserSelect());
+        String path = String.format("%s%s$expand=manager($select=%s)", selectedPath, selectedPath.contains("?") ? "&" : "?", managerSelect);
+
+        GraphUserWithManager user;
+        try {
+            user = getGraphApiResource(accessToken, path, GraphUserWithManager.class);
+        } catch (IOException e) {
+            logger.error("Failed to get user with manager", e);
+            return;
+        }
+
+        if (user == null) {
+            return;
+        }
+
+        GraphUser manager = user.getManager();
+        user.setManager(null);
+
+        CompletableFuture<Void> managerBranch = CompletableFuture.runAsync(Context.current().wrap(() -> completeManager(accessToken, plan, manager, snapshot)), fetchExecutor);
+        snapshot.setUser(plan.isUserCompanyNeeded() ? enrichWithProfileCompany(accessToken, user, String.format(PROFILE_POSITIONS_PATH, userPath)) : user);
+        managerBranch.join();
+    }
+
+    /**
+     * Fetches manager and manager groups into the snapshot
+     *
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param plan fetch plan
+     * @param snapshot snapshot
+     */
+    private void fetchManager(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan, GraphUserSnapshot snapshot) {
+        GraphUser manager;
+        try {
+            manager = getGraphApiResource(accessToken, withSelect(String.format(MANAGER_PATH, userPath), plan.getManagerSelect()), GraphUser.class);
+        } catch (IOException e) {
+            logger.error("Failed to get manager", e);
+            return;
+        }
+
+        completeManager(accessToken, plan, manager, snapshot);
+    }
+
+    /**
+     * Enriches the manager and fetches manager groups into the snapshot
+     *
+     * @param accessToken access token
+     * @param plan fetch plan
+     * @param manager manager or null if the user has no manager
+     * @param snapshot snapshot
+     */
+    private void completeManager(AccessTokenResponse accessToken, GraphFetchPlan plan, GraphUser manager, GraphUserSnapshot snapshot) {
+        Set<GraphResource> resources = plan.getResources();
+
+        if (manager == null || manager.getId() == null) {
+            if (resources.contains(GraphResource.MANAGER)) {
+                snapshot.setManager(manager);
+            }
+
+            return;
+        }
+
+        if (resources.contains(GraphResource.MANAGER)) {
+            snapshot.setManager(plan.isManagerCompanyNeeded() ? enrichWithProfileCompany(accessToken, manager, String.format(PROFILE_POSITIONS_PATH, getOtherUserPath(manager.getId()))) : manager);
+        }
+
+        if (resources.contains(GraphResource.MANAGER_GROUPS) && isAllowed(GraphCallPriority.OPTIONAL, String.format(GROUPS_PATH, getOtherUserPath(manager.getId())))) {
+            try {
+                List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+                snapshot.setManagerGroupsComplete(visitTransitiveMemberOfGroupsForUser(accessToken, manager.getId(), groups::add));
+                snapshot.setManagerGroups(groups);
+            } catch (GroupsNotFoundException e) {
+                logger.warnf("Manager groups not found [path=%s]", e.getPath());
+            } catch (IOException e) {
+                logger.error("Failed to get manager groups", e);
+            }
+        }
+    }
+
+    /**
+     * Fetches snapshot resources through the JSON batch endpoint.
+     *
+     * Batch sub-requests cannot reference values from other responses, so requests that need
+     * the manager id are sent in a second batch once the manager is known. Profile positions
+     * of the user are requested speculatively in the first batch and used only when top-level
+     * company fields are missing.
+     *
+     * @param accessToken access token
+     * @param userPath path of the user
+     * @param plan fetch plan
+     * @return snapshot
+     */
+    private GraphUserSnapshot getSnapshotBatched(AccessTokenResponse accessToken, String userPath, GraphFetchPlan plan) {
+        Set<GraphResource> resources = plan.getResources();
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        boolean managerNeeded = resources.contains(GraphResource.MANAGER) || resources.contains(GraphResource.MANAGER_GROUPS);
+
+        GraphApiBatch batch = new GraphApiBatch(this, accessToken);
+        GraphApiBatch.Part<GraphUser> userPart = null;
+        GraphApiBatch.Part<GraphProfilePosition> userPositionPart = null;
+        GraphApiBatch.Part<GroupPageState> userGroupsPart = null;
+        GraphApiBatch.Part<GraphUser> managerPart = null;
+        List<TransitiveMemberOfGroup> userGroups = new ArrayList<>();
+        String userPositionsPath = String.format(PROFILE_POSITIONS_PATH, userPath);
+        String userGroupsPath = String.format(GROUPS_PATH, userPath);
+        String managerPath = String.format(MANAGER_PATH, userPath);
+
+        if (resources.contains(GraphResource.USER)) {
+            userPart = batch.add(withSelect(userPath, plan.getUserSelect()), readerDecoder(GraphUser.class));
+            if (plan.isUserCompanyNeeded() && isAllowed(GraphCallPriority.OPTIONAL, userPositionsPath)) {
+                userPositionPart = batch.add(userPositionsPath, GraphApiStreamingDecoder::decodeFirstProfilePosition);
+            }
+        }
+
+        if (resources.contains(GraphResource.USER_GROUPS)) {
+            userGroupsPart = batch.add(getGroupsFirstPagePath(userGroupsPath), new GroupPageState(accessToken, userGroups::add)::decode);
+        }
+
+        if (managerNeeded && isAllowed(GraphCallPriority.SECONDARY, managerPath)) {
+            managerPart = batch.add(withSelect(managerPath, plan.getManagerSelect()), readerDecoder(GraphUser.class));
+        }
+
+        batch.execute();
+
+        if (userPart != null) {
+            try {
+                GraphUser user = userPart.get();
+                if (user != null) {
+                    snapshot.setUser(applyBatchedProfilePosition(user, userPositionPart, userPositionsPath));
+                }
+            } catch (IOException e) {
+                logger.error("Failed to get user", e);
+            }
+        }
+
+        if (userGroupsPart != null) {
+            try {
+                GroupPageState userGroupsState = userGroupsPart.get();
+                if (userGroupsState == null) {
+                    logger.warnf("User groups not found [path=%s]", userGroupsPath);
+                } else {
+                    snapshot.setUserGroupsComplete(followGroupPages(userGroupsPath, userGroupsState));
+                    snapshot.setUserGroups(userGroups);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to get user groups", e);
+            }
+        }
+
+        if (managerPart == null) {
+            return snapshot;
+        }
+
+        GraphUser manager;
+        try {
+            manager = managerPart.get();
+        } catch (IOException e) {
+            logger.error("Failed to get manager", e);
+            return snapshot;
+        }
+
+        if (manager == null || manager.getId() == null) {
+            if (resources.contains(GraphResource.MANAGER)) {
+                snapshot.setManager(manager);
+            }
+
+            return snapshot;
+        }
+
+        String managerPositionsPath = String.format(PROFILE_POSITIONS_PATH, getOtherUserPath(manager.getId()));
+        String managerGroupsPath = String.format(GROUPS_PATH, getOtherUserPath(manager.getId()));
+        GraphApiBatch managerBatch = new GraphApiBatch(this, accessToken);
+        GraphApiBatch.Part<GraphProfilePosition> managerPositionPart = null;
+        GraphApiBatch.Part<GroupPageState> managerGroupsPart = null;
+        List<TransitiveMemberOfGroup> managerGroups = new ArrayList<>();
+
+        if (resources.contains(GraphResource.MANAGER) && plan.isManagerCompanyNeeded() && !hasProfileCompany(manager) && isAllowed(GraphCallPriority.OPTIONAL, managerPositionsPath)) {
+            managerPositionPart = managerBatch.add(managerPositionsPath, GraphApiStreamingDecoder::decodeFirstProfilePosition);
+        }
+
+        if (resources.contains(GraphResource.MANAGER_GROUPS) && isAllowed(GraphCallPriority.OPTIONAL, managerGroupsPath)) {
+            managerGroupsPart = managerBatch.add(getGroupsFirstPagePath(managerGroupsPath), new GroupPageState(accessToken, managerGroups::add)::decode);
+        }
+
+        managerBatch.execute();
+
+        if (resources.contains(GraphResource.MANAGER)) {
+            snapshot.setManager(applyBatchedProfilePosition(manager, managerPositionPart, managerPositionsPath));
+        }
+
+        if (managerGroupsPart != null) {
+            try {
+                GroupPageState managerGroupsState = managerGroupsPart.get();
+                if (managerGroupsState == null) {
+                    logger.warnf("Manager groups not found [path=%s]", managerGroupsPath);
+                } else {
+                    snapshot.setManagerGroupsComplete(followGroupPages(managerGroupsPath, managerGroupsState));
+                    snapshot.setManagerGroups(managerGroups);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to get manager groups", e);
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Applies profile position fetched in a batch to the user
+     *
+     * @param user user to enrich
+     * @param positionPart batch part of the profile position or null if it was not requested
+     * @param profilePath profile positions endpoint path
+     * @return enriched user
+     */
+    private GraphUser applyBatchedProfilePosition(GraphUser user, GraphApiBatch.Part<GraphProfilePosition> positionPart, String profilePath) {
+        if (positionPart == null || hasProfileCompany(user)) {
+            return user;
+        }
+
+        GraphProfilePosition position;
+        try {
+            position = positionPart.get();
+        } catch (IOException e) {
+            // Profile permissions vary per tenant, so fallback must be best-effort.
+            logger.warnf(
+                "Graph profile positions fetch failed [path=%s, error=%s]",
+                profilePath,
+                e.getMessage()
+            );
+            return user;
+        }
+
+        return applyProfilePosition(user, position, profilePath);
+    }
+
+    /**
+     * Populates companyName and department from profile positions when top-level fields are missing.
+     *
+     * @param accessToken access token
+     * @param user user to enrich
+     * @param profilePath profile positions endpoint path
+     * @return enriched user
+     */
+    private GraphUser enrichWithProfileCompany(AccessTokenResponse accessToken, GraphUser user, String profilePath) {
+        logger.infof(
+            "Graph profile enrichment start [path=%s, userId=%s, companyName='%s', department='%s']",
+            profilePath,
+            user.getId(),
+            user.getCompanyName(),
+            user.getDepartment()
+        );
+
+        if (hasProfileCompany(user)) {
+            logger.infof(
+                "Graph profile enrichment skipped [path=%s, userId=%s, reason=top-level-fields-present]",
+                profilePath,
+                user.getId()
+            );
+            return user;
+        }
+
+        if (!isAllowed(GraphCallPriority.OPTIONAL, profilePath)) {
+            return user;
+        }
+
+        return applyProfilePosition(user, getLatestProfilePosition(accessToken, profilePath), profilePath);
+    }
+
+    /**
+     * Populates missing companyName and department from a profile position
+     *
+     * @param user user to enrich
+     * @param profilePosition profile position or null
+     * @param profilePath profile positions endpoint path
+     * @return enriched user
+     */
+    private GraphUser applyProfilePosition(GraphUser user, GraphProfilePosition profilePosition, String profilePath) {
+        if (profilePosition == null || profilePosition.getDetail() == null || profilePosition.getDetail().getCompany() == null) {
+            logger.infof(
+                "Graph profile enrichment no company data [path=%s, userId=%s]",
+                profilePath,
+                user.getId()
+            );
+            return user;
+        }
+
+        String profileCompanyName = profilePosition.getDetail().getCompany().getDisplayName();
+        String profileDepartment = profilePosition.getDetail().getCompany().getDepartment();
+        logger.infof(
+            "Graph profile company data [path=%s, userId=%s, profileCompanyName='%s', profileDepartment='%s']",
+            profilePath,
+            user.getId(),
+            profileCompanyName,
+            profileDepartment
+        );
+
+        if (!hasText(user.getCompanyName())) {
+            user.setCompanyName(profileCompanyName);
+        }
+
+        if (!hasText(user.getDepartment())) {
+            user.setDepartment(profileDepartment);
+        }
+
+        logger.infof(
+            "Graph profile enrichment result [path=%s, userId=%s, companyName='%s', department='%s']",
+            profilePath,
+            user.getId(),
+            user.getCompanyName(),
+            user.getDepartment()
+        );
+
+        return user;
+    }
+
+    private boolean hasProfileCompany(GraphUser user) {
+        return hasText(user.getCompanyName()) && hasText(user.getDepartment());
+    }
+
+    private boolean hasText(String value) {
+        return value != null && !value.isBlank();
+    }
+
+    /**
+     * Returns first profile position from profile positions endpoint.
+     *
+     * @param accessToken access token
+     * @param profilePath profile positions endpoint path
+     * @return first profile position or null
+     */
+    private GraphProfilePosition getLatestProfilePosition(AccessTokenResponse accessToken, String profilePath) {
+        try {
+            GraphProfilePosition position = getGraphApiResource(accessToken, profilePath, GraphApiStreamingDecoder::decodeFirstProfilePosition);
+            if (position == null) {
+                logger.infof("Graph profile positions empty [path=%s]", profilePath);
+                return null;
+            }
+
+            logger.infof("Graph profile positions fetched [path=%s]", profilePath);
+            return position;
+        } catch (IOException e) {
+            // Profile permissions vary per tenant, so fallback must be best-effort.
+            logger.warnf(
+                "Graph profile positions fetch failed [path=%s, error=%s]",
+                profilePath,
+                e.getMessage()
+            );
+            return null;
+        }
+    }
+
+    /**
+     * Collects visited groups into a response
+     *
+     * @param pages page visiting function
+     * @return response containing visited groups or null if the user is not found
+     * @throws IOException thrown when request fails
+     */
+    private TransitiveMemberOfGroupsResponse collectGroups(GroupPagesFunction pages) throws IOException {
+        List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+        try {
+            pages.visit(groups::add);
+        } catch (GroupsNotFoundException e) {
+            return null;
+        }
+
+        TransitiveMemberOfGroupsResponse response = new TransitiveMemberOfGroupsResponse();
+        response.setValue(groups);
+        return response;
+    }
+
+    /**
+     * Appends a $select projection to a path
+     *
+     * @param path API path without query
+     * @param select $select value or null for default properties
+     * @return path with projection
+     */
+    private String withSelect(String path, String select) {
+        return select != null ? String.format("%s?$select=%s", path, select) : path;
+    }
+
+    /**
+     * Returns path of the first page of a groups listing
+     *
+     * @param path API path without query
+     * @return path with projection and page size
+     */
+    private String getGroupsFirstPagePath(String path) {
+        int pageSize = Math.max(1, Math.min(settings.getGroupsPageSize(), MAX_GROUPS_PAGE_SIZE));
+        return String.format("%s?$select=id,displayName&$top=%d", path, pageSize);
+    }
+
+    /**
+     * Streams all pages of a groups resource into the visitor.
+     *
+     * @param accessToken access token
+     * @param path API path without query
+     * @param visitor group visitor
+     * @return true when all groups were visited, false when the configured group cap was reached
+     * @throws IOException thrown when request fails or the user or a page is not found
+     */
+    private boolean visitGroupPages(AccessTokenResponse accessToken, String path, TransitiveMemberOfGroupVisitor visitor) throws IOException {
+        GroupPageState state = new GroupPageState(accessToken, visitor);
+        URI firstPage = URI.create(String.format("%s/%s", graphApiUrl, getGroupsFirstPagePath(path)));
+        state.next = sendAsync(accessToken, createRequest(accessToken, firstPage), 1);
+        return followGroupPages(path, state);
+    }
+
+    /**
+     * Follows @odata.nextLink pagination of a groups resource and streams groups into the visitor.
+     *
+     * The request for the next page is sent as soon as its link has been decoded, so it is in
+     * flight while the rest of the current page is being decoded and visited. Fetching stops
+     * when the configured group cap is reached.
+     *
+     * A missing first page means the user is not found and fails with
+     * {@link GroupsNotFoundException}. A missing later page fails the listing, as the groups
+     * visited so far are not the complete membership.
+     *
+     * @param path API path without query
+     * @param state paging state with the pending request of the next page, if any
+     * @return true when all groups were visited, false when the configured group cap was reached
+     * @throws IOException thrown when request fails or the user or a page is not found
+     */
+    private boolean followGroupPages(String path, GroupPageState state) throws IOException {
+        CompletableFuture<HttpResponse<InputStream>> pending = state.next;
+        state.next = null;
+
+        try {
+            while (!state.truncated && pending != null) {
+                HttpResponse<InputStream> response = await(pending);
+                pending = null;
+
+                try (InputStream body = response.body()) {
+                    int statusCode = response.statusCode();
+                    if (statusCode == 404 && state.page == 0) {
+                        throw new GroupsNotFoundException(path);
+                    } else if (statusCode == 404) {
+                        throw new IOException(String.format("Page %d of %s not found, membership is incomplete", state.page + 1, path));
+                    } else if (statusCode != 200) {
+                        throw new IOException(String.format("Failed to execute: %s", statusCode));
+                    }
+
+                    try (JsonParser parser = GraphApiJson.factory().createParser(body)) {
+                        state.decode(parser);
+                    }
+                }
+
+                pending = state.next;
+                state.next = null;
+            }
+        } finally {
+            discard(pending);
+            discard(state.next);
+        }
+
+        if (state.truncated) {
+            logger.warnf("Graph groups paging stopped at cap [path=%s, maxGroups=%d, pages=%d]", path, settings.getMaxGroups(), state.page);
+            return false;
+        }
+
+        logger.debugf("Graph groups paging complete [path=%s, groups=%d, pages=%d]", path, state.count, state.page);
+        return true;
+    }
+
+    /**
+     * Follows @odata.nextLink pagination of a groups delta round until the delta link
+     *
+     * @param accessToken access token
+     * @param uri URI of the first page
+     * @param callback delta callback
+     * @return delta link for the next round or null if Graph API requires the round to be restarted
+     * @throws IOException thrown when request fails
+     */
+    private String followGroupsDelta(AccessTokenResponse accessToken, URI uri, GroupDeltaCallback callback) throws IOException {
+        GroupDeltaState state = new GroupDeltaState(callback);
+        URI next = uri;
+
+        while (next != null) {
+            HttpResponse<InputStream> response = await(sendAsync(accessToken, createRequest(accessToken, next), state.page + 1));
+
+            try (InputStream body = response.body()) {
+                int statusCode = response.statusCode();
+                if (statusCode == 410) {
+                    logger.warnf("Graph groups delta link expired, delta round must be restarted [pages=%d]", state.page);
+                    return null;
+                } else if (statusCode != 200) {
+                    throw new IOException(String.format("Failed to execute: %s", statusCode));
+                }
+
+                state.nextLink = null;
+                state.page++;
+                GraphApiMetrics.recordGroupPage(metricTags, "groups/delta");
+
+                try (JsonParser parser = GraphApiJson.factory().createParser(body)) {
+                    GraphApiStreamingDecoder.decodeGroupsDeltaPage(parser, state);
+                }
+            }
+
+            next = state.nextLink != null ? URI.create(state.nextLink) : null;
+        }
+
+        if (state.deltaLink == null) {
+            throw new IOException("Groups delta round ended without a delta link");
+        }
+
+        logger.debugf("Graph groups delta round complete [pages=%d]", state.page);
+        return state.deltaLink;
+    }
+
+    /**
+     * Encodes a query parameter value
+     *
+     * @param value value
+     * @return encoded value
+     */
+    private String encodeQueryValue(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Encodes a path segment
+     *
+     * @param value value
+     * @return encoded value
+     */
+    private String encodePathSegment(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Returns path of a user other than the signed-in user
+     *
+     * @param userId object id or user principal name of the user
+     * @return user path
+     */
+    private String getOtherUserPath(String userId) {
+        return String.format(OTHER_USER_PATH, encodePathSegment(userId));
+    }
+
+    /**
+     * Sends a Graph API request through the circuit breaker and the client side throttle
+     *
+     * @param accessToken access token
+     * @param request request
+     * @return response future
+     */
+    private CompletableFuture<HttpResponse<InputStream>> sendAsync(AccessTokenResponse accessToken, HttpRequest request) {
+        return sendAsync(accessToken, request, 0);
+    }
+
+    /**
+     * Sends a Graph API request through the circuit breaker and the client side throttle. The
+     * request is traced as a child of the current span.
+     *
+     * @param accessToken access token
+     * @param request request
+     * @param page page number of a paged listing or 0 if the request is not paged
+     * @return response future
+     */
+    private CompletableFuture<HttpResponse<InputStream>> sendAsync(AccessTokenResponse accessToken, HttpRequest request, int page) {
+        if (circuitBreaker.isOpen()) {
+            return CompletableFuture.failedFuture(circuitBreaker.reject());
+        }
+
+        long deadline = System.nanoTime() + throttle.getRetryBudgetNanos();
+        if (loginDeadline != null && loginDeadline.getExpiresAt() - deadline < 0) {
+            deadline = loginDeadline.getExpiresAt();
+        }
+
+        String tenantId = GraphApiThrottle.getTenantId(accessToken.getToken());
+        return sendThrottled(new TracedRequest(request, Context.current(), page), tenantId, deadline, 0);
+    }
+
+    /**
+     * Sends a Graph API request through the client side throttle and waits for the response
+     *
+     * @param accessToken access token
+     * @param request request
+     * @return response
+     * @throws IOException thrown when request fails or is interrupted
+     */
+    private HttpResponse<InputStream> send(AccessTokenResponse accessToken, HttpRequest request) throws IOException {
+        return await(sendAsync(accessToken, request));
+    }
+
+    /**
+     * Sends a request once the rate limit of the tenant allows it and retries throttled
+     * responses. A throttled response is returned as is when it may not be retried anymore.
+     *
+     * @param request request with its trace context
+     * @param tenantId Azure tenant id
+     * @param deadline deadline of the request and its retries in System.nanoTime() units
+     * @param attempt number of retries already done
+     * @return response future
+     */
+    private CompletableFuture<HttpResponse<InputStream>> sendThrottled(TracedRequest request, String tenantId, long deadline, int attempt) {
+        long wait = throttle.reserve(tenantId);
+        if (wait > 0 && System.nanoTime() + wait > deadline) {
+            throttle.release(tenantId);
+            throttle.onRateLimitExceeded();
+            return CompletableFuture.failedFuture(new IOException(String.format("Graph API rate limit wait of tenant %s exceeds the retry budget", tenantId)));
+        }
+
+        CompletableFuture<HttpResponse<InputStream>> response = wait > 0
+            ? delay(wait).thenCompose(ignored -> exchange(request, deadline, attempt))
+            : exchange(request, deadline, attempt);
+
+        return response.thenCompose(result -> {
+            if (!throttle.isThrottled(result.statusCode())) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            long retryDelay = throttle.onThrottled(tenantId, result.headers().firstValue("Retry-After"), attempt, deadline);
+            if (retryDelay < 0) {
+                logger.warnf("Graph API request throttled, giving up [tenant=%s, status=%d, retries=%d]", tenantId, result.statusCode(), attempt);
+                circuitBreaker.record(result, null);
+                return CompletableFuture.completedFuture(result);
+            }
+
+            logger.debugf("Graph API request throttled, retrying [tenant=%s, status=%d, attempt=%d, delay=%dms]", tenantId, result.statusCode(), attempt + 1, TimeUnit.NANOSECONDS.toMillis(retryDelay));
+            closeQuietly(result);
+            return delay(retryDelay).thenCompose(ignored -> sendThrottled(request, tenantId, deadline, attempt + 1));
+        });
+    }
+
+    /**
+     * Sends a request and records its outcome in the circuit breaker, metrics, a client span and
+     * the current mapper execution.
+     * The response timeout is shortened when less time than the request timeout remains before
+     * the deadline, and timeouts caused by the shortened limit are not counted as Graph API
+     * failures. Throttled responses are left to the retry loop, which records them in the
+     * circuit breaker only once the request is given up. Trace context of the span is forwarded
+     * to Graph API.
+     *
+     * @param traced request with its trace context
+     * @param deadline deadline of the request in System.nanoTime() units
+     * @param attempt number of retries already done
+     * @return response future
+     */
+    private CompletableFuture<HttpResponse<InputStream>> exchange(TracedRequest traced, long deadline, int attempt) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new HttpTimeoutException("Graph API request deadline exceeded"));
+        }
+
+        HttpRequest request = traced.request();
+        String endpoint = GraphApiMetrics.getEndpoint(request.uri());
+        Span span = startRequestSpan(traced, endpoint, attempt);
+
+        boolean shortened = remaining < TimeUnit.MILLISECONDS.toNanos(settings.getRequestTimeout());
+        HttpRequest sent = request;
+        if (shortened || span.getSpanContext().isValid()) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+            if (shortened) {
+                builder.timeout(Duration.ofNanos(remaining));
+            }
+
+            GraphApiTracing.inject(traced.parent().with(span), builder);
+            sent = builder.build();
+        }
+
+        Tags tags = metricTags;
+        GraphMapperExecution recordedExecution = execution;
+        long started = System.nanoTime();
+
+        return httpClient.sendAsync(sent, observingBodyHandler(tags, endpoint, recordedExecution, request.method(), started, attempt))
+            .whenComplete((response, error) -> {
+                long duration = System.nanoTime() - started;
+                GraphApiMetrics.recordRequest(tags, endpoint, response != null ? response.statusCode() : -1, duration);
+                endRequestSpan(span, response, error);
+                if (response == null && recordedExecution != null) {
+                    recordedExecution.addCall(request.method(), endpoint, -1, duration, 0, attempt);
+                }
+
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                boolean shortenedTimeout = shortened && cause instanceof HttpTimeoutException;
+                boolean throttled = response != null && throttle.isThrottled(response.statusCode());
+                if (!shortenedTimeout && !throttled) {
+                    circuitBreaker.record(response, error);
+                }
+            });
+    }
+
+    /**
+     * Starts client span of a Graph API request
+     *
+     * @param traced request with its trace context
+     * @param endpoint endpoint name
+     * @param attempt number of retries already done
+     * @return started span
+     */
+    private Span startRequestSpan(TracedRequest traced, String endpoint, int attempt) {
+        HttpRequest request = traced.request();
+        Span span = GraphApiTracing.startSpan(String.format("%s %s", request.method(), endpoint), SpanKind.CLIENT, traced.parent());
+        if (!span.isRecording()) {
+            return span;
+        }
+
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_HTTP_METHOD, request.method());
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_URL_TEMPLATE, endpoint);
+        span.setAttribute(GraphApiTracing.ATTRIBUTE_SERVER_ADDRESS, request.uri().getHost());
+        if (traced.page() > 0) {
+            span.setAttribute(GraphApiTracing.ATTRIBUTE_PAGE, (long) traced.page());
+        }
+
+        if (attempt > 0) {
+            span.setAttribute(GraphApiTracing.ATTRIBUTE_HTTP_RESEND_COUNT, (long) attempt);
+        }
+
+        return span;
+    }
+
+    /**
+     * Ends client span of a Graph API request once response headers have been received
+     *
+     * @param span span
+     * @param response response or null if the exchange failed
+     * @param error error or null if a response was received
+     */
+    private void endRequestSpan(Span span, HttpResponse<InputStream> response, Throwable error) {
+        if (response != null) {
+            span.setAttribute(GraphApiTracing.ATTRIBUTE_HTTP_STATUS, (long) response.statusCode());
+            if (response.statusCode() >= 400) {
+                span.setStatus(StatusCode.ERROR);
+            }
+        } else if (error != null) {
+            GraphApiTracing.recordError(span, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        }
+
+        span.end();
+    }
+
+    /**
+     * Returns body handler that records the number of bytes read from the response body into
+     * metrics and the mapper execution when the body is closed
+     *
+     * @param tags metric tags
+     * @param endpoint endpoint name
+     * @param recordedExecution mapper execution or null if the request is not recorded
+     * @param method HTTP method
+     * @param started time the request was sent in System.nanoTime() units
+     * @param attempt number of retries already done
+     * @return body handler
+     */
+    private HttpResponse.BodyHandler<InputStream> observingBodyHandler(Tags tags, String endpoint, GraphMapperExecution recordedExecution, String method, long started, int attempt) {
+        return responseInfo -> {
+            long duration = System.nanoTime() - started;
+            return HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofInputStream(),
+                body -> new CountingInputStream(body, bytes -> {
+                    GraphApiMetrics.recordResponseBytes(tags, endpoint, bytes);
+                    if (recordedExecution != null) {
+                        recordedExecution.addCall(method, endpoint, responseInfo.statusCode(), duration, bytes, attempt);
+                    }
+                })
+            );
+        };
+    }
+
+    /**
+     * Returns whether a call of given priority may be started within the login deadline
+     *
+     * @param priority call priority
+     * @param path API path for logging
+     * @return whether the call may be started
+     */
+    private boolean isAllowed(GraphCallPriority priority, String path) {
+        GraphLoginDeadline deadline = loginDeadline;
+        if (deadline == null || deadline.allows(priority)) {
+            return true;
+        }
+
+        logger.infof("Skipping Graph API call, login budget running low [path=%s, priority=%s, remaining=%dms]", path, priority, TimeUnit.NANOSECONDS.toMillis(deadline.getRemainingNanos()));
+        return false;
+    }
+
+    /**
+     * Returns a future that completes after a delay without blocking a thread
+     *
+     * @param nanos delay in nanoseconds
+     * @return future
+     */
+    private CompletableFuture<Void> delay(long nanos) {
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS, fetchExecutor));
+    }
+
+    /**
+     * Closes body of a response that is not read
+     *
+     * @param response response
+     */
+    private void closeQuietly(HttpResponse<InputStream> response) {
+        try {
+            response.body().close();
+        } catch (IOException e) {
+            logger.debug("Failed to close throttled response", e);
+        }
+    }
+
+    /**
+     * Waits for an asynchronous response
+     *
+     * @param future response future
+     * @return response
+     * @throws IOException thrown when request fails or is interrupted
+     */
+    private HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Cancels a no longer needed request and releases its response body if it already completed
+     *
+     * @param future response future
+     */
+    private void discard(CompletableFuture<HttpResponse<InputStream>> future) {
+        if (future == null) {
+            return;
+        }
+
+        future.cancel(true);
+        future.thenAccept(response -> {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                logger.debug("Failed to close discarded response", e);
+            }
+        });
+    }
+
+    /**
+     * Creates an authorized GET request
+     *
+     * @param accessToken access token
+     * @param uri request URI
+     * @return request
+     */
+    private HttpRequest createRequest(AccessTokenResponse accessToken, URI uri) {
+        return HttpRequest.newBuilder()
+            .uri(uri)
+            .header("Authorization", "Bearer " + accessToken.getToken())
+            .timeout(Duration.ofMillis(settings.getRequestTimeout()))
+            .build();
+    }
+
+    /**
+     * Posts a JSON batch request to the Microsoft Graph API.
+     *
+     * @param accessToken access token
+     * @param batchRequest batch request
+     * @return batch response
+     * @throws IOException thrown when request fails
+     */
+    GraphBatchResponse postBatch(AccessTokenResponse accessToken, GraphBatchRequest batchRequest) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(String.format("%s/$batch", graphApiUrl)))
+            .header("Authorization", "Bearer " + accessToken.getToken())
+            .header("Content-Type", "application/json")
+            .timeout(Duration.ofMillis(settings.getRequestTimeout()))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(GraphApiJson.writer(GraphBatchRequest.class).writeValueAsBytes(batchRequest)))
+            .build();
+
+        return handleResponse(send(accessToken, request), readerDecoder(GraphBatchResponse.class));
+    }
+
+    /**
+     * Fetches a resource from the Microsoft Graph API.
+     *
+     * @param accessToken access token
+     * @param path API path
+     * @param clazz target class
+     * @return resource
+     * @throws IOException thrown when request fails
+     */
+    private <T> T getGraphApiResource(AccessTokenResponse accessToken, String path, Class<T> clazz) throws IOException {
+        return getGraphApiResource(accessToken, path, readerDecoder(clazz));
+    }
+
+    /**
+     * Fetches a resource from the Microsoft Graph API.
+     *
+     * @param accessToken access token
+     * @param path API path
+     * @param decoder response decoder
+     * @return resource
+     * @throws IOException thrown when request fails
+     */
+    <T> T getGraphApiResource(AccessTokenResponse accessToken, String path, ResponseDecoder<T> decoder) throws IOException {
+        HttpRequest request = createRequest(accessToken, URI.create(String.format("%s/%s", graphApiUrl, path)));
+
+        return handleResponse(send(accessToken, request), decoder);
+    }
+
+    /**
+     * Fetches a resource from the Microsoft Graph API with an If-None-Match precondition.
+     * Response bodies of unchanged resources are neither transferred nor decoded.
+     *
+     * @param accessToken access token
+     * @param path API path
+     * @param entityTag entity tag of the previously read resource or null for an unconditional request
+     * @param decoder response body decoder
+     * @return response
+     * @throws IOException thrown when request fails
+     */
+    private <T> GraphConditionalResponse<T> getConditionalResource(AccessTokenResponse accessToken, String path, String entityTag, BodyDecoder<T> decoder) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+            .uri(URI.create(String.format("%s/%s", graphApiUrl, path)))
+            .header("Authorization", "Bearer " + accessToken.getToken())
+            .timeout(Duration.ofMillis(settings.getRequestTimeout()));
+
+        if (entityTag != null) {
+            builder.header("If-None-Match", entityTag);
+        }
+
+        HttpResponse<InputStream> response = send(accessToken, builder.build());
+        int statusCode = response.statusCode();
+
+        try (InputStream body = response.body()) {
+            if (statusCode == 304) {
+                return GraphConditionalResponse.notModified(entityTag);
+            } else if (statusCode == 200) {
+                HttpHeaders headers = response.headers();
+                return GraphConditionalResponse.modified(decoder.decode(headers, body), headers.firstValue("ETag").orElse(null));
+            } else if (statusCode == 404) {
+                return GraphConditionalResponse.modified(null, null);
+            } else {
+                throw new IOException(String.format("Failed to execute: %s", statusCode));
+            }
+        }
+    }
+
+    /**
+     * Handles the HTTP response from the Microsoft Graph API.
+     *
+     * @param response HTTP response
+     * @param decoder response decoder
+     * @return resource
+     * @throws IOException thrown when response handling fails
+     */
+    private <T> T handleResponse(HttpResponse<InputStream> response, ResponseDecoder<T> decoder) throws IOException {
+        int statusCode = response.statusCode();
+
+        try (InputStream body = response.body()) {
+            if (statusCode == 200) {
+                return deserialize(body, decoder);
+            } else if (statusCode == 404) {
+                return null;
+            } else {
+                throw new IOException(String.format("Failed to execute: %s", statusCode));
+            }
+        }
+    }
+
+    /**
+     * Deserializes JSON to object
+     *
+     * @param json JSON input stream
+     * @param decoder response decoder
+     * @return deserialized object
+     * @param <T> target class type
+     * @throws IOException thrown when deserialization fails
+     */
+    private <T> T deserialize(InputStream json, ResponseDecoder<T> decoder) throws IOException {
+        try (JsonParser parser = GraphApiJson.factory().createParser(json)) {
+            return decoder.decode(parser);
+        }
+    }
+
+    /**
+     * Returns decoder that binds the payload with a cached reader
+     *
+     * @param clazz target class
+     * @return decoder
+     * @param <T> target class type
+     */
+    private <T> ResponseDecoder<T> readerDecoder(Class<T> clazz) {
+        return parser -> GraphApiJson.reader(clazz).readValue(parser);
+    }
+
+    /**
+     * Returns base URL for Microsoft Graph API
+     *
+     * @return base URL for Microsoft Graph API
+     */
+    static String getGraphApiUrl() {
+        if (System.getenv("GRAPH_API_URL") != null) {
+            return System.getenv("GRAPH_API_URL");
+        }
+
+        return "https://graph.microsoft.com/v1.0";
+    }
+
+    @Override
+    public void close() {
+        // HTTP client is shared and closed by the provider factory
+    }
+
+    /**
+     * Function that visits group pages
+     */
+    @FunctionalInterface
+    private interface GroupPagesFunction {
+        boolean visit(TransitiveMemberOfGroupVisitor visitor) throws IOException;
+    }
+
+    /**
+     * Graph API request with the trace context it was sent in
+     *
+     * @param request request
+     * @param parent context of the calling span
+     * @param page page number of a paged listing or 0 if the request is not paged
+     */
+    private record TracedRequest(HttpRequest request, Context parent, int page) {
+    }
+
+    /**
+     * Input stream that reports the number of bytes read once it is closed
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final LongConsumer onClose;
+        private long count;
+        private boolean closed;
+
+        private CountingInputStream(InputStream in, LongConsumer onClose) {
+            super(in);
+            this.onClose = onClose;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count++;
+            }
+
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            count += result;
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                onClose.accept(count);
+            }
+
+            super.close();
+        }
+
+    }
+
+    /**
+     * Paging state of a single groups listing
+     */
+    private class GroupPageState implements GraphApiStreamingDecoder.GroupPageCallback {
+
+        private final AccessTokenResponse accessToken;
+        private final TransitiveMemberOfGroupVisitor visitor;
+        private CompletableFuture<HttpResponse<InputStream>> next;
+        private int count;
+        private int page;
+        private boolean truncated;
+
+        private GroupPageState(AccessTokenResponse accessToken, TransitiveMemberOfGroupVisitor visitor) {
+            this.accessToken = accessToken;
+            this.visitor = visitor;
+        }
+
+        /**
+         * Decodes a single page into the visitor
+         *
+         * @param parser JSON parser
+         * @return this state
+         * @throws IOException thrown when payload is malformed
+         */
+        private GroupPageState decode(JsonParser parser) throws IOException {
+            page++;
+            GraphApiMetrics.recordGroupPage(metricTags, "transitiveMemberOf");
+            GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(parser, this);
+            return this;
+        }
+
+        @Override
+        public void nextLink(String nextLink) {
+            if (count < settings.getMaxGroups()) {
+                next = sendAsync(accessToken, createRequest(accessToken, URI.create(nextLink)), page + 1);
+            } else {
+                truncated = true;
+            }
+        }
+
+        @Override
+        public boolean group(TransitiveMemberOfGroup group) {
+            if (count >= settings.getMaxGroups()) {
+                truncated = true;
+                return false;
+            }
+
+            count++;
+            visitor.visit(group);
+            return true;
+        }
+    }
+
+    /**
+     * Thrown when the first page of a groups listing is not found, meaning that the user of the
+     * listing does not exist
+     */
+    private static class GroupsNotFoundException extends IOException {
+
+        private final String path;
+
+        private GroupsNotFoundException(String path) {
+            super(String.format("Groups not found [path=%s]", path));
+            this.path = path;
+        }
+
+        private String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Paging state of a groups delta round
+     */
+    private static class GroupDeltaState implements GraphApiStreamingDecoder.GroupDeltaPageCallback {
+
+        private final GroupDeltaCallback callback;
+        private String nextLink;
+        private String deltaLink;
+        private int page;
+
+        private GroupDeltaState(GroupDeltaCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void nextLink(String nextLink) {
+            this.nextLink = nextLink;
+        }
+
+        @Override
+        public void deltaLink(String deltaLink) {
+            this.deltaLink = deltaLink;
+        }
+
+        @Override
+        public void group(String groupId, String displayName, boolean removed) {
+            callback.group(groupId, displayName, removed);
+        }
+
+        @Override
+        public void member(String groupId, String userId, boolean removed) {
+            callback.member(groupId, userId, removed);
+        }
+
+        @Override
+        public void nestedGroup(String groupId, String memberGroupId, boolean removed) {
+            callback.nestedGroup(groupId, memberGroupId, removed);
+        }
+    }
+
+    /**
+     * Decodes a response payload from a JSON parser
+     *
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    interface ResponseDecoder<T> {
+        T decode(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Decodes a non-JSON response body
+     *
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    private interface BodyDecoder<T> {
+        T decode(HttpHeaders headers, InputStream body) throws IOException;
     }
 
 }
@@ -0,0 +1,9 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Provider factory for Microsoft Graph API clients
+ */
+public interface GraphApiClientProviderFactory extends ProviderFactory<GraphApiClient> {
+}
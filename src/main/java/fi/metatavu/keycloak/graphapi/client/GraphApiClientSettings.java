@@ -0,0 +1,138 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Settings for Graph API clients. Settings are read once by the provider factory and shared
+ * by all client instances.
+ */
+public class GraphApiClientSettings {
+
+    private int groupsPageSize;
+
+    private int maxGroups;
+
+    private boolean batchEnabled;
+
+    private boolean expandManager;
+
+    private int rateLimit;
+
+    private int rateLimitBurst;
+
+    private int maxRetries;
+
+    private long retryBudget;
+
+    private long requestTimeout;
+
+    private int circuitBreakerFailureThreshold;
+
+    private long circuitBreakerOpenTime;
+
+    private long loginTimeout;
+
+    private GraphSnapshotNoteFormat snapshotNoteFormat = GraphSnapshotNoteFormat.COMPACT;
+
+    public int getGroupsPageSize() {
+        return groupsPageSize;
+    }
+
+    public void setGroupsPageSize(int groupsPageSize) {
+        this.groupsPageSize = groupsPageSize;
+    }
+
+    public int getMaxGroups() {
+        return maxGroups;
+    }
+
+    public void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    public boolean isBatchEnabled() {
+        return batchEnabled;
+    }
+
+    public void setBatchEnabled(boolean batchEnabled) {
+        this.batchEnabled = batchEnabled;
+    }
+
+    public boolean isExpandManager() {
+        return expandManager;
+    }
+
+    public void setExpandManager(boolean expandManager) {
+        this.expandManager = expandManager;
+    }
+
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryBudget() {
+        return retryBudget;
+    }
+
+    public void setRetryBudget(long retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    public long getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    public void setLoginTimeout(long loginTimeout) {
+        this.loginTimeout = loginTimeout;
+    }
+
+    public GraphSnapshotNoteFormat getSnapshotNoteFormat() {
+        return snapshotNoteFormat;
+    }
+
+    public void setSnapshotNoteFormat(GraphSnapshotNoteFormat snapshotNoteFormat) {
+        this.snapshotNoteFormat = snapshotNoteFormat;
+    }
+}
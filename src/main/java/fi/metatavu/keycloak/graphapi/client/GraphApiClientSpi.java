@@ -0,0 +1,35 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI for Microsoft Graph API clients
+ */
+public class GraphApiClientSpi implements Spi {
+
+    public static final String NAME = "graph-api-client";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return GraphApiClient.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return GraphApiClientProviderFactory.class;
+    }
+
+}
@@ -0,0 +1,73 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Shared JSON facilities for Graph API mappers and client.
+ *
+ * ObjectMapper construction is expensive, so a single mapper is shared and readers and writers
+ * are cached per type. Both are immutable and thread-safe.
+ */
+public final class GraphApiJson {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final ClassValue<ObjectReader> READERS = new ClassValue<>() {
+        @Override
+        protected ObjectReader computeValue(Class<?> type) {
+            return OBJECT_MAPPER.readerFor(type);
+        }
+    };
+
+    private static final ClassValue<ObjectWriter> WRITERS = new ClassValue<>() {
+        @Override
+        protected ObjectWriter computeValue(Class<?> type) {
+            return OBJECT_MAPPER.writerFor(type);
+        }
+    };
+
+    private GraphApiJson() {
+    }
+
+    /**
+     * Returns cached reader for given type
+     *
+     * @param type target type
+     * @return reader
+     */
+    public static ObjectReader reader(Class<?> type) {
+        return READERS.get(type);
+    }
+
+    /**
+     * Returns cached writer for given type
+     *
+     * @param type source type
+     * @return writer
+     */
+    public static ObjectWriter writer(Class<?> type) {
+        return WRITERS.get(type);
+    }
+
+    /**
+     * Returns shared JSON factory for streaming parsers and generators
+     *
+     * @return JSON factory
+     */
+    public static JsonFactory factory() {
+        return OBJECT_MAPPER.getFactory();
+    }
+
+    /**
+     * Returns shared object mapper
+     *
+     * @return object mapper
+     */
+    public static ObjectMapper mapper() {
+        return OBJECT_MAPPER;
+    }
+
+}
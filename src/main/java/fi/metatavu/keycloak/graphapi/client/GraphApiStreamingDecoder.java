@@ -0,0 +1,400 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroupsResponse;
+import fi.metatavu.keycloak.graphapi.model.GraphProfileCompany;
+import fi.metatavu.keycloak.graphapi.model.GraphProfilePosition;
+import fi.metatavu.keycloak.graphapi.model.GraphProfilePositionDetail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Token-level decoders for Graph API payloads.
+ *
+ * Decoders pull out only the fields the mappers use and skip everything else without
+ * materializing it, which keeps allocation low for users with large group memberships.
+ */
+public final class GraphApiStreamingDecoder {
+
+    private static final String FIELD_VALUE = "value";
+    private static final String FIELD_NEXT_LINK = "@odata.nextLink";
+    private static final String FIELD_DELTA_LINK = "@odata.deltaLink";
+    private static final String FIELD_TYPE = "@odata.type";
+    private static final String FIELD_REMOVED = "@removed";
+    private static final String FIELD_MEMBERS_DELTA = "members@delta";
+    private static final String USER_TYPE = "#microsoft.graph.user";
+    private static final String GROUP_TYPE = "#microsoft.graph.group";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_DISPLAY_NAME = "displayName";
+    private static final String FIELD_DETAIL = "detail";
+    private static final String FIELD_COMPANY = "company";
+    private static final String FIELD_DEPARTMENT = "department";
+
+    private GraphApiStreamingDecoder() {
+    }
+
+    /**
+     * Decodes transitive member of groups response. Only group id and display name are read.
+     *
+     * @param parser JSON parser positioned before the response object
+     * @return decoded response
+     * @throws IOException thrown when payload is malformed
+     */
+    public static TransitiveMemberOfGroupsResponse decodeTransitiveMemberOfGroups(JsonParser parser) throws IOException {
+        List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+        decodeTransitiveMemberOfGroupsPage(parser, new GroupPageCallback() {
+            @Override
+            public void nextLink(String nextLink) {
+                // Single page decoding ignores further pages
+            }
+
+            @Override
+            public boolean group(TransitiveMemberOfGroup group) {
+                return groups.add(group);
+            }
+        });
+
+        TransitiveMemberOfGroupsResponse response = new TransitiveMemberOfGroupsResponse();
+        response.setValue(groups);
+        return response;
+    }
+
+    /**
+     * Decodes a single transitive member of groups page and passes groups to the callback as
+     * they are read. Next link is passed to the callback as soon as it is encountered, which
+     * allows the next page to be requested while the current one is still being decoded.
+     *
+     * @param parser JSON parser positioned before the response object
+     * @param callback page callback
+     * @return true when the whole page was decoded, false when the callback stopped decoding
+     * @throws IOException thrown when payload is malformed
+     */
+    public static boolean decodeTransitiveMemberOfGroupsPage(JsonParser parser, GroupPageCallback callback) throws IOException {
+        expectStartObject(parser);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_NEXT_LINK.equals(field) && token == JsonToken.VALUE_STRING) {
+                callback.nextLink(parser.getText());
+            } else if (FIELD_VALUE.equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (!callback.group(decodeGroup(parser))) {
+                        return false;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes a single groups delta page. Groups are passed to the callback before their member
+     * changes. User and group members are reported, other members are skipped.
+     *
+     * @param parser JSON parser positioned before the response object
+     * @param callback page callback
+     * @throws IOException thrown when payload is malformed
+     */
+    public static void decodeGroupsDeltaPage(JsonParser parser, GroupDeltaPageCallback callback) throws IOException {
+        expectStartObject(parser);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_NEXT_LINK.equals(field) && token == JsonToken.VALUE_STRING) {
+                callback.nextLink(parser.getText());
+            } else if (FIELD_DELTA_LINK.equals(field) && token == JsonToken.VALUE_STRING) {
+                callback.deltaLink(parser.getText());
+            } else if (FIELD_VALUE.equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    decodeDeltaGroup(parser, callback);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Decodes first profile position from profile positions response. Only company display
+     * name and department are read and remaining positions are not parsed.
+     *
+     * @param parser JSON parser positioned before the response object
+     * @return first profile position or null if response does not contain any
+     * @throws IOException thrown when payload is malformed
+     */
+    public static GraphProfilePosition decodeFirstProfilePosition(JsonParser parser) throws IOException {
+        expectStartObject(parser);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_VALUE.equals(field) && token == JsonToken.START_ARRAY) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    return decodeProfilePosition(parser);
+                }
+
+                return null;
+            }
+
+            parser.skipChildren();
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes single group object
+     *
+     * @param parser JSON parser positioned at group start object
+     * @return group
+     * @throws IOException thrown when payload is malformed
+     */
+    private static TransitiveMemberOfGroup decodeGroup(JsonParser parser) throws IOException {
+        TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_ID.equals(field) && token == JsonToken.VALUE_STRING) {
+                group.setId(UUID.fromString(parser.getText()));
+            } else if (FIELD_DISPLAY_NAME.equals(field) && token == JsonToken.VALUE_STRING) {
+                group.setDisplayName(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return group;
+    }
+
+    /**
+     * Decodes single groups delta object and passes it and its member changes to the callback
+     *
+     * @param parser JSON parser positioned at group start object
+     * @param callback delta callback
+     * @throws IOException thrown when payload is malformed
+     */
+    private static void decodeDeltaGroup(JsonParser parser, GroupDeltaCallback callback) throws IOException {
+        String id = null;
+        String displayName = null;
+        boolean removed = false;
+        List<DeltaMember> members = new ArrayList<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_ID.equals(field) && token == JsonToken.VALUE_STRING) {
+                id = parser.getText();
+            } else if (FIELD_DISPLAY_NAME.equals(field) && token == JsonToken.VALUE_STRING) {
+                displayName = parser.getText();
+            } else if (FIELD_REMOVED.equals(field)) {
+                removed = true;
+                parser.skipChildren();
+            } else if (FIELD_MEMBERS_DELTA.equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    DeltaMember member = decodeDeltaMember(parser);
+                    if (member != null) {
+                        members.add(member);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (id == null) {
+            return;
+        }
+
+        callback.group(id, displayName, removed);
+
+        for (DeltaMember member : members) {
+            if (member.group()) {
+                callback.nestedGroup(id, member.id(), member.removed());
+            } else {
+                callback.member(id, member.id(), member.removed());
+            }
+        }
+    }
+
+    /**
+     * Decodes single member change of a groups delta object. Members other than users and groups
+     * are skipped.
+     *
+     * @param parser JSON parser positioned at member start object
+     * @return member change or null if the member is skipped
+     * @throws IOException thrown when payload is malformed
+     */
+    private static DeltaMember decodeDeltaMember(JsonParser parser) throws IOException {
+        String id = null;
+        String type = null;
+        boolean removed = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_ID.equals(field) && token == JsonToken.VALUE_STRING) {
+                id = parser.getText();
+            } else if (FIELD_TYPE.equals(field) && token == JsonToken.VALUE_STRING) {
+                type = parser.getText();
+            } else if (FIELD_REMOVED.equals(field)) {
+                removed = true;
+                parser.skipChildren();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (id == null || !(USER_TYPE.equals(type) || GROUP_TYPE.equals(type))) {
+            return null;
+        }
+
+        return new DeltaMember(id, GROUP_TYPE.equals(type), removed);
+    }
+
+    /**
+     * Decodes single profile position object
+     *
+     * @param parser JSON parser positioned at position start object
+     * @return profile position
+     * @throws IOException thrown when payload is malformed
+     */
+    private static GraphProfilePosition decodeProfilePosition(JsonParser parser) throws IOException {
+        GraphProfilePosition position = new GraphProfilePosition();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_DETAIL.equals(field) && token == JsonToken.START_OBJECT) {
+                GraphProfilePositionDetail detail = new GraphProfilePositionDetail();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String detailField = parser.currentName();
+                    JsonToken detailToken = parser.nextToken();
+
+                    if (FIELD_COMPANY.equals(detailField) && detailToken == JsonToken.START_OBJECT) {
+                        detail.setCompany(decodeProfileCompany(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+
+                position.setDetail(detail);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Decodes profile company object
+     *
+     * @param parser JSON parser positioned at company start object
+     * @return profile company
+     * @throws IOException thrown when payload is malformed
+     */
+    private static GraphProfileCompany decodeProfileCompany(JsonParser parser) throws IOException {
+        GraphProfileCompany company = new GraphProfileCompany();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+
+            if (FIELD_DISPLAY_NAME.equals(field) && token == JsonToken.VALUE_STRING) {
+                company.setDisplayName(parser.getText());
+            } else if (FIELD_DEPARTMENT.equals(field) && token == JsonToken.VALUE_STRING) {
+                company.setDepartment(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return company;
+    }
+
+    /**
+     * Callback for streamed transitive member of groups pages
+     */
+    public interface GroupPageCallback {
+
+        /**
+         * Called when the page contains a link to the next page
+         *
+         * @param nextLink absolute URL of the next page
+         */
+        void nextLink(String nextLink);
+
+        /**
+         * Called for each group of the page
+         *
+         * @param group group
+         * @return false to stop decoding
+         */
+        boolean group(TransitiveMemberOfGroup group);
+
+    }
+
+    /**
+     * Callback for streamed groups delta pages
+     */
+    public interface GroupDeltaPageCallback extends GroupDeltaCallback {
+
+        /**
+         * Called when the page contains a link to the next page
+         *
+         * @param nextLink absolute URL of the next page
+         */
+        void nextLink(String nextLink);
+
+        /**
+         * Called when the page is the last one and contains a link for the next delta round
+         *
+         * @param deltaLink absolute URL of the next delta round
+         */
+        void deltaLink(String deltaLink);
+
+    }
+
+    /**
+     * Member change of a groups delta object
+     *
+     * @param id member id
+     * @param group whether the member is a group
+     * @param removed whether the member was removed
+     */
+    private record DeltaMember(String id, boolean group, boolean removed) {
+    }
+
+    /**
+     * Advances parser to the start of the response object
+     *
+     * @param parser JSON parser
+     * @throws IOException thrown when payload does not start with an object
+     */
+    private static void expectStartObject(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken() == JsonToken.START_OBJECT ? JsonToken.START_OBJECT : parser.nextToken();
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected JSON object");
+        }
+    }
+
+}
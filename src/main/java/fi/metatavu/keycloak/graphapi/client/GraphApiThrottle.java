@@ -0,0 +1,282 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side throttling of Graph API requests.
+ *
+ * Requests of each Azure tenant draw from a token bucket, so a burst of logins is spread out
+ * before Graph API starts throttling the tenant. Throttled responses are retried after the delay
+ * requested with Retry-After, or after an exponential backoff with full jitter when Graph API does
+ * not tell, and a Retry-After pauses the whole tenant. Retries are bounded by count and by a
+ * retry budget. Throttle events are counted per Keycloak node.
+ */
+class GraphApiThrottle {
+
+    static final String DEFAULT_TENANT = "default";
+
+    private static final String CLAIM_TENANT_ID = "tid";
+    private static final long BACKOFF_BASE_MILLIS = 500;
+    private static final long BACKOFF_MAX_MILLIS = 10000;
+    private static final double RETRY_AFTER_JITTER = 0.1;
+
+    private final double requestsPerSecond;
+    private final int burst;
+    private final int maxRetries;
+    private final long retryBudgetNanos;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder throttledResponses = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder delayedRequests = new LongAdder();
+    private final LongAdder exhaustedRequests = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param settings client settings
+     */
+    GraphApiThrottle(GraphApiClientSettings settings) {
+        this.requestsPerSecond = settings.getRateLimit();
+        this.burst = Math.max(settings.getRateLimitBurst(), 1);
+        this.maxRetries = settings.getMaxRetries();
+        this.retryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(settings.getRetryBudget());
+    }
+
+    /**
+     * Returns retry budget of a request
+     *
+     * @return retry budget in nanoseconds
+     */
+    long getRetryBudgetNanos() {
+        return retryBudgetNanos;
+    }
+
+    /**
+     * Reserves a request from the bucket of a tenant
+     *
+     * @param tenantId tenant id
+     * @return nanoseconds to wait before the request may be sent
+     */
+    long reserve(String tenantId) {
+        long wait = getBucket(tenantId).reserve(System.nanoTime());
+        if (wait > 0) {
+            delayedRequests.increment();
+        }
+
+        return wait;
+    }
+
+    /**
+     * Returns a reservation that was not used
+     *
+     * @param tenantId tenant id
+     */
+    void release(String tenantId) {
+        getBucket(tenantId).release();
+    }
+
+    /**
+     * Returns whether a response status is a throttling response that may be retried
+     *
+     * @param statusCode status code
+     * @return whether the status is a throttling response
+     */
+    boolean isThrottled(int statusCode) {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * Records a throttled response and returns delay before it should be retried
+     *
+     * @param tenantId tenant id
+     * @param retryAfter value of Retry-After header
+     * @param attempt number of retries already done
+     * @param deadline retry deadline in System.nanoTime() units
+     * @return delay in nanoseconds or -1 if the request must not be retried
+     */
+    long onThrottled(String tenantId, Optional<String> retryAfter, int attempt, long deadline) {
+        throttledResponses.increment();
+
+        long retryAfterNanos = retryAfter.map(GraphApiThrottle::parseRetryAfter).orElse(-1L);
+        long delay;
+        if (retryAfterNanos >= 0) {
+            delay = retryAfterNanos + (long) (retryAfterNanos * RETRY_AFTER_JITTER * ThreadLocalRandom.current().nextDouble());
+            getBucket(tenantId).pause(System.nanoTime() + retryAfterNanos);
+        } else {
+            long cap = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+            delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(cap + 1));
+        }
+
+        if (attempt >= maxRetries || System.nanoTime() + delay > deadline) {
+            exhaustedRequests.increment();
+            return -1;
+        }
+
+        retries.increment();
+        return delay;
+    }
+
+    /**
+     * Records a request that was given up because the rate limit wait exceeded its budget
+     */
+    void onRateLimitExceeded() {
+        exhaustedRequests.increment();
+    }
+
+    /**
+     * Returns throttle statistics of this Keycloak node
+     *
+     * @return throttle statistics
+     */
+    GraphApiThrottleStatistics getStatistics() {
+        return new GraphApiThrottleStatistics(throttledResponses.sum(), retries.sum(), delayedRequests.sum(), exhaustedRequests.sum());
+    }
+
+    /**
+     * Returns Azure tenant id of an access token. Tokens that are not JWTs or do not contain the
+     * tenant id share the default tenant.
+     *
+     * @param token access token
+     * @return tenant id
+     */
+    static String getTenantId(String token) {
+        int payloadStart = token != null ? token.indexOf('.') + 1 : 0;
+        int payloadEnd = payloadStart > 0 ? token.indexOf('.', payloadStart) : -1;
+        if (payloadEnd < 0) {
+            return DEFAULT_TENANT;
+        }
+
+        try (JsonParser parser = GraphApiJson.factory().createParser(Base64.getUrlDecoder().decode(token.substring(payloadStart, payloadEnd)))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return DEFAULT_TENANT;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if (CLAIM_TENANT_ID.equals(name)) {
+                    return parser.getValueAsString(DEFAULT_TENANT);
+                }
+
+                parser.skipChildren();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            return DEFAULT_TENANT;
+        }
+
+        return DEFAULT_TENANT;
+    }
+
+    /**
+     * Parses Retry-After header value given either in seconds or as an HTTP date
+     *
+     * @param value header value
+     * @return delay in nanoseconds or -1 if the value is invalid
+     */
+    private static long parseRetryAfter(String value) {
+        String trimmed = value.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(Long.parseLong(trimmed), 0));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).toNanos(), 0);
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns token bucket of a tenant
+     *
+     * @param tenantId tenant id
+     * @return token bucket
+     */
+    private TokenBucket getBucket(String tenantId) {
+        return buckets.computeIfAbsent(tenantId, id -> new TokenBucket(requestsPerSecond, burst));
+    }
+
+    /**
+     * Token bucket of a tenant. Reservations may take the bucket into debt, in which case the
+     * caller waits until the debt is refilled.
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final int capacity;
+        private double tokens;
+        private long refilledAt;
+        private long pausedUntil;
+
+        /**
+         * Constructor
+         *
+         * @param requestsPerSecond refill rate or 0 when requests are not rate limited
+         * @param capacity bucket capacity
+         */
+        private TokenBucket(double requestsPerSecond, int capacity) {
+            this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+            this.pausedUntil = refilledAt;
+        }
+
+        /**
+         * Reserves a token
+         *
+         * @param now current time in System.nanoTime() units
+         * @return nanoseconds to wait before the token is available
+         */
+        private synchronized long reserve(long now) {
+            long pause = Math.max(pausedUntil - now, 0);
+            if (tokensPerNano <= 0) {
+                return pause;
+            }
+
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            tokens -= 1;
+
+            long wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+            return Math.max(wait, pause);
+        }
+
+        /**
+         * Returns an unused token
+         */
+        private synchronized void release() {
+            if (tokensPerNano > 0) {
+                tokens = Math.min(capacity, tokens + 1);
+            }
+        }
+
+        /**
+         * Pauses requests of the tenant
+         *
+         * @param until end of the pause in System.nanoTime() units
+         */
+        private synchronized void pause(long until) {
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+            }
+        }
+
+    }
+
+}
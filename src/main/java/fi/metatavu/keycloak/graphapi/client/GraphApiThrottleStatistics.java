@@ -0,0 +1,12 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Graph API throttle statistics of a Keycloak node
+ *
+ * @param throttledResponses number of 429 and 503 responses received from Graph API
+ * @param retries number of retried requests
+ * @param delayedRequests number of requests delayed by the client side rate limit or a tenant pause
+ * @param exhaustedRequests number of requests given up because retries or the retry budget ran out
+ */
+public record GraphApiThrottleStatistics(long throttledResponses, long retries, long delayedRequests, long exhaustedRequests) {
+}
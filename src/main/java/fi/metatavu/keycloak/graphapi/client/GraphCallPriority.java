@@ -0,0 +1,42 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Priority of a Graph API call within the login deadline.
+ *
+ * A call is started only when at least the reserved share of the login budget remains, so
+ * optional enrichment is dropped first when a login is already slow and the core user and group
+ * reads are cut last.
+ */
+enum GraphCallPriority {
+
+    /**
+     * User and user group reads
+     */
+    CORE(0.0),
+
+    /**
+     * Manager reads
+     */
+    SECONDARY(0.25),
+
+    /**
+     * Best-effort enrichment such as profile positions and manager groups
+     */
+    OPTIONAL(0.5);
+
+    private final double reserve;
+
+    GraphCallPriority(double reserve) {
+        this.reserve = reserve;
+    }
+
+    /**
+     * Returns share of the login budget that must remain for a call to be started
+     *
+     * @return share of the login budget
+     */
+    double getReserve() {
+        return reserve;
+    }
+
+}
@@ -0,0 +1,37 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Response of a conditional Graph API request sent with the entity tag of a previously read
+ * value
+ *
+ * @param modified whether the resource changed since the entity tag. When false, the previous
+ *                 value is still current and the response carries no value
+ * @param value resource or null if the resource does not exist or was not modified
+ * @param entityTag entity tag of the current value or null if Graph API did not return one
+ * @param <T> resource type
+ */
+public record GraphConditionalResponse<T>(boolean modified, T value, String entityTag) {
+
+    /**
+     * Returns response for a resource that has not changed
+     *
+     * @param entityTag entity tag sent with the request
+     * @return response
+     * @param <T> resource type
+     */
+    static <T> GraphConditionalResponse<T> notModified(String entityTag) {
+        return new GraphConditionalResponse<>(false, null, entityTag);
+    }
+
+    /**
+     * Returns response for a resource that was read
+     *
+     * @param value resource or null if the resource does not exist
+     * @param entityTag entity tag of the resource or null
+     * @return response
+     * @param <T> resource type
+     */
+    static <T> GraphConditionalResponse<T> modified(T value, String entityTag) {
+        return new GraphConditionalResponse<>(true, value, entityTag);
+    }
+}
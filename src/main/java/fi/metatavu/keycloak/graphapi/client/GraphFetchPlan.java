@@ -0,0 +1,205 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Graph API resources and user properties needed by the mappers of a login.
+ *
+ * User and manager properties are turned into $select projections. When a user or manager is
+ * requested without listing properties, the default properties of Graph API are fetched.
+ */
+public class GraphFetchPlan {
+
+    private static final String PROPERTY_ID = "id";
+    private static final String PROPERTY_COMPANY_NAME = "companyName";
+    private static final String PROPERTY_DEPARTMENT = "department";
+
+    private final Set<GraphResource> resources = EnumSet.noneOf(GraphResource.class);
+    private Set<String> userProperties;
+    private Set<String> managerProperties;
+
+    /**
+     * Returns a plan for given resources with default properties
+     *
+     * @param resources resources
+     * @return plan
+     */
+    public static GraphFetchPlan of(Set<GraphResource> resources) {
+        GraphFetchPlan plan = new GraphFetchPlan();
+        resources.forEach(plan::addResource);
+        return plan;
+    }
+
+    public Set<GraphResource> getResources() {
+        return resources;
+    }
+
+    /**
+     * Returns user properties to select
+     *
+     * @return user properties or null when default properties are fetched
+     */
+    public Set<String> getUserProperties() {
+        return userProperties;
+    }
+
+    /**
+     * Returns manager properties to select
+     *
+     * @return manager properties or null when default properties are fetched
+     */
+    public Set<String> getManagerProperties() {
+        return managerProperties;
+    }
+
+    /**
+     * Adds a resource with default properties
+     *
+     * @param resource resource
+     * @return this plan
+     */
+    public GraphFetchPlan addResource(GraphResource resource) {
+        resources.add(resource);
+
+        if (resource == GraphResource.USER) {
+            userProperties = null;
+        } else if (resource == GraphResource.MANAGER) {
+            managerProperties = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a user property. User is added to the plan when it is not there yet.
+     *
+     * @param property Graph API user property
+     * @return this plan
+     */
+    public GraphFetchPlan addUserProperty(String property) {
+        if (resources.add(GraphResource.USER)) {
+            userProperties = new TreeSet<>();
+        }
+
+        if (userProperties != null) {
+            userProperties.add(property);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a manager property. Manager is added to the plan when it is not there yet.
+     *
+     * @param property Graph API user property
+     * @return this plan
+     */
+    public GraphFetchPlan addManagerProperty(String property) {
+        if (resources.add(GraphResource.MANAGER)) {
+            managerProperties = new TreeSet<>();
+        }
+
+        if (managerProperties != null) {
+            managerProperties.add(property);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds resources and properties of another plan into this plan
+     *
+     * @param other other plan
+     * @return this plan
+     */
+    public GraphFetchPlan merge(GraphFetchPlan other) {
+        for (GraphResource resource : other.getResources()) {
+            if (resource == GraphResource.USER && other.getUserProperties() != null) {
+                other.getUserProperties().forEach(this::addUserProperty);
+            } else if (resource == GraphResource.MANAGER && other.getManagerProperties() != null) {
+                other.getManagerProperties().forEach(this::addManagerProperty);
+            } else {
+                addResource(resource);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns a plan without given resources
+     *
+     * @param excluded resources to leave out
+     * @return new plan
+     */
+    public GraphFetchPlan without(Set<GraphResource> excluded) {
+        GraphFetchPlan result = new GraphFetchPlan().merge(this);
+        result.resources.removeAll(excluded);
+        return result;
+    }
+
+    /**
+     * Returns $select value for user properties
+     *
+     * @return $select value or null when default properties are fetched
+     */
+    public String getUserSelect() {
+        return getSelect(userProperties);
+    }
+
+    /**
+     * Returns $select value for manager properties
+     *
+     * @return $select value or null when default properties are fetched
+     */
+    public String getManagerSelect() {
+        return getSelect(managerProperties);
+    }
+
+    /**
+     * Returns whether user's company should be completed from profile positions
+     *
+     * @return whether user's company is needed
+     */
+    public boolean isUserCompanyNeeded() {
+        return isCompanyNeeded(userProperties);
+    }
+
+    /**
+     * Returns whether manager's company should be completed from profile positions
+     *
+     * @return whether manager's company is needed
+     */
+    public boolean isManagerCompanyNeeded() {
+        return isCompanyNeeded(managerProperties);
+    }
+
+    /**
+     * Returns $select value for properties. Id is always selected.
+     *
+     * @param properties properties or null for default properties
+     * @return $select value or null for default properties
+     */
+    private static String getSelect(Set<String> properties) {
+        if (properties == null) {
+            return null;
+        }
+
+        Set<String> result = new TreeSet<>(properties);
+        result.add(PROPERTY_ID);
+        return String.join(",", result);
+    }
+
+    /**
+     * Returns whether company properties are needed
+     *
+     * @param properties properties or null for default properties
+     * @return whether company properties are needed
+     */
+    private static boolean isCompanyNeeded(Set<String> properties) {
+        return properties == null || properties.contains(PROPERTY_COMPANY_NAME) || properties.contains(PROPERTY_DEPARTMENT);
+    }
+
+}
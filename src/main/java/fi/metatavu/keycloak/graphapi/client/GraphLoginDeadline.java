@@ -0,0 +1,52 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of Graph API calls of a single login
+ */
+final class GraphLoginDeadline {
+
+    private final long budgetNanos;
+    private final long expiresAt;
+
+    /**
+     * Constructor
+     *
+     * @param budgetMillis login budget in milliseconds
+     */
+    GraphLoginDeadline(long budgetMillis) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.expiresAt = System.nanoTime() + budgetNanos;
+    }
+
+    /**
+     * Returns when the deadline expires
+     *
+     * @return expiry in System.nanoTime() units
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns remaining budget
+     *
+     * @return remaining budget in nanoseconds, negative when the deadline has passed
+     */
+    long getRemainingNanos() {
+        return expiresAt - System.nanoTime();
+    }
+
+    /**
+     * Returns whether enough budget remains for a call of given priority
+     *
+     * @param priority call priority
+     * @return whether the call may be started
+     */
+    boolean allows(GraphCallPriority priority) {
+        long remaining = getRemainingNanos();
+        return remaining > 0 && remaining >= budgetNanos * priority.getReserve();
+    }
+
+}
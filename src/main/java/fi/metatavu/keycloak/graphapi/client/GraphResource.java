@@ -0,0 +1,28 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Graph API resources that can be fetched for a login
+ */
+public enum GraphResource {
+
+    /**
+     * Logged user, enriched with profile position company data
+     */
+    USER,
+
+    /**
+     * Logged user's transitive group memberships
+     */
+    USER_GROUPS,
+
+    /**
+     * Logged user's manager, enriched with profile position company data
+     */
+    MANAGER,
+
+    /**
+     * Manager's transitive group memberships
+     */
+    MANAGER_GROUPS
+
+}
@@ -0,0 +1,25 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * How the Graph API snapshot of a login is kept in the authentication session between requests
+ * of the login
+ */
+public enum GraphSnapshotNoteFormat {
+
+    /**
+     * Versioned binary encoding with only the fields mappers use
+     */
+    COMPACT,
+
+    /**
+     * JSON encoding of the whole snapshot, as written by earlier versions of the extension
+     */
+    JSON,
+
+    /**
+     * Snapshot is kept only for the request it was fetched in and not stored in the
+     * authentication session
+     */
+    NONE
+
+}
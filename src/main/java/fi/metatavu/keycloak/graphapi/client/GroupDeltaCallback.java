@@ -0,0 +1,35 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+/**
+ * Receiver of group and membership changes read from Graph API groups delta
+ */
+public interface GroupDeltaCallback {
+
+    /**
+     * Called for each changed group
+     *
+     * @param groupId group id
+     * @param displayName display name or null if it did not change
+     * @param removed whether the group was deleted
+     */
+    void group(String groupId, String displayName, boolean removed);
+
+    /**
+     * Called for each changed user membership of a group
+     *
+     * @param groupId group id
+     * @param userId user object id
+     * @param removed whether the user was removed from the group
+     */
+    void member(String groupId, String userId, boolean removed);
+
+    /**
+     * Called for each changed group membership of a group
+     *
+     * @param groupId group id
+     * @param memberGroupId id of the member group
+     * @param removed whether the member group was removed from the group
+     */
+    void nestedGroup(String groupId, String memberGroupId, boolean removed);
+
+}
@@ -0,0 +1,18 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+
+/**
+ * Receives groups one by one while transitive member of pages are being fetched
+ */
+@FunctionalInterface
+public interface TransitiveMemberOfGroupVisitor {
+
+    /**
+     * Visits a single group
+     *
+     * @param group group
+     */
+    void visit(TransitiveMemberOfGroup group);
+
+}
@@ -0,0 +1,19 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+import java.util.List;
+
+/**
+ * checkMemberGroups request model for Microsoft Graph API
+ */
+public class CheckMemberGroupsRequest {
+
+    private List<String> groupIds;
+
+    public List<String> getGroupIds() {
+        return groupIds;
+    }
+
+    public void setGroupIds(List<String> groupIds) {
+        this.groupIds = groupIds;
+    }
+}
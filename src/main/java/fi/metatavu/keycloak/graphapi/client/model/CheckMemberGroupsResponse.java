@@ -0,0 +1,22 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * checkMemberGroups response model for Microsoft Graph API
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CheckMemberGroupsResponse {
+
+    private List<String> value;
+
+    public List<String> getValue() {
+        return value;
+    }
+
+    public void setValue(List<String> value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,19 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+import java.util.List;
+
+/**
+ * JSON batch request model for Microsoft Graph API
+ */
+public class GraphBatchRequest {
+
+    private List<GraphBatchRequestItem> requests;
+
+    public List<GraphBatchRequestItem> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<GraphBatchRequestItem> requests) {
+        this.requests = requests;
+    }
+}
@@ -0,0 +1,37 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+/**
+ * Single request of a JSON batch request
+ */
+public class GraphBatchRequestItem {
+
+    private String id;
+
+    private String method;
+
+    private String url;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+}
@@ -0,0 +1,23 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * JSON batch response model for Microsoft Graph API
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GraphBatchResponse {
+
+    private List<GraphBatchResponseItem> responses;
+
+    public List<GraphBatchResponseItem> getResponses() {
+        return responses;
+    }
+
+    @SuppressWarnings("unused")
+    public void setResponses(List<GraphBatchResponseItem> responses) {
+        this.responses = responses;
+    }
+}
@@ -0,0 +1,22 @@
+package fi.metatavu.keycloak.graphapi.client.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import fi.metatavu.keycloak.graphapi.model.GraphUser;
+
+/**
+ * User response model with the manager expanded into it
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GraphUserWithManager extends GraphUser {
+
+    private GraphUser manager;
+
+    public GraphUser getManager() {
+        return manager;
+    }
+
+    @SuppressWarnings("unused")
+    public void setManager(GraphUser manager) {
+        this.manager = manager;
+    }
+}
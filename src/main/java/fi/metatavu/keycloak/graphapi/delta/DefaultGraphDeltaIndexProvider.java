@@ -0,0 +1,39 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import org.keycloak.models.RealmModel;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Default Graph API group membership index provider
+ */
+public class DefaultGraphDeltaIndexProvider implements GraphDeltaIndexProvider {
+
+    private final DefaultGraphDeltaIndexProviderFactory providerFactory;
+
+    /**
+     * Constructor
+     *
+     * @param providerFactory provider factory holding the indexes
+     */
+    public DefaultGraphDeltaIndexProvider(DefaultGraphDeltaIndexProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+    }
+
+    @Override
+    public List<TransitiveMemberOfGroup> getUserGroups(RealmModel realm, String identityProviderAlias, String userObjectId, Set<String> groupNames) {
+        GraphGroupMembershipIndex index = providerFactory.getIndex(realm.getId(), identityProviderAlias);
+        if (!index.isReady() || !index.getGroupNames().containsAll(groupNames) || index.hasNestedGroups()) {
+            return null;
+        }
+
+        return index.getUserGroups(userObjectId);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
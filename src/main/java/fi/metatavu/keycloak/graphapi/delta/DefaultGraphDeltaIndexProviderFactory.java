@@ -0,0 +1,155 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+import org.keycloak.services.scheduled.ScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default Graph API group membership index provider factory.
+ *
+ * Every Keycloak node keeps its own indexes in memory and persists them into files, so after a
+ * restart the node continues from the stored delta links instead of reading all memberships again.
+ */
+public class DefaultGraphDeltaIndexProviderFactory implements GraphDeltaIndexProviderFactory, ServerInfoAwareProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(DefaultGraphDeltaIndexProviderFactory.class);
+
+    public static final String PROVIDER_ID = "default";
+
+    private static final String TASK_NAME = "graph-api-delta-sync";
+    private static final String CONFIG_SYNC_INTERVAL = "syncInterval";
+    private static final String CONFIG_DIRECTORY = "directory";
+
+    private static final int DEFAULT_SYNC_INTERVAL = 300;
+
+    private final Map<String, GraphGroupMembershipIndex> indexes = new ConcurrentHashMap<>();
+    private final GraphDeltaSynchronizer synchronizer = new GraphDeltaSynchronizer();
+
+    private int syncInterval;
+    private GraphGroupMembershipIndexStore store;
+
+    @Override
+    public GraphDeltaIndexProvider create(KeycloakSession session) {
+        return new DefaultGraphDeltaIndexProvider(this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        syncInterval = config.getInt(CONFIG_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL);
+        store = new GraphGroupMembershipIndexStore(Path.of(config.get(CONFIG_DIRECTORY, getDefaultDirectory())));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (syncInterval <= 0) {
+            logger.info("Graph API delta index synchronization disabled");
+            return;
+        }
+
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                    TimerProvider timer = session.getProvider(TimerProvider.class);
+                    timer.schedule(new ScheduledTaskRunner(factory, new GraphDeltaSyncTask(this)), syncInterval * 1000L, TASK_NAME);
+                });
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        indexes.clear();
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        indexes.forEach((key, index) -> info.put(key, String.format("ready=%s, users=%d, synchronizedAt=%d", index.isReady(), index.getMemberships().size(), index.getSynchronizedAt())));
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+                .name(CONFIG_SYNC_INTERVAL)
+                .type("int")
+                .helpText("Interval of delta synchronization rounds in seconds, 0 disables synchronization")
+                .defaultValue(DEFAULT_SYNC_INTERVAL)
+                .add()
+            .property()
+                .name(CONFIG_DIRECTORY)
+                .type("string")
+                .helpText("Directory where the indexes are persisted")
+                .defaultValue(getDefaultDirectory())
+                .add()
+            .build();
+    }
+
+    /**
+     * Returns index of an identity provider, loading it from the store on first use
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     * @return index
+     */
+    GraphGroupMembershipIndex getIndex(String realmId, String identityProviderAlias) {
+        return indexes.computeIfAbsent(realmId + "/" + identityProviderAlias, key -> {
+            GraphGroupMembershipIndex index = store.load(realmId, identityProviderAlias);
+            return index != null ? index : new GraphGroupMembershipIndex();
+        });
+    }
+
+    /**
+     * Runs a delta round for an identity provider and persists the index
+     *
+     * @param session Keycloak session
+     * @param source identity provider
+     */
+    void synchronize(KeycloakSession session, GraphDeltaSource source) {
+        GraphGroupMembershipIndex index = getIndex(source.realmId(), source.identityProviderAlias());
+        GraphApiClient graphApiClient = session.getProvider(GraphApiClient.class);
+        RealmModel realm = session.realms().getRealm(source.realmId());
+        graphApiClient.setMetricTags(realm != null ? realm.getName() : null, source.identityProviderAlias());
+
+        try {
+            synchronizer.synchronize(graphApiClient, source, index);
+            store.save(source.realmId(), source.identityProviderAlias(), index);
+        } catch (IOException e) {
+            logger.warnf(e, "Graph API delta synchronization failed [realm=%s, alias=%s]", source.realmId(), source.identityProviderAlias());
+        }
+    }
+
+    /**
+     * Returns default directory of the persisted indexes
+     *
+     * @return default directory
+     */
+    private String getDefaultDirectory() {
+        String home = System.getProperty("kc.home.dir", System.getProperty("java.io.tmpdir"));
+        return Path.of(home, "data", "graph-api-delta").toString();
+    }
+
+}
@@ -0,0 +1,28 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Local index of Azure group memberships maintained in the background from Graph API groups delta
+ */
+public interface GraphDeltaIndexProvider extends Provider {
+
+    /**
+     * Returns user's memberships in the indexed groups of an identity provider. The index holds
+     * only direct members, so it is not used while an indexed group has groups as members.
+     *
+     * @param realm realm
+     * @param identityProviderAlias identity provider alias
+     * @param userObjectId Azure object id of the user
+     * @param groupNames normalized names of the groups the caller needs
+     * @return groups of the user or null if the index is not synchronized for given groups or
+     *         contains nested groups
+     */
+    List<TransitiveMemberOfGroup> getUserGroups(RealmModel realm, String identityProviderAlias, String userObjectId, Set<String> groupNames);
+
+}
@@ -0,0 +1,9 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Provider factory for Graph API group membership indexes
+ */
+public interface GraphDeltaIndexProviderFactory extends ProviderFactory<GraphDeltaIndexProvider> {
+}
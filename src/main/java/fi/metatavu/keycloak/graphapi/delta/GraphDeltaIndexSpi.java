@@ -0,0 +1,35 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI for local group membership indexes maintained from Graph API groups delta
+ */
+public class GraphDeltaIndexSpi implements Spi {
+
+    public static final String NAME = "graph-api-delta-index";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return GraphDeltaIndexProvider.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return GraphDeltaIndexProviderFactory.class;
+    }
+
+}
@@ -0,0 +1,16 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import java.util.Set;
+
+/**
+ * Identity provider whose groups are indexed from Graph API groups delta
+ *
+ * @param realmId realm id
+ * @param identityProviderAlias identity provider alias
+ * @param tokenUrl token endpoint of the identity provider
+ * @param clientId client id of the identity provider
+ * @param clientSecret client secret of the identity provider
+ * @param groupNames normalized names of the groups to index
+ */
+record GraphDeltaSource(String realmId, String identityProviderAlias, String tokenUrl, String clientId, String clientSecret, Set<String> groupNames) {
+}
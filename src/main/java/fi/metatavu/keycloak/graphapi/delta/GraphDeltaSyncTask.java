@@ -0,0 +1,78 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.GraphApiGroupsIdentityProviderMapper;
+import org.keycloak.broker.oidc.OIDCIdentityProviderConfig;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Scheduled task that runs a delta round for every identity provider with Graph API groups
+ * mappers reading memberships from the delta index
+ */
+class GraphDeltaSyncTask implements ScheduledTask {
+
+    private final DefaultGraphDeltaIndexProviderFactory providerFactory;
+
+    /**
+     * Constructor
+     *
+     * @param providerFactory delta index provider factory
+     */
+    GraphDeltaSyncTask(DefaultGraphDeltaIndexProviderFactory providerFactory) {
+        this.providerFactory = providerFactory;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        List<GraphDeltaSource> sources = new ArrayList<>();
+        session.realms().getRealmsStream().forEach(realm -> sources.addAll(getSources(session, realm)));
+
+        for (GraphDeltaSource source : sources) {
+            providerFactory.synchronize(session, source);
+        }
+    }
+
+    /**
+     * Returns identity providers of a realm whose groups are indexed
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @return identity providers of the realm
+     */
+    private List<GraphDeltaSource> getSources(KeycloakSession session, RealmModel realm) {
+        session.getContext().setRealm(realm);
+
+        Map<String, Set<String>> groupNamesByAlias = new TreeMap<>();
+        session.identityProviders().getMappersStream()
+            .filter(mapperModel -> GraphApiGroupsIdentityProviderMapper.PROVIDER_ID.equals(mapperModel.getIdentityProviderMapper()))
+            .filter(GraphApiGroupsIdentityProviderMapper::isDeltaIndexSource)
+            .forEach(mapperModel -> groupNamesByAlias
+                .computeIfAbsent(mapperModel.getIdentityProviderAlias(), alias -> new TreeSet<>())
+                .addAll(GraphApiGroupsIdentityProviderMapper.getMappedGroupNames(mapperModel)));
+
+        List<GraphDeltaSource> result = new ArrayList<>();
+        groupNamesByAlias.forEach((alias, groupNames) -> {
+            IdentityProviderModel identityProvider = session.identityProviders().getByAlias(alias);
+            if (identityProvider == null || !identityProvider.isEnabled()) {
+                return;
+            }
+
+            OIDCIdentityProviderConfig config = new OIDCIdentityProviderConfig(identityProvider);
+            String clientSecret = session.vault().getStringSecret(config.getClientSecret()).get().orElse(config.getClientSecret());
+            result.add(new GraphDeltaSource(realm.getId(), alias, config.getTokenUrl(), config.getClientId(), clientSecret, groupNames));
+        });
+
+        return result;
+    }
+
+}
@@ -0,0 +1,147 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.GraphApiGroupsIdentityProviderMapper;
+import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import org.jboss.logging.Logger;
+import org.keycloak.representations.AccessTokenResponse;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Synchronizes group membership indexes from Graph API groups delta.
+ *
+ * Group names are resolved into ids once per index. After that, each round continues from the
+ * stored delta links, so only changes since the previous round are transferred.
+ */
+class GraphDeltaSynchronizer {
+
+    private static final Logger logger = Logger.getLogger(GraphDeltaSynchronizer.class);
+
+    private static final int DELTA_CHUNK_SIZE = 50;
+    private static final long TOKEN_EXPIRY_MARGIN_MILLIS = 60000;
+
+    private final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Runs a delta round for an identity provider
+     *
+     * @param graphApiClient Graph API client
+     * @param source identity provider
+     * @param index index of the identity provider
+     * @throws IOException thrown when Graph API requests fail
+     */
+    void synchronize(GraphApiClient graphApiClient, GraphDeltaSource source, GraphGroupMembershipIndex index) throws IOException {
+        AccessTokenResponse accessToken = getAccessToken(graphApiClient, source);
+
+        if (!index.getGroupNames().equals(source.groupNames()) || index.getNestedGroups() == null) {
+            logger.infof("Rebuilding Graph API group membership index [realm=%s, alias=%s]", source.realmId(), source.identityProviderAlias());
+            index.reset(source.groupNames());
+        }
+
+        if (index.getGroupIds().isEmpty()) {
+            index.setGroupIds(resolveGroupIds(graphApiClient, accessToken, source));
+        }
+
+        List<String> groupIds = index.getGroupIds();
+        List<String> deltaLinks = new ArrayList<>(index.getDeltaLinks());
+
+        for (int chunk = 0; chunk * DELTA_CHUNK_SIZE < groupIds.size(); chunk++) {
+            List<String> chunkIds = groupIds.subList(chunk * DELTA_CHUNK_SIZE, Math.min(groupIds.size(), (chunk + 1) * DELTA_CHUNK_SIZE));
+            String deltaLink = chunk < deltaLinks.size() ? deltaLinks.get(chunk) : null;
+
+            String nextDeltaLink = deltaLink == null
+                ? graphApiClient.startGroupsDelta(accessToken, chunkIds, index)
+                : graphApiClient.continueGroupsDelta(accessToken, deltaLink, index);
+
+            if (nextDeltaLink == null) {
+                index.reset(source.groupNames());
+                return;
+            }
+
+            if (chunk < deltaLinks.size()) {
+                deltaLinks.set(chunk, nextDeltaLink);
+            } else {
+                deltaLinks.add(nextDeltaLink);
+            }
+        }
+
+        index.setDeltaLinks(deltaLinks);
+        index.setSynchronizedAt(System.currentTimeMillis());
+        index.setReady(true);
+    }
+
+    /**
+     * Resolves ids of the groups to index. Groups mapped by object id are used as is, groups
+     * mapped by name are looked up from Graph API.
+     *
+     * @param graphApiClient Graph API client
+     * @param accessToken app-only access token
+     * @param source identity provider
+     * @return group ids
+     * @throws IOException thrown when Graph API requests fail
+     */
+    private List<String> resolveGroupIds(GraphApiClient graphApiClient, AccessTokenResponse accessToken, GraphDeltaSource source) throws IOException {
+        List<String> result = new ArrayList<>();
+
+        for (String groupName : source.groupNames()) {
+            UUID groupId = GraphApiGroupsIdentityProviderMapper.getMappedGroupId(groupName);
+            if (groupId != null) {
+                result.add(groupId.toString());
+                continue;
+            }
+
+            String displayName = URLDecoder.decode(groupName, StandardCharsets.UTF_8);
+            List<TransitiveMemberOfGroup> groups = graphApiClient.getGroupsByDisplayName(accessToken, displayName);
+            if (groups.isEmpty()) {
+                logger.warnf("Azure group not found for delta index [alias=%s, group=%s]", source.identityProviderAlias(), displayName);
+            }
+
+            for (TransitiveMemberOfGroup group : groups) {
+                result.add(group.getId().toString());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns app-only access token of an identity provider. Tokens are reused until shortly
+     * before they expire.
+     *
+     * @param graphApiClient Graph API client
+     * @param source identity provider
+     * @return access token
+     * @throws IOException thrown when token request fails
+     */
+    private AccessTokenResponse getAccessToken(GraphApiClient graphApiClient, GraphDeltaSource source) throws IOException {
+        String key = source.realmId() + "/" + source.identityProviderAlias();
+        long now = System.currentTimeMillis();
+
+        CachedToken cached = tokens.get(key);
+        if (cached != null && cached.expiresAt() > now) {
+            return cached.accessToken();
+        }
+
+        AccessTokenResponse accessToken = graphApiClient.getClientCredentialsToken(source.tokenUrl(), source.clientId(), source.clientSecret());
+        tokens.put(key, new CachedToken(accessToken, now + accessToken.getExpiresIn() * 1000 - TOKEN_EXPIRY_MARGIN_MILLIS));
+        return accessToken;
+    }
+
+    /**
+     * App-only access token with its expiry time
+     *
+     * @param accessToken access token
+     * @param expiresAt expiry time in epoch milliseconds
+     */
+    private record CachedToken(AccessTokenResponse accessToken, long expiresAt) {
+    }
+
+}
@@ -0,0 +1,216 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.client.GroupDeltaCallback;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Direct user memberships of the Azure groups of a single identity provider.
+ *
+ * The index is written by a single synchronizer and read concurrently by logins. Membership sets
+ * are immutable and replaced as a whole, so readers always see a consistent set for a user.
+ * Groups that are members of the indexed groups are tracked, because users of nested groups are
+ * not listed as members and the index is not complete for them.
+ */
+@SuppressWarnings("unused")
+public class GraphGroupMembershipIndex implements GroupDeltaCallback {
+
+    private Set<String> groupNames = Set.of();
+
+    private List<String> groupIds = List.of();
+
+    private List<String> deltaLinks = List.of();
+
+    private Map<String, String> groups = new ConcurrentHashMap<>();
+
+    private Map<String, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    private Map<String, Set<String>> nestedGroups;
+
+    private volatile boolean ready;
+
+    private long synchronizedAt;
+
+    public Set<String> getGroupNames() {
+        return groupNames;
+    }
+
+    public void setGroupNames(Set<String> groupNames) {
+        this.groupNames = Set.copyOf(groupNames);
+    }
+
+    public List<String> getGroupIds() {
+        return groupIds;
+    }
+
+    public void setGroupIds(List<String> groupIds) {
+        this.groupIds = List.copyOf(groupIds);
+    }
+
+    public List<String> getDeltaLinks() {
+        return deltaLinks;
+    }
+
+    public void setDeltaLinks(List<String> deltaLinks) {
+        this.deltaLinks = List.copyOf(deltaLinks);
+    }
+
+    public Map<String, String> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(Map<String, String> groups) {
+        this.groups = new ConcurrentHashMap<>(groups);
+    }
+
+    public Map<String, Set<String>> getMemberships() {
+        return memberships;
+    }
+
+    public void setMemberships(Map<String, Set<String>> memberships) {
+        Map<String, Set<String>> result = new ConcurrentHashMap<>();
+        memberships.forEach((userId, userGroupIds) -> result.put(userId, Set.copyOf(userGroupIds)));
+        this.memberships = result;
+    }
+
+    /**
+     * Returns member groups of the indexed groups
+     *
+     * @return member group ids by group id or null if the index was stored before nested groups
+     *         were tracked
+     */
+    public Map<String, Set<String>> getNestedGroups() {
+        return nestedGroups;
+    }
+
+    public void setNestedGroups(Map<String, Set<String>> nestedGroups) {
+        Map<String, Set<String>> result = new ConcurrentHashMap<>();
+        nestedGroups.forEach((groupId, memberGroupIds) -> result.put(groupId, Set.copyOf(memberGroupIds)));
+        this.nestedGroups = result;
+    }
+
+    /**
+     * Returns whether any indexed group has groups as members. Indexes stored before nested
+     * groups were tracked are treated as having them.
+     *
+     * @return whether any indexed group has groups as members
+     */
+    public boolean hasNestedGroups() {
+        return nestedGroups == null || !nestedGroups.isEmpty();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public long getSynchronizedAt() {
+        return synchronizedAt;
+    }
+
+    public void setSynchronizedAt(long synchronizedAt) {
+        this.synchronizedAt = synchronizedAt;
+    }
+
+    /**
+     * Returns indexed groups of a user
+     *
+     * @param userId user object id
+     * @return groups of the user
+     */
+    public List<TransitiveMemberOfGroup> getUserGroups(String userId) {
+        Set<String> userGroupIds = memberships.getOrDefault(userId, Set.of());
+        List<TransitiveMemberOfGroup> result = new ArrayList<>(userGroupIds.size());
+
+        for (String groupId : userGroupIds) {
+            String displayName = groups.get(groupId);
+            if (displayName != null) {
+                TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+                group.setId(UUID.fromString(groupId));
+                group.setDisplayName(displayName);
+                result.add(group);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Clears the index so that it is rebuilt for given groups
+     *
+     * @param groupNames normalized names of the groups to index
+     */
+    public void reset(Set<String> groupNames) {
+        ready = false;
+        setGroupNames(groupNames);
+        groupIds = List.of();
+        deltaLinks = List.of();
+        groups.clear();
+        memberships.clear();
+        nestedGroups = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void group(String groupId, String displayName, boolean removed) {
+        if (removed) {
+            groups.remove(groupId);
+            memberships.replaceAll((userId, userGroupIds) -> userGroupIds.contains(groupId) ? without(userGroupIds, groupId) : userGroupIds);
+            memberships.values().removeIf(Set::isEmpty);
+            nestedGroups.remove(groupId);
+        } else if (displayName != null) {
+            groups.put(groupId, displayName);
+        }
+    }
+
+    @Override
+    public void member(String groupId, String userId, boolean removed) {
+        memberships.compute(userId, (key, userGroupIds) -> {
+            Set<String> result = userGroupIds != null ? new HashSet<>(userGroupIds) : new HashSet<>();
+            if (removed) {
+                result.remove(groupId);
+            } else {
+                result.add(groupId);
+            }
+
+            return result.isEmpty() ? null : Set.copyOf(result);
+        });
+    }
+
+    @Override
+    public void nestedGroup(String groupId, String memberGroupId, boolean removed) {
+        nestedGroups.compute(groupId, (key, memberGroupIds) -> {
+            Set<String> result = memberGroupIds != null ? new HashSet<>(memberGroupIds) : new HashSet<>();
+            if (removed) {
+                result.remove(memberGroupId);
+            } else {
+                result.add(memberGroupId);
+            }
+
+            return result.isEmpty() ? null : Set.copyOf(result);
+        });
+    }
+
+    /**
+     * Returns a copy of a set without given value
+     *
+     * @param values values
+     * @param value value to remove
+     * @return copy without the value
+     */
+    private static Set<String> without(Set<String> values, String value) {
+        Set<String> result = new HashSet<>(values);
+        result.remove(value);
+        return Set.copyOf(result);
+    }
+
+}
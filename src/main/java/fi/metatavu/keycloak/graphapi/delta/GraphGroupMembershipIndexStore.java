@@ -0,0 +1,89 @@
+package fi.metatavu.keycloak.graphapi.delta;
+
+import fi.metatavu.keycloak.graphapi.client.GraphApiJson;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores group membership indexes as JSON files, one file per identity provider
+ */
+class GraphGroupMembershipIndexStore {
+
+    private static final Logger logger = Logger.getLogger(GraphGroupMembershipIndexStore.class);
+
+    private final Path directory;
+
+    /**
+     * Constructor
+     *
+     * @param directory directory of the index files
+     */
+    GraphGroupMembershipIndexStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads an index
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     * @return index or null if it has not been stored or cannot be read
+     */
+    GraphGroupMembershipIndex load(String realmId, String identityProviderAlias) {
+        Path path = getPath(realmId, identityProviderAlias);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (InputStream input = Files.newInputStream(path)) {
+            return GraphApiJson.reader(GraphGroupMembershipIndex.class).readValue(input);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to read Graph API group membership index [path=%s]", path);
+            return null;
+        }
+    }
+
+    /**
+     * Saves an index. The file is replaced atomically, so a crash never leaves a partial index.
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     * @param index index
+     * @throws IOException thrown when writing fails
+     */
+    void save(String realmId, String identityProviderAlias, GraphGroupMembershipIndex index) throws IOException {
+        Files.createDirectories(directory);
+
+        Path path = getPath(realmId, identityProviderAlias);
+        Path temporary = Files.createTempFile(directory, "index", ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                GraphApiJson.writer(GraphGroupMembershipIndex.class).writeValue(output, index);
+            }
+
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Returns path of an index file
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     * @return path of the index file
+     */
+    private Path getPath(String realmId, String identityProviderAlias) {
+        return directory.resolve(URLEncoder.encode(realmId + "/" + identityProviderAlias, StandardCharsets.UTF_8) + ".json");
+    }
+
+}
@@ -0,0 +1,79 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Default Graph API login history provider. The provider is scoped to a Keycloak session and
+ * holds the mapper execution currently running in the session.
+ */
+public class DefaultGraphLoginHistoryProvider implements GraphLoginHistoryProvider {
+
+    private final GraphLoginHistoryBuffer buffer;
+    private GraphMapperExecution currentExecution;
+
+    /**
+     * Constructor
+     *
+     * @param buffer history buffer of the node or null if the history is disabled
+     */
+    DefaultGraphLoginHistoryProvider(GraphLoginHistoryBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public GraphMapperExecution startExecution(RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, String operation) {
+        if (buffer == null) {
+            return null;
+        }
+
+        currentExecution = new GraphMapperExecution(
+            realm.getId(),
+            mapperModel.getIdentityProviderAlias(),
+            mapperModel.getName(),
+            mapperModel.getIdentityProviderMapper(),
+            operation,
+            user.getUsername()
+        );
+
+        return currentExecution;
+    }
+
+    @Override
+    public void finishExecution(GraphMapperExecution execution, Throwable error) {
+        if (execution == null) {
+            return;
+        }
+
+        if (currentExecution == execution) {
+            currentExecution = null;
+        }
+
+        buffer.add(execution.finish(error));
+    }
+
+    @Override
+    public GraphMapperExecution getCurrentExecution() {
+        return currentExecution;
+    }
+
+    @Override
+    public List<GraphMapperExecutionRecord> getExecutions(RealmModel realm, String identityProviderAlias, String username, int max) {
+        if (buffer == null) {
+            return List.of();
+        }
+
+        return buffer.getLatest(execution -> realm.getId().equals(execution.realmId())
+            && (identityProviderAlias == null || identityProviderAlias.equals(execution.identityProviderAlias()))
+            && (username == null || Objects.equals(username, execution.username())), max);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
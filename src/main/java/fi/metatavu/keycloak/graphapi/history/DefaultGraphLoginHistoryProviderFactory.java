@@ -0,0 +1,72 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default Graph API login history provider factory.
+ *
+ * Every Keycloak node keeps the latest mapper executions in its own in-memory ring buffer.
+ */
+public class DefaultGraphLoginHistoryProviderFactory implements GraphLoginHistoryProviderFactory, ServerInfoAwareProviderFactory {
+
+    public static final String PROVIDER_ID = "default";
+
+    private static final String CONFIG_CAPACITY = "capacity";
+    private static final int DEFAULT_CAPACITY = 200;
+
+    private GraphLoginHistoryBuffer buffer;
+
+    @Override
+    public GraphLoginHistoryProvider create(KeycloakSession session) {
+        return new DefaultGraphLoginHistoryProvider(buffer);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int capacity = config.getInt(CONFIG_CAPACITY, DEFAULT_CAPACITY);
+        buffer = capacity > 0 ? new GraphLoginHistoryBuffer(capacity) : null;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("capacity", String.valueOf(buffer != null ? buffer.getCapacity() : 0));
+        info.put("recordedExecutions", String.valueOf(buffer != null ? buffer.getRecorded() : 0));
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+                .name(CONFIG_CAPACITY)
+                .type("int")
+                .helpText("Number of latest Graph API mapper executions kept in memory, 0 disables the history")
+                .defaultValue(DEFAULT_CAPACITY)
+                .add()
+            .build();
+    }
+
+}
@@ -0,0 +1,14 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+/**
+ * Graph API request made during a mapper execution
+ *
+ * @param method HTTP method
+ * @param endpoint endpoint name
+ * @param status response status code or -1 if no response was received
+ * @param durationMicros time until response headers were received in microseconds
+ * @param bytes bytes read from the response body
+ * @param attempt number of retries done before the request
+ */
+public record GraphCallRecord(String method, String endpoint, int status, long durationMicros, long bytes, int attempt) {
+}
@@ -0,0 +1,23 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Provides the Graph API login history resource under realm admin API
+ */
+public class GraphLoginHistoryAdminResourceProvider implements AdminRealmResourceProvider {
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new GraphLoginHistoryResource(session, realm, auth);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,93 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Lock-free ring buffer of the latest mapper executions.
+ *
+ * Writers claim a sequence number and store the entry in the slot of the sequence, overwriting
+ * the oldest entry. Readers walk back from the latest sequence and skip slots that have already
+ * been overwritten by a newer entry or not yet written, so neither side ever blocks.
+ */
+class GraphLoginHistoryBuffer {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity number of executions kept
+     */
+    GraphLoginHistoryBuffer(int capacity) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds an execution into the buffer
+     *
+     * @param execution execution
+     */
+    void add(GraphMapperExecutionRecord execution) {
+        long next = sequence.getAndIncrement();
+        slots.setRelease(getSlot(next), new Entry(next, execution));
+    }
+
+    /**
+     * Returns latest executions matching a filter, newest first
+     *
+     * @param filter execution filter
+     * @param max maximum number of executions to return
+     * @return latest executions
+     */
+    List<GraphMapperExecutionRecord> getLatest(Predicate<GraphMapperExecutionRecord> filter, int max) {
+        List<GraphMapperExecutionRecord> result = new ArrayList<>();
+        long latest = sequence.get() - 1;
+        long oldest = Math.max(0, latest - slots.length() + 1);
+
+        for (long current = latest; current >= oldest && result.size() < max; current--) {
+            Entry entry = slots.getAcquire(getSlot(current));
+            if (entry != null && entry.sequence() == current && filter.test(entry.execution())) {
+                result.add(entry.execution());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns number of executions added into the buffer
+     *
+     * @return number of executions added
+     */
+    long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * Returns capacity of the buffer
+     *
+     * @return capacity
+     */
+    int getCapacity() {
+        return slots.length();
+    }
+
+    private int getSlot(long sequence) {
+        return (int) (sequence % slots.length());
+    }
+
+    /**
+     * Buffer slot content
+     *
+     * @param sequence sequence number of the entry
+     * @param execution execution
+     */
+    private record Entry(long sequence, GraphMapperExecutionRecord execution) {
+    }
+
+}
@@ -0,0 +1,52 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.Provider;
+
+import java.util.List;
+
+/**
+ * History of recent Graph API mapper executions of a Keycloak node
+ */
+public interface GraphLoginHistoryProvider extends Provider {
+
+    /**
+     * Starts recording a mapper execution and makes it the current execution of the session
+     *
+     * @param realm realm
+     * @param user Keycloak user
+     * @param mapperModel mapper model
+     * @param operation mapper operation
+     * @return execution or null if the history is disabled
+     */
+    GraphMapperExecution startExecution(RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, String operation);
+
+    /**
+     * Finishes a mapper execution and adds it into the history
+     *
+     * @param execution execution started with {@link #startExecution}, may be null
+     * @param error error the execution failed with or null
+     */
+    void finishExecution(GraphMapperExecution execution, Throwable error);
+
+    /**
+     * Returns mapper execution currently running in the session
+     *
+     * @return execution or null if no execution is being recorded
+     */
+    GraphMapperExecution getCurrentExecution();
+
+    /**
+     * Returns latest mapper executions of a realm, newest first
+     *
+     * @param realm realm
+     * @param identityProviderAlias identity provider alias or null for all identity providers
+     * @param username username or null for all users
+     * @param max maximum number of executions to return
+     * @return latest executions
+     */
+    List<GraphMapperExecutionRecord> getExecutions(RealmModel realm, String identityProviderAlias, String username, int max);
+
+}
@@ -0,0 +1,9 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Provider factory for Graph API login histories
+ */
+public interface GraphLoginHistoryProviderFactory extends ProviderFactory<GraphLoginHistoryProvider> {
+}
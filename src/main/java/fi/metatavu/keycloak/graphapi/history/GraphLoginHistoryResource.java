@@ -0,0 +1,59 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.util.List;
+
+/**
+ * Realm admin resource listing recent Graph API mapper executions of the Keycloak node serving
+ * the request. Requires permission to view users.
+ */
+public class GraphLoginHistoryResource {
+
+    private static final int DEFAULT_MAX = 50;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    /**
+     * Constructor
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param auth admin permission evaluator
+     */
+    public GraphLoginHistoryResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    /**
+     * Lists latest Graph API mapper executions of the realm, newest first
+     *
+     * @param identityProviderAlias identity provider alias to filter with
+     * @param username username to filter with
+     * @param max maximum number of executions to return
+     * @return latest executions
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<GraphMapperExecutionRecord> getExecutions(
+        @QueryParam("identityProvider") String identityProviderAlias,
+        @QueryParam("username") String username,
+        @QueryParam("max") Integer max
+    ) {
+        auth.users().requireView();
+
+        GraphLoginHistoryProvider history = session.getProvider(GraphLoginHistoryProvider.class);
+        return history.getExecutions(realm, identityProviderAlias, username, max != null && max > 0 ? max : DEFAULT_MAX);
+    }
+
+}
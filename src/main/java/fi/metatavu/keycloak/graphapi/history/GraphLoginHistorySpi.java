@@ -0,0 +1,35 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI for in-memory history of recent Graph API mapper executions
+ */
+public class GraphLoginHistorySpi implements Spi {
+
+    public static final String NAME = "graph-api-login-history";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return GraphLoginHistoryProvider.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return GraphLoginHistoryProviderFactory.class;
+    }
+
+}
@@ -0,0 +1,122 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Graph API mapper execution being recorded.
+ *
+ * Graph API requests complete on HTTP client threads, so entries may be added concurrently.
+ * Calls and writes are capped per execution to keep the memory held by the history bounded.
+ */
+public final class GraphMapperExecution {
+
+    public static final int MAX_ENTRIES = 100;
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long startedNanos = System.nanoTime();
+    private final String realmId;
+    private final String identityProviderAlias;
+    private final String mapper;
+    private final String mapperType;
+    private final String operation;
+    private final String username;
+    private final Queue<GraphCallRecord> calls = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger callCount = new AtomicInteger();
+    private final Map<String, String> cacheLookups = new LinkedHashMap<>();
+    private final Queue<String> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writeCount = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     * @param mapper mapper name
+     * @param mapperType mapper provider id
+     * @param operation mapper operation
+     * @param username Keycloak username of the brokered user
+     */
+    GraphMapperExecution(String realmId, String identityProviderAlias, String mapper, String mapperType, String operation, String username) {
+        this.realmId = realmId;
+        this.identityProviderAlias = identityProviderAlias;
+        this.mapper = mapper;
+        this.mapperType = mapperType;
+        this.operation = operation;
+        this.username = username;
+    }
+
+    /**
+     * Records a Graph API request
+     *
+     * @param method HTTP method
+     * @param endpoint endpoint name
+     * @param status response status code or -1 if no response was received
+     * @param durationNanos time until response headers were received in nanoseconds
+     * @param bytes bytes read from the response body
+     * @param attempt number of retries done before the request
+     */
+    public void addCall(String method, String endpoint, int status, long durationNanos, long bytes, int attempt) {
+        if (callCount.getAndIncrement() < MAX_ENTRIES) {
+            calls.add(new GraphCallRecord(method, endpoint, status, TimeUnit.NANOSECONDS.toMicros(durationNanos), bytes, attempt));
+        }
+    }
+
+    /**
+     * Records a snapshot cache lookup
+     *
+     * @param resource resource
+     * @param result lookup result: hit, miss or stale
+     */
+    public void addCacheLookup(String resource, String result) {
+        synchronized (cacheLookups) {
+            cacheLookups.put(resource, result);
+        }
+    }
+
+    /**
+     * Records a write into the user
+     *
+     * @param write description of the write, for example the attribute name
+     */
+    public void addWrite(String write) {
+        if (writeCount.getAndIncrement() < MAX_ENTRIES) {
+            writes.add(write);
+        }
+    }
+
+    /**
+     * Returns immutable record of the execution
+     *
+     * @param error error the execution failed with or null
+     * @return execution record
+     */
+    GraphMapperExecutionRecord finish(Throwable error) {
+        Map<String, String> lookups;
+        synchronized (cacheLookups) {
+            lookups = Map.copyOf(cacheLookups);
+        }
+
+        return new GraphMapperExecutionRecord(
+            startedAt,
+            realmId,
+            identityProviderAlias,
+            mapper,
+            mapperType,
+            operation,
+            username,
+            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNanos),
+            error != null ? String.valueOf(error.getMessage()) : null,
+            List.copyOf(calls),
+            callCount.get(),
+            lookups,
+            List.copyOf(writes)
+        );
+    }
+
+}
@@ -0,0 +1,38 @@
+package fi.metatavu.keycloak.graphapi.history;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finished Graph API mapper execution
+ *
+ * @param startedAt start time in epoch milliseconds
+ * @param realmId realm id
+ * @param identityProviderAlias identity provider alias
+ * @param mapper mapper name
+ * @param mapperType mapper provider id
+ * @param operation mapper operation
+ * @param username Keycloak username of the brokered user
+ * @param durationMicros execution time in microseconds
+ * @param error error message or null if the execution succeeded
+ * @param calls Graph API requests, at most {@link GraphMapperExecution#MAX_ENTRIES}
+ * @param callCount number of Graph API requests including the ones not listed
+ * @param cacheLookups snapshot cache lookup results by resource
+ * @param writes user attributes and group memberships written, at most {@link GraphMapperExecution#MAX_ENTRIES}
+ */
+public record GraphMapperExecutionRecord(
+    long startedAt,
+    String realmId,
+    String identityProviderAlias,
+    String mapper,
+    String mapperType,
+    String operation,
+    String username,
+    long durationMicros,
+    String error,
+    List<GraphCallRecord> calls,
+    int callCount,
+    Map<String, String> cacheLookups,
+    List<String> writes
+) {
+}
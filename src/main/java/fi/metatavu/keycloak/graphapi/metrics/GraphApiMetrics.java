@@ -0,0 +1,195 @@
+package fi.metatavu.keycloak.graphapi.metrics;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer metrics of the Graph API extension.
+ *
+ * Meters are registered into Micrometer's global registry, which Keycloak exposes on its metrics
+ * endpoint when metrics are enabled. All meters are tagged by realm name and identity provider
+ * alias. When metrics are disabled the global registry has no backing registries and recording
+ * is a no-op.
+ */
+public final class GraphApiMetrics {
+
+    public static final String TAG_REALM = "realm";
+    public static final String TAG_IDENTITY_PROVIDER = "idp";
+
+    private static final String TAG_ENDPOINT = "endpoint";
+    private static final String TAG_STATUS = "status";
+    private static final String TAG_RESOURCE = "resource";
+    private static final String TAG_RESULT = "result";
+    private static final String TAG_MAPPER = "mapper";
+    private static final String TAG_OPERATION = "operation";
+
+    private static final String UNKNOWN = "unknown";
+    private static final String STATUS_ERROR = "error";
+
+    private static final Tags UNKNOWN_TAGS = Tags.of(TAG_REALM, UNKNOWN, TAG_IDENTITY_PROVIDER, UNKNOWN);
+
+    private GraphApiMetrics() {
+    }
+
+    /**
+     * Returns common tags of a realm and identity provider
+     *
+     * @param realm realm name
+     * @param identityProviderAlias identity provider alias
+     * @return tags
+     */
+    public static Tags getTags(String realm, String identityProviderAlias) {
+        return Tags.of(TAG_REALM, realm != null ? realm : UNKNOWN, TAG_IDENTITY_PROVIDER, identityProviderAlias != null ? identityProviderAlias : UNKNOWN);
+    }
+
+    /**
+     * Returns tags used when realm and identity provider are not known
+     *
+     * @return tags
+     */
+    public static Tags getUnknownTags() {
+        return UNKNOWN_TAGS;
+    }
+
+    /**
+     * Records a Graph API request
+     *
+     * @param tags common tags
+     * @param endpoint endpoint name
+     * @param statusCode response status code or -1 if no response was received
+     * @param nanos time until response headers in nanoseconds
+     */
+    public static void recordRequest(Tags tags, String endpoint, int statusCode, long nanos) {
+        Timer.builder("graph.api.request.duration")
+            .description("Time until Graph API response headers are received")
+            .tags(tags)
+            .tag(TAG_ENDPOINT, endpoint)
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+
+        Counter.builder("graph.api.responses")
+            .description("Graph API responses by status code")
+            .tags(tags)
+            .tag(TAG_ENDPOINT, endpoint)
+            .tag(TAG_STATUS, statusCode >= 0 ? String.valueOf(statusCode) : STATUS_ERROR)
+            .register(Metrics.globalRegistry)
+            .increment();
+    }
+
+    /**
+     * Records size of a Graph API response body
+     *
+     * @param tags common tags
+     * @param endpoint endpoint name
+     * @param bytes number of bytes read
+     */
+    public static void recordResponseBytes(Tags tags, String endpoint, long bytes) {
+        DistributionSummary.builder("graph.api.response.size")
+            .description("Bytes received in Graph API response bodies")
+            .baseUnit("bytes")
+            .tags(tags)
+            .tag(TAG_ENDPOINT, endpoint)
+            .register(Metrics.globalRegistry)
+            .record(bytes);
+    }
+
+    /**
+     * Records a fetched page of a paged groups listing
+     *
+     * @param tags common tags
+     * @param endpoint endpoint name
+     */
+    public static void recordGroupPage(Tags tags, String endpoint) {
+        Counter.builder("graph.api.group.pages")
+            .description("Pages fetched from paged Graph API group listings")
+            .tags(tags)
+            .tag(TAG_ENDPOINT, endpoint)
+            .register(Metrics.globalRegistry)
+            .increment();
+    }
+
+    /**
+     * Records a snapshot cache lookup of a resource
+     *
+     * @param tags common tags
+     * @param resource resource
+     * @param result lookup result: hit, miss or stale
+     */
+    public static void recordCacheLookup(Tags tags, GraphResource resource, String result) {
+        Counter.builder("graph.api.cache.lookups")
+            .description("Graph API snapshot cache lookups")
+            .tags(tags)
+            .tag(TAG_RESOURCE, resource.name())
+            .tag(TAG_RESULT, result)
+            .register(Metrics.globalRegistry)
+            .increment();
+    }
+
+    /**
+     * Records execution time of a Graph API mapper
+     *
+     * @param tags common tags
+     * @param mapper mapper provider id
+     * @param operation mapper operation
+     * @param nanos execution time in nanoseconds
+     */
+    public static void recordMapper(Tags tags, String mapper, String operation, long nanos) {
+        Timer.builder("graph.api.mapper.duration")
+            .description("Execution time of Graph API identity provider mappers")
+            .tags(tags)
+            .tag(TAG_MAPPER, mapper)
+            .tag(TAG_OPERATION, operation)
+            .publishPercentileHistogram()
+            .register(Metrics.globalRegistry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns endpoint name of a Graph API request URI. Object ids and query parameters are left
+     * out to keep the number of tag values bounded.
+     *
+     * @param uri request URI
+     * @return endpoint name
+     */
+    public static String getEndpoint(URI uri) {
+        String path = uri.getPath();
+        if (path == null) {
+            return UNKNOWN;
+        } else if (path.contains("/transitiveMemberOf")) {
+            return "transitiveMemberOf";
+        } else if (path.contains("/transitiveMembers")) {
+            return "transitiveMembers";
+        } else if (path.endsWith("/profile/positions")) {
+            return "profile/positions";
+        } else if (path.endsWith("/$value")) {
+            return "photo";
+        } else if (path.endsWith("/checkMemberGroups")) {
+            return "checkMemberGroups";
+        } else if (path.endsWith("/$batch")) {
+            return "$batch";
+        } else if (path.endsWith("/groups/delta")) {
+            return "groups/delta";
+        } else if (path.endsWith("/me/manager")) {
+            return "me/manager";
+        } else if (path.contains("/users/") && path.endsWith("/manager")) {
+            return "users/manager";
+        } else if (path.endsWith("/me")) {
+            return "me";
+        } else if (path.contains("/groups")) {
+            return "groups";
+        } else if (path.contains("/users/")) {
+            return "users";
+        }
+
+        return "other";
+    }
+
+}
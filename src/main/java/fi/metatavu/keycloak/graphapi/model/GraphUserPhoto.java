@@ -0,0 +1,21 @@
+package fi.metatavu.keycloak.graphapi.model;
+
+import java.util.Base64;
+
+/**
+ * Profile photo of a Microsoft Graph API user
+ *
+ * @param content image bytes
+ * @param contentType media type of the image
+ */
+public record GraphUserPhoto(byte[] content, String contentType) {
+
+    /**
+     * Returns the photo as a data URL that can be used as an avatar URL
+     *
+     * @return data URL
+     */
+    public String toDataUrl() {
+        return String.format("data:%s;base64,%s", contentType, Base64.getEncoder().encodeToString(content));
+    }
+}
@@ -0,0 +1,148 @@
+package fi.metatavu.keycloak.graphapi.model;
+
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Graph API data fetched for a single login. Resources that were not requested or could not be
+ * retrieved are null.
+ */
+@SuppressWarnings("unused")
+public class GraphUserSnapshot {
+
+    private Set<GraphResource> resources = EnumSet.noneOf(GraphResource.class);
+
+    private GraphUser user;
+
+    private List<TransitiveMemberOfGroup> userGroups;
+
+    private boolean userGroupsComplete;
+
+    private GraphUser manager;
+
+    private List<TransitiveMemberOfGroup> managerGroups;
+
+    private boolean managerGroupsComplete;
+
+    public Set<GraphResource> getResources() {
+        return resources;
+    }
+
+    public void setResources(Set<GraphResource> resources) {
+        this.resources = resources;
+    }
+
+    public GraphUser getUser() {
+        return user;
+    }
+
+    public void setUser(GraphUser user) {
+        this.user = user;
+    }
+
+    public List<TransitiveMemberOfGroup> getUserGroups() {
+        return userGroups;
+    }
+
+    public void setUserGroups(List<TransitiveMemberOfGroup> userGroups) {
+        this.userGroups = userGroups;
+    }
+
+    public boolean isUserGroupsComplete() {
+        return userGroupsComplete;
+    }
+
+    public void setUserGroupsComplete(boolean userGroupsComplete) {
+        this.userGroupsComplete = userGroupsComplete;
+    }
+
+    public GraphUser getManager() {
+        return manager;
+    }
+
+    public void setManager(GraphUser manager) {
+        this.manager = manager;
+    }
+
+    public List<TransitiveMemberOfGroup> getManagerGroups() {
+        return managerGroups;
+    }
+
+    public void setManagerGroups(List<TransitiveMemberOfGroup> managerGroups) {
+        this.managerGroups = managerGroups;
+    }
+
+    public boolean isManagerGroupsComplete() {
+        return managerGroupsComplete;
+    }
+
+    public void setManagerGroupsComplete(boolean managerGroupsComplete) {
+        this.managerGroupsComplete = managerGroupsComplete;
+    }
+
+    /**
+     * Copies given resources from another snapshot into this snapshot
+     *
+     * @param other snapshot to copy from
+     * @return this snapshot
+     */
+    public GraphUserSnapshot merge(GraphUserSnapshot other) {
+        Set<GraphResource> otherResources = other.getResources();
+
+        if (otherResources.contains(GraphResource.USER)) {
+            user = other.getUser();
+        }
+
+        if (otherResources.contains(GraphResource.USER_GROUPS)) {
+            userGroups = other.getUserGroups();
+            userGroupsComplete = other.isUserGroupsComplete();
+        }
+
+        if (otherResources.contains(GraphResource.MANAGER)) {
+            manager = other.getManager();
+        }
+
+        if (otherResources.contains(GraphResource.MANAGER_GROUPS)) {
+            managerGroups = other.getManagerGroups();
+            managerGroupsComplete = other.isManagerGroupsComplete();
+        }
+
+        resources.addAll(otherResources);
+        return this;
+    }
+
+    /**
+     * Returns a snapshot that contains only given resource of this snapshot
+     *
+     * @param resource resource
+     * @return snapshot with single resource or null if this snapshot has no value for the resource
+     */
+    public GraphUserSnapshot select(GraphResource resource) {
+        if (!resources.contains(resource)) {
+            return null;
+        }
+
+        GraphUserSnapshot result = new GraphUserSnapshot();
+        result.getResources().add(resource);
+
+        switch (resource) {
+            case USER -> result.setUser(user);
+            case USER_GROUPS -> {
+                result.setUserGroups(userGroups);
+                result.setUserGroupsComplete(userGroupsComplete);
+            }
+            case MANAGER -> result.setManager(manager);
+            case MANAGER_GROUPS -> {
+                result.setManagerGroups(managerGroups);
+                result.setManagerGroupsComplete(managerGroupsComplete);
+            }
+        }
+
+        boolean hasValue = result.getUser() != null || result.getUserGroups() != null || result.getManager() != null || result.getManagerGroups() != null;
+        return hasValue ? result : null;
+    }
+}
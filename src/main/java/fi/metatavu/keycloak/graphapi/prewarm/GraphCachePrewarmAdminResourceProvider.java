@@ -0,0 +1,34 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Provides the Graph API snapshot cache pre-warm resource under realm admin API
+ */
+public class GraphCachePrewarmAdminResourceProvider implements AdminRealmResourceProvider {
+
+    private final GraphCachePrewarmer prewarmer;
+
+    /**
+     * Constructor
+     *
+     * @param prewarmer pre-warmer of the node
+     */
+    GraphCachePrewarmAdminResourceProvider(GraphCachePrewarmer prewarmer) {
+        this.prewarmer = prewarmer;
+    }
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new GraphCachePrewarmResource(session, realm, auth, prewarmer);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,76 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+
+import java.util.List;
+
+/**
+ * Factory of the Graph API snapshot cache pre-warm admin resource, served at
+ * /admin/realms/{realm}/graph-api-cache-prewarm
+ */
+public class GraphCachePrewarmAdminResourceProviderFactory implements AdminRealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "graph-api-cache-prewarm";
+
+    private static final String CONFIG_PARALLELISM = "parallelism";
+    private static final String CONFIG_MAX_USERS = "maxUsers";
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final int DEFAULT_MAX_USERS = 10000;
+
+    private int parallelism;
+    private int maxUsers;
+    private GraphCachePrewarmer prewarmer;
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return new GraphCachePrewarmAdminResourceProvider(prewarmer);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        parallelism = Math.max(1, config.getInt(CONFIG_PARALLELISM, DEFAULT_PARALLELISM));
+        maxUsers = Math.max(1, config.getInt(CONFIG_MAX_USERS, DEFAULT_MAX_USERS));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        prewarmer = new GraphCachePrewarmer(factory, parallelism, maxUsers);
+    }
+
+    @Override
+    public void close() {
+        if (prewarmer != null) {
+            prewarmer.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+                .name(CONFIG_PARALLELISM)
+                .type("int")
+                .helpText("Number of users fetched concurrently by a pre-warm job")
+                .defaultValue(DEFAULT_PARALLELISM)
+                .add()
+            .property()
+                .name(CONFIG_MAX_USERS)
+                .type("int")
+                .helpText("Maximum number of users of a pre-warm job. Members of a group are read up to the limit")
+                .defaultValue(DEFAULT_MAX_USERS)
+                .add()
+            .build();
+    }
+
+}
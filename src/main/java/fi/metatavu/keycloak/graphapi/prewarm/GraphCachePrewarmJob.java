@@ -0,0 +1,124 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshot cache pre-warm job of an identity provider. Progress is updated by the workers of
+ * the job and read by the admin resource.
+ */
+class GraphCachePrewarmJob {
+
+    /**
+     * Job state
+     */
+    enum State {
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String realmId;
+    private final String identityProviderAlias;
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile int total;
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelRequested;
+    private volatile Long finishedAt;
+    private volatile String error;
+
+    /**
+     * Constructor
+     *
+     * @param realmId realm id
+     * @param identityProviderAlias identity provider alias
+     */
+    GraphCachePrewarmJob(String realmId, String identityProviderAlias) {
+        this.realmId = realmId;
+        this.identityProviderAlias = identityProviderAlias;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getRealmId() {
+        return realmId;
+    }
+
+    String getIdentityProviderAlias() {
+        return identityProviderAlias;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    void setTotal(int total) {
+        this.total = total;
+    }
+
+    void userCompleted() {
+        completed.incrementAndGet();
+    }
+
+    void userFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Asks the workers to stop before the next user
+     */
+    void cancel() {
+        cancelRequested = true;
+    }
+
+    /**
+     * Returns whether the workers should stop
+     *
+     * @return whether the job was cancelled or has failed
+     */
+    boolean isStopping() {
+        return cancelRequested || error != null;
+    }
+
+    /**
+     * Fails the job. Workers stop before the next user.
+     *
+     * @param error reason
+     */
+    void fail(String error) {
+        if (this.error == null) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * Marks the job finished after all workers have stopped
+     */
+    void finish() {
+        if (error != null) {
+            state = State.FAILED;
+        } else if (cancelRequested) {
+            state = State.CANCELLED;
+        } else {
+            state = State.COMPLETED;
+        }
+
+        finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns progress of the job
+     *
+     * @return progress
+     */
+    GraphCachePrewarmStatus toStatus() {
+        return new GraphCachePrewarmStatus(id, identityProviderAlias, state.name(), total, completed.get(), failed.get(), startedAt, finishedAt, error);
+    }
+
+}
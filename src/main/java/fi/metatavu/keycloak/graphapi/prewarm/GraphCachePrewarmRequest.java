@@ -0,0 +1,13 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import java.util.List;
+
+/**
+ * Request to pre-warm the snapshot cache
+ *
+ * @param identityProvider alias of the identity provider whose mappers define the fetched data
+ * @param users object ids or user principal names of Azure users
+ * @param groupId object id of an Azure group whose direct and transitive user members are pre-warmed
+ */
+public record GraphCachePrewarmRequest(String identityProvider, List<String> users, String groupId) {
+}
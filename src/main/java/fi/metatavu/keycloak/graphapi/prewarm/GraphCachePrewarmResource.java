@@ -0,0 +1,164 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import fi.metatavu.keycloak.graphapi.AbstractGraphApiIdentityProviderMapper;
+import fi.metatavu.keycloak.graphapi.cache.GraphSnapshotCacheProvider;
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.broker.oidc.OIDCIdentityProviderConfig;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Realm admin resource for pre-warming the Graph API snapshot cache before a wave of logins.
+ * Jobs run on the Keycloak node serving the request. Requires permission to manage users.
+ */
+public class GraphCachePrewarmResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final GraphCachePrewarmer prewarmer;
+
+    /**
+     * Constructor
+     *
+     * @param session Keycloak session
+     * @param realm realm
+     * @param auth admin permission evaluator
+     * @param prewarmer pre-warmer of the node
+     */
+    GraphCachePrewarmResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, GraphCachePrewarmer prewarmer) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.prewarmer = prewarmer;
+    }
+
+    /**
+     * Starts a job that fetches Graph API data of given users and members of given group into
+     * the snapshot cache. Data is fetched as the Graph API mappers of the identity provider
+     * would fetch it on login.
+     *
+     * @param request pre-warm request
+     * @return progress of the started job
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startJob(GraphCachePrewarmRequest request) {
+        auth.users().requireManage();
+
+        if (request == null || request.identityProvider() == null) {
+            throw ErrorResponse.error("Identity provider is required", Response.Status.BAD_REQUEST);
+        }
+
+        List<String> users = request.users() != null ? request.users().stream().filter(Objects::nonNull).map(String::trim).filter(user -> !user.isEmpty()).toList() : List.of();
+        if (users.isEmpty() && request.groupId() == null) {
+            throw ErrorResponse.error("Users or group is required", Response.Status.BAD_REQUEST);
+        }
+
+        if (users.size() > prewarmer.getMaxUsers()) {
+            throw ErrorResponse.error(String.format("At most %d users can be pre-warmed at once", prewarmer.getMaxUsers()), Response.Status.BAD_REQUEST);
+        }
+
+        IdentityProviderModel identityProvider = session.identityProviders().getByAlias(request.identityProvider());
+        if (identityProvider == null || !identityProvider.isEnabled()) {
+            throw ErrorResponse.error("Identity provider not found", Response.Status.NOT_FOUND);
+        }
+
+        GraphFetchPlan plan = AbstractGraphApiIdentityProviderMapper.getIdentityProviderFetchPlan(session, identityProvider.getAlias());
+        GraphSnapshotCacheProvider cacheProvider = session.getProvider(GraphSnapshotCacheProvider.class);
+        if (plan.getResources().stream().noneMatch(cacheProvider::isCached)) {
+            throw ErrorResponse.error("Snapshot cache is disabled for the Graph API data of the identity provider", Response.Status.BAD_REQUEST);
+        }
+
+        OIDCIdentityProviderConfig config = new OIDCIdentityProviderConfig(identityProvider);
+        String clientSecret = session.vault().getStringSecret(config.getClientSecret()).get().orElse(config.getClientSecret());
+        GraphCachePrewarmSource source = new GraphCachePrewarmSource(realm.getId(), realm.getName(), identityProvider.getAlias(), config.getTokenUrl(), config.getClientId(), clientSecret, plan);
+
+        GraphCachePrewarmJob job = prewarmer.start(source, users, request.groupId());
+        if (job == null) {
+            throw ErrorResponse.error("Pre-warm of the identity provider is already running", Response.Status.CONFLICT);
+        }
+
+        return Response.status(Response.Status.ACCEPTED).entity(job.toStatus()).build();
+    }
+
+    /**
+     * Lists pre-warm jobs of the realm on this node, newest first
+     *
+     * @return job progress
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<GraphCachePrewarmStatus> getJobs() {
+        auth.users().requireView();
+
+        return prewarmer.getJobs(realm.getId()).stream()
+            .map(GraphCachePrewarmJob::toStatus)
+            .toList();
+    }
+
+    /**
+     * Returns progress of a pre-warm job
+     *
+     * @param id job id
+     * @return job progress
+     */
+    @GET
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public GraphCachePrewarmStatus getJob(@PathParam("id") String id) {
+        auth.users().requireView();
+
+        return getExistingJob(id).toStatus();
+    }
+
+    /**
+     * Cancels a pre-warm job. Users being fetched are finished before the job stops.
+     *
+     * @param id job id
+     * @return job progress
+     */
+    @DELETE
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public GraphCachePrewarmStatus cancelJob(@PathParam("id") String id) {
+        auth.users().requireManage();
+
+        GraphCachePrewarmJob job = getExistingJob(id);
+        job.cancel();
+        return job.toStatus();
+    }
+
+    /**
+     * Returns a job of the realm
+     *
+     * @param id job id
+     * @return job
+     */
+    private GraphCachePrewarmJob getExistingJob(String id) {
+        GraphCachePrewarmJob job = prewarmer.getJob(realm.getId(), id);
+        if (job == null) {
+            throw new NotFoundException("Pre-warm job not found");
+        }
+
+        return job;
+    }
+
+}
@@ -0,0 +1,25 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import fi.metatavu.keycloak.graphapi.client.GraphFetchPlan;
+
+/**
+ * Identity provider whose users are pre-warmed
+ *
+ * @param realmId realm id
+ * @param realmName realm name
+ * @param identityProviderAlias identity provider alias
+ * @param tokenUrl token endpoint URL of the identity provider
+ * @param clientId client id of the identity provider
+ * @param clientSecret client secret of the identity provider
+ * @param plan fetch plan of the Graph API mappers of the identity provider
+ */
+record GraphCachePrewarmSource(
+    String realmId,
+    String realmName,
+    String identityProviderAlias,
+    String tokenUrl,
+    String clientId,
+    String clientSecret,
+    GraphFetchPlan plan
+) {
+}
@@ -0,0 +1,27 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+/**
+ * Progress of a snapshot cache pre-warm job
+ *
+ * @param id job id
+ * @param identityProvider identity provider alias
+ * @param state job state, RUNNING, COMPLETED, FAILED or CANCELLED
+ * @param total number of users to pre-warm, known once users are resolved
+ * @param completed number of users whose data was cached
+ * @param failed number of users whose data could not be fetched
+ * @param startedAt start time in epoch milliseconds
+ * @param finishedAt finish time in epoch milliseconds or null while the job is running
+ * @param error reason the job failed or null
+ */
+public record GraphCachePrewarmStatus(
+    String id,
+    String identityProvider,
+    String state,
+    int total,
+    int completed,
+    int failed,
+    long startedAt,
+    Long finishedAt,
+    String error
+) {
+}
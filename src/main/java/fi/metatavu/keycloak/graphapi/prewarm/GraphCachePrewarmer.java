@@ -0,0 +1,350 @@
+package fi.metatavu.keycloak.graphapi.prewarm;
+
+import fi.metatavu.keycloak.graphapi.cache.GraphSnapshotCacheProvider;
+import fi.metatavu.keycloak.graphapi.cache.GraphSnapshotKey;
+import fi.metatavu.keycloak.graphapi.client.GraphApiClient;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.jboss.logging.Logger;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.JsonWebToken;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs snapshot cache pre-warm jobs of a Keycloak node.
+ *
+ * Users of a job are fetched with an app-only token of the identity provider by a fixed number
+ * of workers, each user in its own Keycloak session. Requests go through the Graph API client of
+ * the node, so they share the per-tenant rate limit, throttling and circuit breaker with logins.
+ * The job fails when the circuit breaker opens.
+ */
+class GraphCachePrewarmer {
+
+    private static final Logger logger = Logger.getLogger(GraphCachePrewarmer.class);
+
+    private static final long TOKEN_EXPIRY_MARGIN_MILLIS = 60000;
+    private static final int MAX_FINISHED_JOBS = 20;
+    private static final String CLAIM_TENANT_ID = "tid";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final int parallelism;
+    private final int maxUsers;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, GraphCachePrewarmJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param sessionFactory Keycloak session factory
+     * @param parallelism number of users fetched concurrently by a job
+     * @param maxUsers maximum number of users of a job
+     */
+    GraphCachePrewarmer(KeycloakSessionFactory sessionFactory, int parallelism, int maxUsers) {
+        this.sessionFactory = sessionFactory;
+        this.parallelism = parallelism;
+        this.maxUsers = maxUsers;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /**
+     * Starts a pre-warm job
+     *
+     * @param source identity provider
+     * @param users object ids or user principal names of users to pre-warm
+     * @param groupId object id of a group whose members are pre-warmed or null
+     * @return started job or null if a job of the identity provider is already running
+     */
+    synchronized GraphCachePrewarmJob start(GraphCachePrewarmSource source, Collection<String> users, String groupId) {
+        boolean running = jobs.values().stream().anyMatch(job -> job.getState() == GraphCachePrewarmJob.State.RUNNING
+            && job.getRealmId().equals(source.realmId())
+            && job.getIdentityProviderAlias().equals(source.identityProviderAlias()));
+
+        if (running) {
+            return null;
+        }
+
+        removeFinishedJobs();
+
+        GraphCachePrewarmJob job = new GraphCachePrewarmJob(source.realmId(), source.identityProviderAlias());
+        jobs.put(job.getId(), job);
+        executor.execute(() -> run(job, source, new LinkedHashSet<>(users), groupId));
+
+        return job;
+    }
+
+    /**
+     * Returns jobs of a realm, newest first
+     *
+     * @param realmId realm id
+     * @return jobs
+     */
+    List<GraphCachePrewarmJob> getJobs(String realmId) {
+        return jobs.values().stream()
+            .filter(job -> job.getRealmId().equals(realmId))
+            .sorted(Comparator.comparing((GraphCachePrewarmJob job) -> job.toStatus().startedAt()).reversed())
+            .toList();
+    }
+
+    /**
+     * Returns a job of a realm
+     *
+     * @param realmId realm id
+     * @param id job id
+     * @return job or null if not found
+     */
+    GraphCachePrewarmJob getJob(String realmId, String id) {
+        GraphCachePrewarmJob job = jobs.get(id);
+        return job != null && job.getRealmId().equals(realmId) ? job : null;
+    }
+
+    /**
+     * Stops running jobs
+     */
+    void close() {
+        jobs.values().forEach(GraphCachePrewarmJob::cancel);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs a job
+     *
+     * @param job job
+     * @param source identity provider
+     * @param users users listed in the request
+     * @param groupId group listed in the request or null
+     */
+    private void run(GraphCachePrewarmJob job, GraphCachePrewarmSource source, LinkedHashSet<String> users, String groupId) {
+        logger.infof("Graph API cache pre-warm started [realm=%s, alias=%s, job=%s]", source.realmName(), source.identityProviderAlias(), job.getId());
+
+        try {
+            JobToken token = new JobToken(source);
+            String tenantId = withClient(source, (session, graphApiClient) -> getTenantId(token.get(graphApiClient)));
+            if (tenantId == null) {
+                job.fail("Access token of the identity provider does not contain the tenant id");
+                return;
+            }
+
+            if (groupId != null && users.size() < maxUsers) {
+                users.addAll(withClient(source, (session, graphApiClient) -> graphApiClient.getGroupMemberIds(token.get(graphApiClient), groupId, maxUsers - users.size())));
+            }
+
+            Queue<String> queue = new ConcurrentLinkedQueue<>(users);
+            job.setTotal(users.size());
+
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(parallelism, users.size()); i++) {
+                workers.add(CompletableFuture.runAsync(() -> runWorker(job, source, token, tenantId, queue), executor));
+            }
+
+            CompletableFuture.allOf(workers.toArray(CompletableFuture[]::new)).join();
+        } catch (IOException | RuntimeException e) {
+            logger.warnf(e, "Graph API cache pre-warm failed [realm=%s, alias=%s, job=%s]", source.realmName(), source.identityProviderAlias(), job.getId());
+            job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            job.finish();
+            GraphCachePrewarmStatus status = job.toStatus();
+            logger.infof("Graph API cache pre-warm %s [realm=%s, alias=%s, job=%s, completed=%d, failed=%d, total=%d]", status.state(), source.realmName(), source.identityProviderAlias(), job.getId(), status.completed(), status.failed(), status.total());
+        }
+    }
+
+    /**
+     * Pre-warms users from the queue until it is empty or the job stops
+     *
+     * @param job job
+     * @param source identity provider
+     * @param token app-only token of the job
+     * @param tenantId Azure tenant id
+     * @param queue users left to pre-warm
+     */
+    private void runWorker(GraphCachePrewarmJob job, GraphCachePrewarmSource source, JobToken token, String tenantId, Queue<String> queue) {
+        String user;
+        while (!job.isStopping() && (user = queue.poll()) != null) {
+            String current = user;
+            try {
+                boolean cached = withClient(source, (session, graphApiClient) -> {
+                    boolean result = prewarm(session, graphApiClient, source, token, tenantId, current);
+                    if (!graphApiClient.isAvailable()) {
+                        job.fail("Graph API is unavailable");
+                    }
+
+                    return result;
+                });
+
+                if (cached) {
+                    job.userCompleted();
+                } else {
+                    job.userFailed();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debugf(e, "Failed to pre-warm Graph API data [alias=%s, user=%s]", source.identityProviderAlias(), current);
+                job.userFailed();
+            }
+        }
+    }
+
+    /**
+     * Fetches data of a user and stores it into the snapshot cache
+     *
+     * @param session Keycloak session
+     * @param graphApiClient Graph API client
+     * @param source identity provider
+     * @param token app-only token of the job
+     * @param tenantId Azure tenant id
+     * @param user object id or user principal name
+     * @return whether any resource of the user was cached
+     * @throws IOException thrown when Graph API requests fail
+     */
+    private boolean prewarm(KeycloakSession session, GraphApiClient graphApiClient, GraphCachePrewarmSource source, JobToken token, String tenantId, String user) throws IOException {
+        AccessTokenResponse accessToken = token.get(graphApiClient);
+        String objectId = isObjectId(user) ? user : graphApiClient.getUserObjectId(accessToken, user);
+        if (objectId == null) {
+            return false;
+        }
+
+        GraphUserSnapshot snapshot = graphApiClient.getUserSnapshot(accessToken, objectId, source.plan());
+        boolean fetched = false;
+        for (GraphResource resource : source.plan().getResources()) {
+            fetched |= snapshot.select(resource) != null;
+        }
+
+        if (fetched) {
+            session.getProvider(GraphSnapshotCacheProvider.class).put(new GraphSnapshotKey(tenantId, objectId), source.plan(), snapshot);
+        }
+
+        return fetched;
+    }
+
+    /**
+     * Runs a task with the Graph API client of a new Keycloak session
+     *
+     * @param source identity provider, used for metric tags
+     * @param task task
+     * @return result of the task
+     * @throws IOException thrown when the task fails with an I/O error
+     */
+    private <T> T withClient(GraphCachePrewarmSource source, ClientTask<T> task) throws IOException {
+        try {
+            return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                GraphApiClient graphApiClient = session.getProvider(GraphApiClient.class);
+                graphApiClient.setMetricTags(source.realmName(), source.identityProviderAlias());
+                try {
+                    return task.run(session, graphApiClient);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns tenant id of an app-only access token
+     *
+     * @param accessToken access token
+     * @return tenant id or null if not present
+     */
+    private static String getTenantId(AccessTokenResponse accessToken) {
+        try {
+            Object tenantId = new JWSInput(accessToken.getToken()).readJsonContent(JsonWebToken.class).getOtherClaims().get(CLAIM_TENANT_ID);
+            return tenantId != null ? tenantId.toString() : null;
+        } catch (JWSInputException e) {
+            logger.warn("Failed to parse app-only access token", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether a user is given as object id
+     *
+     * @param user object id or user principal name
+     * @return whether the user is given as object id
+     */
+    private static boolean isObjectId(String user) {
+        try {
+            UUID.fromString(user);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes oldest finished jobs so that at most {@link #MAX_FINISHED_JOBS} are kept
+     */
+    private void removeFinishedJobs() {
+        List<GraphCachePrewarmJob> finished = jobs.values().stream()
+            .filter(job -> job.getState() != GraphCachePrewarmJob.State.RUNNING)
+            .sorted(Comparator.comparing((GraphCachePrewarmJob job) -> job.toStatus().startedAt()))
+            .toList();
+
+        for (int i = 0; i < finished.size() - MAX_FINISHED_JOBS + 1; i++) {
+            jobs.remove(finished.get(i).getId());
+        }
+    }
+
+    /**
+     * Task run with a Graph API client
+     *
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    private interface ClientTask<T> {
+
+        T run(KeycloakSession session, GraphApiClient graphApiClient) throws IOException;
+
+    }
+
+    /**
+     * App-only access token of a job. The token is requested again shortly before it expires.
+     */
+    private static final class JobToken {
+
+        private final GraphCachePrewarmSource source;
+        private AccessTokenResponse accessToken;
+        private long expiresAt;
+
+        private JobToken(GraphCachePrewarmSource source) {
+            this.source = source;
+        }
+
+        private synchronized AccessTokenResponse get(GraphApiClient graphApiClient) throws IOException {
+            long now = System.currentTimeMillis();
+            if (accessToken == null || expiresAt <= now) {
+                accessToken = graphApiClient.getClientCredentialsToken(source.tokenUrl(), source.clientId(), source.clientSecret());
+                expiresAt = now + accessToken.getExpiresIn() * 1000 - TOKEN_EXPIRY_MARGIN_MILLIS;
+            }
+
+            return accessToken;
+        }
+
+    }
+
+}
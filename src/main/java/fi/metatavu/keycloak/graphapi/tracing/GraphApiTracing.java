@@ -0,0 +1,134 @@
+package fi.metatavu.keycloak.graphapi.tracing;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import jakarta.enterprise.inject.Instance;
+import jakarta.enterprise.inject.spi.CDI;
+import org.jboss.logging.Logger;
+
+import java.net.http.HttpRequest;
+
+/**
+ * OpenTelemetry tracing of the Graph API extension.
+ *
+ * Spans are created with the OpenTelemetry instance of Keycloak, so they become part of the
+ * traces Keycloak exports when tracing is enabled. When tracing is disabled the spans are not
+ * recorded. Trace context is forwarded to Graph API with W3C trace context headers only, so
+ * baggage of the login is not sent outside.
+ */
+public final class GraphApiTracing {
+
+    public static final AttributeKey<String> ATTRIBUTE_REALM = AttributeKey.stringKey("keycloak.realm");
+    public static final AttributeKey<String> ATTRIBUTE_IDENTITY_PROVIDER = AttributeKey.stringKey("keycloak.identity_provider");
+    public static final AttributeKey<String> ATTRIBUTE_MAPPER = AttributeKey.stringKey("keycloak.mapper");
+    public static final AttributeKey<String> ATTRIBUTE_RESOURCES = AttributeKey.stringKey("graph.resources");
+    public static final AttributeKey<Long> ATTRIBUTE_PAGE = AttributeKey.longKey("graph.page");
+    public static final AttributeKey<String> ATTRIBUTE_HTTP_METHOD = AttributeKey.stringKey("http.request.method");
+    public static final AttributeKey<Long> ATTRIBUTE_HTTP_STATUS = AttributeKey.longKey("http.response.status_code");
+    public static final AttributeKey<Long> ATTRIBUTE_HTTP_RESEND_COUNT = AttributeKey.longKey("http.request.resend_count");
+    public static final AttributeKey<String> ATTRIBUTE_URL_TEMPLATE = AttributeKey.stringKey("url.template");
+    public static final AttributeKey<String> ATTRIBUTE_SERVER_ADDRESS = AttributeKey.stringKey("server.address");
+
+    private static final Logger logger = Logger.getLogger(GraphApiTracing.class);
+    private static final String INSTRUMENTATION_SCOPE = "fi.metatavu.keycloak.graphapi";
+    private static final TextMapSetter<HttpRequest.Builder> HEADER_SETTER = (builder, name, value) -> {
+        if (builder != null) {
+            builder.setHeader(name, value);
+        }
+    };
+
+    private static volatile Tracer tracer;
+
+    private GraphApiTracing() {
+    }
+
+    /**
+     * Starts a span as a child of the current span
+     *
+     * @param name span name
+     * @param kind span kind
+     * @return started span
+     */
+    public static Span startSpan(String name, SpanKind kind) {
+        return startSpan(name, kind, Context.current());
+    }
+
+    /**
+     * Starts a span as a child of the span of given context
+     *
+     * @param name span name
+     * @param kind span kind
+     * @param parent parent context
+     * @return started span
+     */
+    public static Span startSpan(String name, SpanKind kind, Context parent) {
+        return getTracer().spanBuilder(name)
+            .setSpanKind(kind)
+            .setParent(parent)
+            .startSpan();
+    }
+
+    /**
+     * Marks a span failed with an error
+     *
+     * @param span span
+     * @param error error
+     */
+    public static void recordError(Span span, Throwable error) {
+        span.recordException(error);
+        span.setStatus(StatusCode.ERROR, error.getMessage());
+    }
+
+    /**
+     * Adds W3C trace context headers of given context into a request
+     *
+     * @param context context
+     * @param builder request builder
+     */
+    public static void inject(Context context, HttpRequest.Builder builder) {
+        W3CTraceContextPropagator.getInstance().inject(context, builder, HEADER_SETTER);
+    }
+
+    /**
+     * Returns tracer of the extension
+     *
+     * @return tracer
+     */
+    private static Tracer getTracer() {
+        Tracer result = tracer;
+        if (result == null) {
+            result = resolveOpenTelemetry().getTracer(INSTRUMENTATION_SCOPE);
+            tracer = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns OpenTelemetry instance of Keycloak. Keycloak provides the instance as a CDI bean and
+     * the global instance is used when the bean is not available.
+     *
+     * @return OpenTelemetry instance
+     */
+    private static OpenTelemetry resolveOpenTelemetry() {
+        try {
+            Instance<OpenTelemetry> instance = CDI.current().select(OpenTelemetry.class);
+            if (instance.isResolvable()) {
+                return instance.get();
+            }
+        } catch (IllegalStateException e) {
+            logger.debug("CDI container is not available, using global OpenTelemetry", e);
+        }
+
+        return GlobalOpenTelemetry.get();
+    }
+
+}
@@ -0,0 +1,178 @@
+package fi.metatavu.keycloak;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless driver for brokered logins.
+ *
+ * Logs in to the test realm through the oidc identity provider of the azure realm with plain
+ * HTTP requests, following redirects until the test realm redirects back to the client with an
+ * authorization code. Keycloak is reached through the mapped port of the container, so URLs
+ * pointing at the keycloak network alias are rewritten to the mapped address.
+ */
+public class BrokeredLoginDriver {
+
+    private static final String NETWORK_URL = "http://keycloak:8080";
+    private static final String CLIENT_ID = "account-console";
+    private static final String IDENTITY_PROVIDER = "oidc";
+    private static final int MAX_STEPS = 20;
+    private static final Pattern LOGIN_FORM_ACTION = Pattern.compile("<form[^>]*id=\"kc-form-login\"[^>]*action=\"([^\"]+)\"");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String baseUrl;
+
+    /**
+     * Constructor
+     *
+     * @param baseUrl Keycloak URL reachable from the test
+     */
+    public BrokeredLoginDriver(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Logs user in to the test realm through the azure realm. Every login uses a new cookie
+     * store, so each login is a new browser session.
+     *
+     * @param username username in the azure realm
+     * @param password password
+     * @throws IOException thrown when the login does not complete
+     */
+    public void login(String username, String password) throws IOException {
+        HttpClient httpClient = HttpClient.newBuilder()
+            .cookieHandler(new CookieManager(null, CookiePolicy.ACCEPT_ALL))
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+        String redirectUri = baseUrl + "/realms/test/account/";
+        String codeVerifier = createCodeVerifier();
+        String authUrl = baseUrl + "/realms/test/protocol/openid-connect/auth"
+            + "?client_id=" + CLIENT_ID
+            + "&redirect_uri=" + encode(redirectUri)
+            + "&response_type=code"
+            + "&scope=openid"
+            + "&kc_idp_hint=" + IDENTITY_PROVIDER
+            + "&code_challenge=" + createCodeChallenge(codeVerifier)
+            + "&code_challenge_method=S256";
+
+        HttpResponse<String> response = send(httpClient, HttpRequest.newBuilder(URI.create(authUrl)).GET());
+        boolean credentialsSent = false;
+
+        for (int step = 0; step < MAX_STEPS; step++) {
+            String location = response.headers().firstValue("Location").map(this::rewrite).orElse(null);
+
+            if (location != null && location.startsWith(redirectUri)) {
+                if (!location.contains("code=")) {
+                    throw new IOException("Login failed: " + location);
+                }
+
+                return;
+            }
+
+            if (location != null) {
+                response = send(httpClient, HttpRequest.newBuilder(URI.create(location)).GET());
+                continue;
+            }
+
+            Matcher matcher = LOGIN_FORM_ACTION.matcher(response.body());
+            if (response.statusCode() != 200 || credentialsSent || !matcher.find()) {
+                throw new IOException(String.format("Unexpected response during login [status=%d, uri=%s]", response.statusCode(), response.uri()));
+            }
+
+            String action = rewrite(matcher.group(1).replace("&amp;", "&"));
+            String form = "username=" + encode(username) + "&password=" + encode(password) + "&credentialId=";
+            response = send(httpClient, HttpRequest.newBuilder(URI.create(action))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)));
+            credentialsSent = true;
+        }
+
+        throw new IOException("Login did not complete in " + MAX_STEPS + " steps");
+    }
+
+    /**
+     * Sends a request
+     *
+     * @param httpClient HTTP client of the login
+     * @param builder request builder
+     * @return response
+     * @throws IOException thrown when request fails
+     */
+    private HttpResponse<String> send(HttpClient httpClient, HttpRequest.Builder builder) throws IOException {
+        try {
+            return httpClient.send(builder.timeout(Duration.ofSeconds(60)).build(), HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Rewrites a URL pointing at the Keycloak network alias to the mapped address
+     *
+     * @param url URL
+     * @return rewritten URL
+     */
+    private String rewrite(String url) {
+        if (url.startsWith(NETWORK_URL)) {
+            return baseUrl + url.substring(NETWORK_URL.length());
+        } else if (url.startsWith("/")) {
+            return baseUrl + url;
+        }
+
+        return url;
+    }
+
+    /**
+     * Creates a PKCE code verifier
+     *
+     * @return code verifier
+     */
+    private static String createCodeVerifier() {
+        byte[] bytes = new byte[32];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Creates a S256 PKCE code challenge
+     *
+     * @param codeVerifier code verifier
+     * @return code challenge
+     */
+    private static String createCodeChallenge(String codeVerifier) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(codeVerifier.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * URL-encodes a value
+     *
+     * @param value value
+     * @return encoded value
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
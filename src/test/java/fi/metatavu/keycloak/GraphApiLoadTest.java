@@ -0,0 +1,182 @@
+package fi.metatavu.keycloak;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.resource.UsersResource;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.testcontainers.containers.BindMode;
+import org.testcontainers.containers.Network;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.wiremock.integrations.testcontainers.WireMockContainer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Load test of concurrent brokered logins through the Graph API mapper chain.
+ *
+ * Each scenario configures the Graph API stand-in and logs a set of new users in twice: the
+ * first round imports the users and the second round updates them. Throughput and latency
+ * percentiles of each round are printed and written to build/reports/load-test/results.txt.
+ * Run with ./gradlew loadTest.
+ */
+@Tag("load")
+@Testcontainers
+public class GraphApiLoadTest {
+
+    private static final Network network = Network.newNetwork();
+    private static final String PASSWORD = "test";
+
+    private static final int USERS = Integer.getInteger("loadTest.users", 50);
+    private static final int CONCURRENCY = Integer.getInteger("loadTest.concurrency", 10);
+    private static final List<String> SCENARIO_NAMES = Arrays.asList(System.getProperty("loadTest.scenarios", "fast,slow,throttled").split(","));
+
+    private static final List<LoadTestScenario> SCENARIOS = List.of(
+        new LoadTestScenario("fast", 20, 10, 0, 0),
+        new LoadTestScenario("slow", 300, 200, 0, 0),
+        new LoadTestScenario("throttled", 50, 25, 10, 1)
+    );
+
+    @Container
+    private static final KeycloakContainer keycloakContainer = KeycloakTestUtils.createKeycloakContainer(network, false);
+
+    @Container
+    @SuppressWarnings("unused")
+    private static final WireMockContainer wiremockContainer = new WireMockContainer("wiremock/wiremock:2.35.0")
+            .withNetwork(network)
+            .withNetworkAliases("wiremock")
+            .withFileSystemBind("./src/test/resources/mappings", "/home/wiremock/mappings", BindMode.READ_ONLY);
+
+    @AfterAll
+    static void afterAll() {
+        keycloakContainer.stop();
+    }
+
+    @Test
+    void testConcurrentBrokeredLogins() throws Exception {
+        GraphStandIn graphStandIn = new GraphStandIn(new WireMock(wiremockContainer.getHost(), wiremockContainer.getMappedPort(8080)));
+        BrokeredLoginDriver driver = new BrokeredLoginDriver(keycloakContainer.getAuthServerUrl());
+        List<LoadTestResult> results = new ArrayList<>();
+
+        for (LoadTestScenario scenario : SCENARIOS) {
+            if (!SCENARIO_NAMES.contains(scenario.name())) {
+                continue;
+            }
+
+            List<String> usernames = createUsers(scenario.name());
+            graphStandIn.configure(scenario);
+
+            results.add(runRound(driver, scenario.name() + " / first login", usernames));
+            results.add(runRound(driver, scenario.name() + " / repeat login", usernames));
+        }
+
+        writeReport(results);
+
+        for (LoadTestResult result : results) {
+            assertEquals(List.of(), result.getFailures());
+        }
+    }
+
+    /**
+     * Prints results and writes them into the build directory
+     *
+     * @param results results of the rounds
+     * @throws IOException thrown when the report cannot be written
+     */
+    private void writeReport(List<LoadTestResult> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Load test results [users=%d, concurrency=%d]", USERS, CONCURRENCY));
+        results.forEach(result -> lines.add(result.format()));
+        lines.forEach(System.out::println);
+
+        Path report = Path.of(System.getenv("BUILD_DIR"), "reports", "load-test", "results.txt");
+        Files.createDirectories(report.getParent());
+        Files.write(report, lines);
+    }
+
+    /**
+     * Logs users in concurrently
+     *
+     * @param driver login driver
+     * @param name name of the round
+     * @param usernames users to log in
+     * @return results of the round
+     * @throws InterruptedException thrown when interrupted
+     */
+    private LoadTestResult runRound(BrokeredLoginDriver driver, String name, List<String> usernames) throws InterruptedException {
+        LoadTestResult result = new LoadTestResult(name);
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        long started = System.nanoTime();
+
+        for (String username : usernames) {
+            executor.execute(() -> {
+                long loginStarted = System.nanoTime();
+                try {
+                    driver.login(username, PASSWORD);
+                    result.addLatency(System.nanoTime() - loginStarted);
+                } catch (Exception e) {
+                    result.addFailure(username + ": " + e.getMessage());
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.MINUTES);
+        result.setDurationNanos(System.nanoTime() - started);
+
+        return result;
+    }
+
+    /**
+     * Creates users of a scenario into the azure realm
+     *
+     * @param prefix username prefix
+     * @return usernames
+     */
+    private List<String> createUsers(String prefix) {
+        UsersResource users = keycloakContainer.getKeycloakAdminClient().realm("azure").users();
+        List<String> result = new ArrayList<>();
+
+        for (int i = 0; i < USERS; i++) {
+            String username = String.format("%s-%d", prefix, i);
+
+            CredentialRepresentation credential = new CredentialRepresentation();
+            credential.setType(CredentialRepresentation.PASSWORD);
+            credential.setValue(PASSWORD);
+            credential.setTemporary(false);
+
+            UserRepresentation user = new UserRepresentation();
+            user.setUsername(username);
+            user.setEmail(username + "@example.com");
+            user.setEmailVerified(true);
+            user.setFirstName("Load");
+            user.setLastName("Test " + i);
+            user.setEnabled(true);
+            user.setCredentials(List.of(credential));
+
+            try (Response response = users.create(user)) {
+                assertEquals(201, response.getStatus());
+            }
+
+            result.add(username);
+        }
+
+        return result;
+    }
+
+}
@@ -23,6 +23,11 @@ public class GraphApiTests extends AbstractSeleniumTest {
 
     private static final Network network = Network.newNetwork();
 
+    /**
+     * Projection of user and manager reads, covering the properties mapped in the test realm
+     */
+    private static final String USER_SELECT = "businessPhones,companyName,department,displayName,givenName,id,jobTitle,mail,mobilePhone,officeLocation,preferredLanguage,surname,userPrincipalName";
+
     @Container
     private static final KeycloakContainer keycloakContainer = KeycloakTestUtils.createKeycloakContainer(network);
 
@@ -85,7 +90,7 @@ public class GraphApiTests extends AbstractSeleniumTest {
             waitAndAssertInputValue(driver, By.id("azure-ad-manager-user-principal-name"), "diegos@m365x214355.onmicrosoft.com");
 
             // Verify that the manager endpoint was called just once
-            WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/me/manager")));
+            WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/me/manager")).withQueryParam("$select", WireMock.equalTo(USER_SELECT)));
 
             // Logout and login again
             logout(driver);
@@ -97,7 +102,7 @@ public class GraphApiTests extends AbstractSeleniumTest {
             waitButtonAndClick(driver, By.id("kc-login"));
 
             // Verify that the manager has been retrieved again
-            WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlEqualTo("/me/manager")));
+            WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/me/manager")).withQueryParam("$select", WireMock.equalTo(USER_SELECT)));
         } finally {
             driver.quit();
         }
@@ -131,7 +136,7 @@ public class GraphApiTests extends AbstractSeleniumTest {
             waitAndAssertInputValue(driver, By.id("azure-ad-user-user-principal-name"), "meganb@m365x214355.onmicrosoft.com");
 
             // Verify that the user endpoint was called just once
-            WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo("/me")));
+            WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/me")).withQueryParam("$select", WireMock.equalTo(USER_SELECT)));
 
             // Logout and login again
             logout(driver);
@@ -143,7 +148,7 @@ public class GraphApiTests extends AbstractSeleniumTest {
             waitButtonAndClick(driver, By.id("kc-login"));
 
             // Verify that the user has been retrieved again
-            WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlEqualTo("/me")));
+            WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/me")).withQueryParam("$select", WireMock.equalTo(USER_SELECT)));
         } finally {
             driver.quit();
         }
@@ -0,0 +1,126 @@
+package fi.metatavu.keycloak;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Graph API stand-in for load tests.
+ *
+ * Registers the WireMock mappings of the functional tests again with higher priority, adding
+ * response latency with uniform jitter and, optionally, a 429 response with Retry-After on every
+ * n-th request of each endpoint.
+ */
+public class GraphStandIn {
+
+    private static final Path MAPPINGS = Path.of("src/test/resources/mappings");
+    private static final int PRIORITY = 1;
+
+    private final WireMock wireMock;
+
+    /**
+     * Constructor
+     *
+     * @param wireMock WireMock client
+     */
+    public GraphStandIn(WireMock wireMock) {
+        this.wireMock = wireMock;
+    }
+
+    /**
+     * Replaces the stand-in stubs with stubs of a scenario
+     *
+     * @param scenario load test scenario
+     * @throws IOException thrown when mappings cannot be read
+     */
+    public void configure(LoadTestScenario scenario) throws IOException {
+        wireMock.resetMappings();
+        wireMock.resetScenarios();
+
+        for (StubMapping mapping : readMappings()) {
+            if (scenario.throttleEvery() > 0) {
+                registerThrottled(mapping, scenario);
+            } else {
+                register(mapping, scenario, null, null, false);
+            }
+        }
+    }
+
+    /**
+     * Registers a mapping that responds 429 on every n-th request. The position in the cycle is
+     * kept in a WireMock scenario per mapping.
+     *
+     * @param mapping mapping of the functional tests
+     * @param scenario load test scenario
+     * @throws IOException thrown when mapping cannot be copied
+     */
+    private void registerThrottled(StubMapping mapping, LoadTestScenario scenario) throws IOException {
+        int cycle = scenario.throttleEvery();
+        for (int i = 0; i < cycle; i++) {
+            String state = i == 0 ? Scenario.STARTED : "request-" + i;
+            String nextState = i + 1 == cycle ? Scenario.STARTED : "request-" + (i + 1);
+            register(mapping, scenario, state, nextState, i + 1 == cycle);
+        }
+    }
+
+    /**
+     * Registers a copy of a mapping with the latency of the scenario
+     *
+     * @param mapping mapping of the functional tests
+     * @param scenario load test scenario
+     * @param state required scenario state or null
+     * @param nextState next scenario state or null
+     * @param throttled whether the copy responds 429
+     * @throws IOException thrown when mapping cannot be copied
+     */
+    private void register(StubMapping mapping, LoadTestScenario scenario, String state, String nextState, boolean throttled) throws IOException {
+        StubMapping copy = StubMapping.buildFrom(StubMapping.buildJsonStringFor(mapping));
+        copy.setId(UUID.randomUUID());
+        copy.setPriority(PRIORITY);
+
+        if (state != null) {
+            copy.setScenarioName("throttle-" + mapping.getId());
+            copy.setRequiredScenarioState(state);
+            copy.setNewScenarioState(nextState);
+        }
+
+        ResponseDefinitionBuilder response = throttled
+            ? ResponseDefinitionBuilder.responseDefinition().withStatus(429).withHeader("Retry-After", String.valueOf(scenario.retryAfterSeconds()))
+            : ResponseDefinitionBuilder.like(mapping.getResponse());
+
+        int lower = Math.max(0, scenario.latencyMillis() - scenario.jitterMillis());
+        int upper = scenario.latencyMillis() + scenario.jitterMillis();
+        copy.setResponse((lower == upper ? response.withFixedDelay(lower) : response.withUniformRandomDelay(lower, upper)).build());
+
+        wireMock.register(copy);
+    }
+
+    /**
+     * Reads the mappings of the functional tests
+     *
+     * @return mappings
+     * @throws IOException thrown when mappings cannot be read
+     */
+    private static List<StubMapping> readMappings() throws IOException {
+        List<StubMapping> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(MAPPINGS)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(".json")).sorted().toList()) {
+                StubMapping mapping = StubMapping.buildFrom(Files.readString(file));
+                mapping.setId(UUID.nameUUIDFromBytes(file.getFileName().toString().getBytes()));
+                result.add(mapping);
+            }
+        }
+
+        return result;
+    }
+
+}
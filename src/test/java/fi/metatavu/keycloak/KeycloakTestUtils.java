@@ -18,20 +18,53 @@ public class KeycloakTestUtils {
      * @param network the network to use for the Keycloak container
      * @return a configured KeycloakContainer instance
      */
-    @SuppressWarnings("resource")
     public static KeycloakContainer createKeycloakContainer(Network network) {
-        return new KeycloakContainer(KeycloakTestUtils.getKeycloakImage())
+        return createKeycloakContainer(network, true);
+    }
+
+    /**
+     * Creates a Keycloak container with the specified network
+     *
+     * @param network the network to use for the Keycloak container
+     * @param coverage whether to collect code coverage with the JaCoCo agent
+     * @return a configured KeycloakContainer instance
+     */
+    public static KeycloakContainer createKeycloakContainer(Network network, boolean coverage) {
+        return createKeycloakContainer(network, coverage, new String[0]);
+    }
+
+    /**
+     * Creates a Keycloak container with the specified network and server options
+     *
+     * @param network the network to use for the Keycloak container
+     * @param coverage whether to collect code coverage with the JaCoCo agent
+     * @param options additional server options, e.g. SPI configuration options
+     * @return a configured KeycloakContainer instance
+     */
+    @SuppressWarnings("resource")
+    public static KeycloakContainer createKeycloakContainer(Network network, boolean coverage, String... options) {
+        KeycloakContainer container = new KeycloakContainer(KeycloakTestUtils.getKeycloakImage())
             .withNetwork(network)
             .withFileSystemBind("./build/libs/", "/opt/keycloak/providers", BindMode.READ_ONLY)
             .withRealmImportFiles("kc-azure.json", "kc-test.json")
             .withEnv("GRAPH_API_URL", "http://wiremock:8080")
-            .withEnv("JAVA_OPTS_APPEND", "-javaagent:/jacoco-agent/org.jacoco.agent-runtime.jar=destfile=/tmp/jacoco.exec")
-            .withCopyFileToContainer(
-                    MountableFile.forHostPath(KeycloakTestUtils.getJacocoAgentPath()),
-                    "/jacoco-agent/org.jacoco.agent-runtime.jar"
-            )
             .withLogConsumer(outputFrame -> System.out.printf("KEYCLOAK: %s", outputFrame.getUtf8String()))
             .withNetworkAliases("keycloak");
+
+        for (String option : options) {
+            container.withCustomCommand(option);
+        }
+
+        if (coverage) {
+            container
+                .withEnv("JAVA_OPTS_APPEND", "-javaagent:/jacoco-agent/org.jacoco.agent-runtime.jar=destfile=/tmp/jacoco.exec")
+                .withCopyFileToContainer(
+                        MountableFile.forHostPath(KeycloakTestUtils.getJacocoAgentPath()),
+                        "/jacoco-agent/org.jacoco.agent-runtime.jar"
+                );
+        }
+
+        return container;
     }
 
     /**
@@ -0,0 +1,96 @@
+package fi.metatavu.keycloak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a round of concurrent logins
+ */
+public class LoadTestResult {
+
+    private final String name;
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private long durationNanos;
+
+    /**
+     * Constructor
+     *
+     * @param name name of the round
+     */
+    public LoadTestResult(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a successful login
+     *
+     * @param latencyNanos login latency in nanoseconds
+     */
+    public void addLatency(long latencyNanos) {
+        latencies.add(latencyNanos);
+    }
+
+    /**
+     * Records a failed login
+     *
+     * @param failure failure message
+     */
+    public void addFailure(String failure) {
+        failures.add(failure);
+    }
+
+    public void setDurationNanos(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns a latency percentile with the nearest rank method
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in milliseconds or 0 if no login succeeded
+     */
+    public double getPercentileMillis(double percentile) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / 1_000_000d;
+    }
+
+    /**
+     * Returns successful logins per second
+     *
+     * @return throughput
+     */
+    public double getThroughput() {
+        return durationNanos > 0 ? latencies.size() / (durationNanos / 1_000_000_000d) : 0;
+    }
+
+    /**
+     * Returns a report line of the round
+     *
+     * @return report line
+     */
+    public String format() {
+        return String.format(
+            "%-32s logins=%4d failed=%3d throughput=%7.2f/s p50=%8.1fms p95=%8.1fms p99=%8.1fms",
+            name,
+            latencies.size(),
+            failures.size(),
+            getThroughput(),
+            getPercentileMillis(50),
+            getPercentileMillis(95),
+            getPercentileMillis(99)
+        );
+    }
+
+}
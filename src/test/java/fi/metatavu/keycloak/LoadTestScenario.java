@@ -0,0 +1,13 @@
+package fi.metatavu.keycloak;
+
+/**
+ * Load test scenario
+ *
+ * @param name scenario name
+ * @param latencyMillis mean latency of Graph API responses in milliseconds
+ * @param jitterMillis maximum deviation from the mean latency in milliseconds
+ * @param throttleEvery every n-th request of each Graph API endpoint is throttled, 0 disables throttling
+ * @param retryAfterSeconds Retry-After of throttled responses in seconds
+ */
+public record LoadTestScenario(String name, int latencyMillis, int jitterMillis, int throttleEvery, int retryAfterSeconds) {
+}
@@ -0,0 +1,225 @@
+package fi.metatavu.keycloak.graphapi;
+
+import fi.metatavu.keycloak.graphapi.client.GraphApiJson;
+import fi.metatavu.keycloak.graphapi.client.GraphResource;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.model.GraphUser;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GraphSnapshotNoteCodecTest {
+
+    @Test
+    void testRoundTrip() throws IOException {
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.allOf(GraphResource.class));
+        snapshot.setUser(createUser("Megan Bowen", List.of("+1 412 555 0109")));
+        snapshot.setUserGroups(List.of(createGroup(UUID.randomUUID(), "Sales and Marketing", "SalesAndMarketing@contoso.com"), createGroup(null, "Retail", null)));
+        snapshot.setUserGroupsComplete(true);
+        snapshot.setManager(createUser("Miriam Graham", List.of()));
+        snapshot.setManagerGroups(List.of());
+        snapshot.setManagerGroupsComplete(false);
+
+        GraphUserSnapshot decoded = GraphSnapshotNoteCodec.decode(GraphSnapshotNoteCodec.encode(snapshot));
+
+        assertSnapshotEquals(snapshot, decoded);
+    }
+
+    @Test
+    void testRoundTripAbsentValues() throws IOException {
+        GraphUser user = new GraphUser();
+        user.setId("87d349ed-44d7-43e1-9a83-5f2406dee5bd");
+        user.setDisplayName("Nestor Wilke");
+
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.of(GraphResource.USER, GraphResource.MANAGER));
+        snapshot.setUser(user);
+
+        GraphUserSnapshot decoded = GraphSnapshotNoteCodec.decode(GraphSnapshotNoteCodec.encode(snapshot));
+
+        assertSnapshotEquals(snapshot, decoded);
+        assertNull(decoded.getUser().getBusinessPhones());
+        assertNull(decoded.getUser().getMail());
+        assertNull(decoded.getUserGroups());
+        assertNull(decoded.getManager());
+    }
+
+    @Test
+    void testRoundTripManyGroups() throws IOException {
+        List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            groups.add(createGroup(UUID.randomUUID(), "Group " + i, null));
+        }
+
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.of(GraphResource.USER_GROUPS));
+        snapshot.setUserGroups(groups);
+        snapshot.setUserGroupsComplete(true);
+
+        assertSnapshotEquals(snapshot, GraphSnapshotNoteCodec.decode(GraphSnapshotNoteCodec.encode(snapshot)));
+    }
+
+    @Test
+    void testJsonFallback() throws IOException {
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.of(GraphResource.USER, GraphResource.USER_GROUPS));
+        snapshot.setUser(createUser("Adele Vance", List.of("+1 425 555 0109")));
+        snapshot.setUserGroups(List.of(createGroup(UUID.randomUUID(), "Retail", "Retail@contoso.com")));
+        snapshot.setUserGroupsComplete(true);
+
+        String jsonNote = GraphApiJson.writer(GraphUserSnapshot.class).writeValueAsString(snapshot);
+        String compactNote = GraphSnapshotNoteCodec.encode(snapshot);
+
+        assertFalse(GraphSnapshotNoteCodec.isCompact(jsonNote));
+        assertTrue(GraphSnapshotNoteCodec.isCompact(compactNote));
+        assertFalse(GraphSnapshotNoteCodec.isCompact(""));
+        assertTrue(compactNote.length() < jsonNote.length());
+
+        GraphUserSnapshot decoded = GraphApiJson.reader(GraphUserSnapshot.class).readValue(jsonNote);
+        assertSnapshotEquals(snapshot, decoded);
+    }
+
+    @Test
+    void testUnsupportedVersion() throws IOException {
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.of(GraphResource.USER));
+        snapshot.setUser(createUser("Lee Gu", null));
+
+        byte[] bytes = Base64.getDecoder().decode(GraphSnapshotNoteCodec.encode(snapshot));
+        bytes[0] = 2;
+        String note = Base64.getEncoder().withoutPadding().encodeToString(bytes);
+
+        IOException exception = assertThrows(IOException.class, () -> GraphSnapshotNoteCodec.decode(note));
+        assertEquals("Unsupported snapshot note version 2", exception.getMessage());
+    }
+
+    @Test
+    void testInvalidNote() throws IOException {
+        GraphUserSnapshot snapshot = new GraphUserSnapshot();
+        snapshot.setResources(EnumSet.of(GraphResource.USER));
+        snapshot.setUser(createUser("Lee Gu", null));
+        String note = GraphSnapshotNoteCodec.encode(snapshot);
+
+        assertThrows(IOException.class, () -> GraphSnapshotNoteCodec.decode(note.substring(0, note.length() / 2)));
+        assertThrows(IOException.class, () -> GraphSnapshotNoteCodec.decode("not base64!"));
+    }
+
+    /**
+     * Creates a user with all string properties set
+     *
+     * @param displayName display name
+     * @param businessPhones business phones
+     * @return user
+     */
+    private static GraphUser createUser(String displayName, List<String> businessPhones) {
+        GraphUser user = new GraphUser();
+        user.setId(UUID.randomUUID().toString());
+        user.setDisplayName(displayName);
+        user.setBusinessPhones(businessPhones);
+        user.setCompanyName("Contoso");
+        user.setDepartment("Sales & Marketing");
+        user.setGivenName(displayName.split(" ")[0]);
+        user.setSurname(displayName.split(" ")[1]);
+        user.setJobTitle("Marketing Manager");
+        user.setMail(displayName.replace(" ", ".") + "@contoso.com");
+        user.setUserPrincipalName(displayName.replace(" ", ".") + "@contoso.com");
+        user.setMobilePhone("+1 412 555 0110");
+        user.setOfficeLocation("18/2111");
+        user.setPreferredLanguage("fi-FI");
+        return user;
+    }
+
+    /**
+     * Creates a group
+     *
+     * @param id group id
+     * @param displayName display name
+     * @param mail mail
+     * @return group
+     */
+    private static TransitiveMemberOfGroup createGroup(UUID id, String displayName, String mail) {
+        TransitiveMemberOfGroup group = new TransitiveMemberOfGroup();
+        group.setId(id);
+        group.setDisplayName(displayName);
+        group.setMail(mail);
+        return group;
+    }
+
+    /**
+     * Asserts that snapshots contain the same data
+     *
+     * @param expected expected snapshot
+     * @param actual actual snapshot
+     */
+    private static void assertSnapshotEquals(GraphUserSnapshot expected, GraphUserSnapshot actual) {
+        assertEquals(Set.copyOf(expected.getResources()), Set.copyOf(actual.getResources()));
+        assertUserEquals(expected.getUser(), actual.getUser());
+        assertGroupsEquals(expected.getUserGroups(), actual.getUserGroups());
+        assertEquals(expected.isUserGroupsComplete(), actual.isUserGroupsComplete());
+        assertUserEquals(expected.getManager(), actual.getManager());
+        assertGroupsEquals(expected.getManagerGroups(), actual.getManagerGroups());
+        assertEquals(expected.isManagerGroupsComplete(), actual.isManagerGroupsComplete());
+    }
+
+    /**
+     * Asserts that users have the same properties
+     *
+     * @param expected expected user
+     * @param actual actual user
+     */
+    private static void assertUserEquals(GraphUser expected, GraphUser actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getBusinessPhones(), actual.getBusinessPhones());
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getCompanyName(), actual.getCompanyName());
+        assertEquals(expected.getDepartment(), actual.getDepartment());
+        assertEquals(expected.getGivenName(), actual.getGivenName());
+        assertEquals(expected.getJobTitle(), actual.getJobTitle());
+        assertEquals(expected.getMail(), actual.getMail());
+        assertEquals(expected.getMobilePhone(), actual.getMobilePhone());
+        assertEquals(expected.getOfficeLocation(), actual.getOfficeLocation());
+        assertEquals(expected.getPreferredLanguage(), actual.getPreferredLanguage());
+        assertEquals(expected.getSurname(), actual.getSurname());
+        assertEquals(expected.getUserPrincipalName(), actual.getUserPrincipalName());
+    }
+
+    /**
+     * Asserts that group lists contain the same groups in the same order
+     *
+     * @param expected expected groups
+     * @param actual actual groups
+     */
+    private static void assertGroupsEquals(List<TransitiveMemberOfGroup> expected, List<TransitiveMemberOfGroup> actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getDisplayName(), actual.get(i).getDisplayName());
+            assertEquals(expected.get(i).getMail(), actual.get(i).getMail());
+        }
+    }
+
+}
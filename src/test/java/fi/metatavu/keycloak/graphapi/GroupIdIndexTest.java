@@ -0,0 +1,73 @@
+package fi.metatavu.keycloak.graphapi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class GroupIdIndexTest {
+
+    @Test
+    void testIndexOf() {
+        List<UUID> ids = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        GroupIdIndex index = new GroupIdIndex(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i, index.indexOf(ids.get(i)));
+        }
+
+        assertEquals(-1, index.indexOf(UUID.randomUUID()));
+    }
+
+    @Test
+    void testEmptyIndex() {
+        GroupIdIndex index = new GroupIdIndex(List.of());
+        assertEquals(-1, index.indexOf(UUID.randomUUID()));
+    }
+
+    @Test
+    void testDuplicateIdsReturnFirstPosition() {
+        UUID id = UUID.randomUUID();
+        GroupIdIndex index = new GroupIdIndex(List.of(id, UUID.randomUUID(), id));
+        assertEquals(0, index.indexOf(id));
+    }
+
+    @Test
+    void testSimilarIds() {
+        // Ids differing only in few bits must not collide into the same position
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(new UUID(0x1234L, i));
+            ids.add(new UUID(i, 0x1234L));
+        }
+
+        GroupIdIndex index = new GroupIdIndex(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i, index.indexOf(ids.get(i)));
+        }
+
+        assertEquals(-1, index.indexOf(new UUID(0x1234L, 1000)));
+        assertEquals(-1, index.indexOf(new UUID(1000, 0x1234L)));
+    }
+
+    @Test
+    void testIndexSizes() {
+        for (int size = 1; size <= 65; size++) {
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                ids.add(UUID.randomUUID());
+            }
+
+            GroupIdIndex index = new GroupIdIndex(ids);
+            for (int i = 0; i < size; i++) {
+                assertEquals(i, index.indexOf(ids.get(i)));
+            }
+
+            assertEquals(-1, index.indexOf(UUID.randomUUID()));
+        }
+    }
+
+}
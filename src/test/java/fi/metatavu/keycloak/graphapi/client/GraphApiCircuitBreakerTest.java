@@ -0,0 +1,224 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GraphApiCircuitBreakerTest {
+
+    private static final URI PROBE_URI = URI.create("http://localhost:1/v1.0");
+    private static final Executor NO_PROBES = command -> {};
+
+    @Test
+    void testOpensAfterConsecutiveFailures() {
+        GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(3, HttpClient.newHttpClient(), NO_PROBES, PROBE_URI);
+
+        circuitBreaker.record(createResponse(500), null);
+        circuitBreaker.record(null, new HttpConnectTimeoutException("timeout"));
+        assertFalse(circuitBreaker.isOpen());
+
+        circuitBreaker.record(createResponse(503), null);
+        assertTrue(circuitBreaker.isOpen());
+        assertEquals(1, circuitBreaker.getTrips());
+
+        circuitBreaker.record(createResponse(500), null);
+        assertEquals(1, circuitBreaker.getTrips());
+    }
+
+    @Test
+    void testSuccessResetsFailures() {
+        GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(2, HttpClient.newHttpClient(), NO_PROBES, PROBE_URI);
+
+        circuitBreaker.record(createResponse(502), null);
+        circuitBreaker.record(createResponse(200), null);
+        circuitBreaker.record(createResponse(502), null);
+        assertFalse(circuitBreaker.isOpen());
+
+        circuitBreaker.record(createResponse(404), null);
+        circuitBreaker.record(createResponse(504), null);
+        assertFalse(circuitBreaker.isOpen());
+
+        circuitBreaker.record(createResponse(504), null);
+        assertTrue(circuitBreaker.isOpen());
+    }
+
+    @Test
+    void testCancellationIsIgnored() {
+        GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(2, HttpClient.newHttpClient(), NO_PROBES, PROBE_URI);
+
+        circuitBreaker.record(createResponse(500), null);
+        circuitBreaker.record(null, new CancellationException());
+        circuitBreaker.record(null, new CompletionException(new CancellationException()));
+        assertFalse(circuitBreaker.isOpen());
+
+        circuitBreaker.record(null, new CompletionException(new IOException("connection reset")));
+        assertTrue(circuitBreaker.isOpen());
+    }
+
+    @Test
+    void testDisabled() {
+        GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(0, HttpClient.newHttpClient(), NO_PROBES, PROBE_URI);
+
+        for (int i = 0; i < 100; i++) {
+            circuitBreaker.record(createResponse(500), null);
+        }
+
+        assertFalse(circuitBreaker.isOpen());
+        assertEquals(0, circuitBreaker.getTrips());
+    }
+
+    @Test
+    void testReject() {
+        GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(1, HttpClient.newHttpClient(), NO_PROBES, PROBE_URI);
+
+        circuitBreaker.reject();
+        circuitBreaker.reject();
+        assertEquals(2, circuitBreaker.getRejectedRequests());
+    }
+
+    @Test
+    void testClosesWhenProbeSucceeds() throws Exception {
+        AtomicInteger probeStatus = new AtomicInteger(503);
+        AtomicInteger probes = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            probes.incrementAndGet();
+            exchange.sendResponseHeaders(probeStatus.get(), -1);
+            exchange.close();
+        });
+        server.start();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            URI probeUri = URI.create(String.format("http://localhost:%d/v1.0", server.getAddress().getPort()));
+            GraphApiCircuitBreaker circuitBreaker = createCircuitBreaker(1, HttpClient.newHttpClient(), executor, probeUri);
+
+            circuitBreaker.record(createResponse(500), null);
+            assertTrue(circuitBreaker.isOpen());
+
+            waitFor(() -> probes.get() >= 2);
+            assertTrue(circuitBreaker.isOpen());
+
+            probeStatus.set(401);
+            waitFor(() -> !circuitBreaker.isOpen());
+            assertEquals(1, circuitBreaker.getTrips());
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a circuit breaker
+     *
+     * @param failureThreshold consecutive failures opening the breaker or 0 to disable it
+     * @param httpClient HTTP client for probes
+     * @param executor executor for probes
+     * @param probeUri URI of probes
+     * @return circuit breaker
+     */
+    private static GraphApiCircuitBreaker createCircuitBreaker(int failureThreshold, HttpClient httpClient, Executor executor, URI probeUri) {
+        GraphApiClientSettings settings = new GraphApiClientSettings();
+        settings.setCircuitBreakerFailureThreshold(failureThreshold);
+        settings.setCircuitBreakerOpenTime(20);
+        settings.setRequestTimeout(2000);
+        return new GraphApiCircuitBreaker(settings, httpClient, executor, probeUri);
+    }
+
+    /**
+     * Waits until a condition holds
+     *
+     * @param condition condition
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Creates a response with given status
+     *
+     * @param statusCode status code
+     * @return response
+     */
+    private static HttpResponse<Void> createResponse(int statusCode) {
+        return new StatusResponse(statusCode);
+    }
+
+    /**
+     * Condition waited for
+     */
+    private interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * Response having only a status code
+     *
+     * @param statusCode status code
+     */
+    private record StatusResponse(int statusCode) implements HttpResponse<Void> {
+
+        @Override
+        public HttpRequest request() {
+            return HttpRequest.newBuilder(PROBE_URI).build();
+        }
+
+        @Override
+        public Optional<HttpResponse<Void>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Map.of(), (name, value) -> true);
+        }
+
+        @Override
+        public Void body() {
+            return null;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return PROBE_URI;
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.sun.net.httpserver.HttpServer;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.model.GraphUserSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.AccessTokenResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests paging of transitive member of groups listings against a local Graph API stand-in
+ */
+public class GraphApiClientGroupPagingTest {
+
+    private static final String GROUPS_PATH = "/v1.0/me/transitiveMemberOf/microsoft.graph.group";
+    private static final String SECOND_PAGE_PATH = "/v1.0/me/transitiveMemberOf/page2";
+
+    private final Map<String, Page> pages = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private ExecutorService executor;
+    private String graphApiUrl;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            Page page = pages.get(exchange.getRequestURI().getPath());
+            byte[] body = page != null && page.body() != null ? page.body().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(page != null ? page.status() : 404, body.length > 0 ? body.length : -1);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+
+        executor = Executors.newCachedThreadPool();
+        graphApiUrl = String.format("http://localhost:%d/v1.0", server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testFollowsNextLink() {
+        pages.put(GROUPS_PATH, new Page(200, createPage(List.of("Sales and Marketing", "Retail"), graphApiUrl + "/me/transitiveMemberOf/page2")));
+        pages.put(SECOND_PAGE_PATH, new Page(200, createPage(List.of("Mark 8 Project Team"), null)));
+
+        GraphUserSnapshot snapshot = createClient(100).getSnapshot(createAccessToken(), Set.of(GraphResource.USER_GROUPS));
+
+        assertEquals(List.of("Sales and Marketing", "Retail", "Mark 8 Project Team"), getDisplayNames(snapshot.getUserGroups()));
+        assertTrue(snapshot.isUserGroupsComplete());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void testMaxGroupsMarksIncomplete() throws IOException {
+        pages.put(GROUPS_PATH, new Page(200, createPage(List.of("Sales and Marketing", "Retail"), graphApiUrl + "/me/transitiveMemberOf/page2")));
+        pages.put(SECOND_PAGE_PATH, new Page(200, createPage(List.of("Mark 8 Project Team"), null)));
+
+        GraphUserSnapshot snapshot = createClient(2).getSnapshot(createAccessToken(), Set.of(GraphResource.USER_GROUPS));
+
+        assertEquals(List.of("Sales and Marketing", "Retail"), getDisplayNames(snapshot.getUserGroups()));
+        assertFalse(snapshot.isUserGroupsComplete());
+        assertEquals(1, requests.get());
+
+        List<TransitiveMemberOfGroup> visited = new ArrayList<>();
+        assertFalse(createClient(1).visitTransitiveMemberOfGroups(createAccessToken(), visited::add));
+        assertEquals(List.of("Sales and Marketing"), getDisplayNames(visited));
+    }
+
+    @Test
+    void testFirstPageNotFound() {
+        GraphUserSnapshot snapshot = createClient(100).getSnapshot(createAccessToken(), Set.of(GraphResource.USER_GROUPS));
+
+        assertNull(snapshot.getUserGroups());
+        assertFalse(snapshot.isUserGroupsComplete());
+        assertThrows(IOException.class, () -> createClient(100).visitTransitiveMemberOfGroups(createAccessToken(), group -> {}));
+    }
+
+    @Test
+    void testLaterPageNotFound() {
+        pages.put(GROUPS_PATH, new Page(200, createPage(List.of("Sales and Marketing", "Retail"), graphApiUrl + "/me/transitiveMemberOf/page2")));
+
+        GraphUserSnapshot snapshot = createClient(100).getSnapshot(createAccessToken(), Set.of(GraphResource.USER_GROUPS));
+
+        assertNull(snapshot.getUserGroups());
+        assertFalse(snapshot.isUserGroupsComplete());
+
+        IOException exception = assertThrows(IOException.class, () -> createClient(100).visitTransitiveMemberOfGroups(createAccessToken(), group -> {}));
+        assertTrue(exception.getMessage().startsWith("Page 2 of"), exception.getMessage());
+    }
+
+    @Test
+    void testEmptyListing() {
+        pages.put(GROUPS_PATH, new Page(200, createPage(List.of(), null)));
+
+        GraphUserSnapshot snapshot = createClient(100).getSnapshot(createAccessToken(), Set.of(GraphResource.USER_GROUPS));
+
+        assertEquals(List.of(), snapshot.getUserGroups());
+        assertTrue(snapshot.isUserGroupsComplete());
+    }
+
+    /**
+     * Creates a client using the local Graph API stand-in
+     *
+     * @param maxGroups maximum number of groups read
+     * @return client
+     */
+    private GraphApiClient createClient(int maxGroups) {
+        GraphApiClientSettings settings = new GraphApiClientSettings();
+        settings.setGroupsPageSize(2);
+        settings.setMaxGroups(maxGroups);
+        settings.setRequestTimeout(5000);
+        settings.setRetryBudget(5000);
+
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        GraphApiCircuitBreaker circuitBreaker = new GraphApiCircuitBreaker(settings, httpClient, executor, URI.create(graphApiUrl));
+        return new GraphApiClient(httpClient, executor, settings, new GraphApiThrottle(settings), circuitBreaker, graphApiUrl);
+    }
+
+    /**
+     * Creates an access token
+     *
+     * @return access token
+     */
+    private static AccessTokenResponse createAccessToken() {
+        AccessTokenResponse accessToken = new AccessTokenResponse();
+        accessToken.setToken("token");
+        return accessToken;
+    }
+
+    /**
+     * Creates a groups page
+     *
+     * @param displayNames display names of the groups of the page
+     * @param nextLink next link or null for the last page
+     * @return page JSON
+     */
+    private static String createPage(List<String> displayNames, String nextLink) {
+        List<String> groups = new ArrayList<>();
+        for (int i = 0; i < displayNames.size(); i++) {
+            groups.add(String.format("{\"id\":\"%s\",\"displayName\":\"%s\"}", new UUID(displayNames.get(i).hashCode(), i), displayNames.get(i)));
+        }
+
+        String value = String.format("\"value\":[%s]", String.join(",", groups));
+        return nextLink != null ? String.format("{%s,\"@odata.nextLink\":\"%s\"}", value, nextLink) : String.format("{%s}", value);
+    }
+
+    /**
+     * Returns display names of groups
+     *
+     * @param groups groups
+     * @return display names
+     */
+    private static List<String> getDisplayNames(List<TransitiveMemberOfGroup> groups) {
+        return groups.stream().map(TransitiveMemberOfGroup::getDisplayName).toList();
+    }
+
+    /**
+     * Response of the Graph API stand-in
+     *
+     * @param status status code
+     * @param body response body or null
+     */
+    private record Page(int status, String body) {
+    }
+
+}
@@ -0,0 +1,310 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import fi.metatavu.keycloak.graphapi.client.model.TransitiveMemberOfGroup;
+import fi.metatavu.keycloak.graphapi.model.GraphProfilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GraphApiStreamingDecoderTest {
+
+    private static final String GROUP_1 = "45b7d2e7-b882-4a80-ba97-10b7a63b8fa4";
+    private static final String GROUP_2 = "d7797254-3084-44d0-99c9-a3b5ab149538";
+    private static final String USER_1 = "87d349ed-44d7-43e1-9a83-5f2406dee5bd";
+    private static final String USER_2 = "626cbf8c-5dde-46b0-8385-9e40d64736fe";
+
+    @Test
+    void testGroupsPageSkipsUnknownFields() throws IOException {
+        String json = """
+            {
+              "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#directoryObjects",
+              "@odata.count": 2,
+              "value": [
+                {
+                  "@odata.type": "#microsoft.graph.group",
+                  "id": "%s",
+                  "createdDateTime": "2017-09-15T01:25:28Z",
+                  "groupTypes": ["Unified"],
+                  "onPremisesProvisioningErrors": [{ "category": "PropertyConflict", "value": { "nested": [1, 2] } }],
+                  "displayName": "Sales and Marketing",
+                  "mail": null
+                },
+                { "displayName": "Retail", "id": "%s", "assignedLabels": [] }
+              ],
+              "trailing": { "value": [{ "id": "not a group" }] }
+            }
+            """.formatted(GROUP_1, GROUP_2);
+
+        RecordingPageCallback callback = new RecordingPageCallback(Integer.MAX_VALUE);
+        assertTrue(GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser(json), callback));
+
+        assertEquals(2, callback.groups.size());
+        assertEquals(UUID.fromString(GROUP_1), callback.groups.get(0).getId());
+        assertEquals("Sales and Marketing", callback.groups.get(0).getDisplayName());
+        assertEquals(UUID.fromString(GROUP_2), callback.groups.get(1).getId());
+        assertEquals("Retail", callback.groups.get(1).getDisplayName());
+        assertEquals(List.of(), callback.nextLinks);
+    }
+
+    @Test
+    void testGroupsPageNextLinkBeforeValue() throws IOException {
+        String json = """
+            {
+              "@odata.nextLink": "https://graph.microsoft.com/v1.0/me/transitiveMemberOf?$skiptoken=1",
+              "value": [{ "id": "%s", "displayName": "Retail" }]
+            }
+            """.formatted(GROUP_1);
+
+        RecordingPageCallback callback = new RecordingPageCallback(Integer.MAX_VALUE);
+        GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser(json), callback);
+
+        assertEquals(List.of("next:https://graph.microsoft.com/v1.0/me/transitiveMemberOf?$skiptoken=1", "group:Retail"), callback.events);
+    }
+
+    @Test
+    void testGroupsPageNextLinkAfterValue() throws IOException {
+        String json = """
+            {
+              "value": [{ "id": "%s", "displayName": "Retail" }],
+              "@odata.nextLink": "https://graph.microsoft.com/v1.0/me/transitiveMemberOf?$skiptoken=1"
+            }
+            """.formatted(GROUP_1);
+
+        RecordingPageCallback callback = new RecordingPageCallback(Integer.MAX_VALUE);
+        GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser(json), callback);
+
+        assertEquals(List.of("group:Retail", "next:https://graph.microsoft.com/v1.0/me/transitiveMemberOf?$skiptoken=1"), callback.events);
+    }
+
+    @Test
+    void testGroupsPageEmptyValue() throws IOException {
+        RecordingPageCallback callback = new RecordingPageCallback(Integer.MAX_VALUE);
+        assertTrue(GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser("{ \"value\": [] }"), callback));
+        assertEquals(List.of(), callback.events);
+
+        assertEquals(List.of(), GraphApiStreamingDecoder.decodeTransitiveMemberOfGroups(createParser("{ \"value\": [] }")).getValue());
+        assertEquals(List.of(), GraphApiStreamingDecoder.decodeTransitiveMemberOfGroups(createParser("{}")).getValue());
+    }
+
+    @Test
+    void testGroupsPageCallbackStops() throws IOException {
+        String json = """
+            {
+              "value": [
+                { "id": "%s", "displayName": "Sales and Marketing" },
+                { "id": "%s", "displayName": "Retail" }
+              ],
+              "@odata.nextLink": "https://graph.microsoft.com/v1.0/me/transitiveMemberOf?$skiptoken=1"
+            }
+            """.formatted(GROUP_1, GROUP_2);
+
+        RecordingPageCallback callback = new RecordingPageCallback(1);
+        assertFalse(GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser(json), callback));
+        assertEquals(List.of("group:Sales and Marketing"), callback.events);
+    }
+
+    @Test
+    void testMalformedPayload() {
+        assertThrows(IOException.class, () -> GraphApiStreamingDecoder.decodeTransitiveMemberOfGroupsPage(createParser("[]"), new RecordingPageCallback(Integer.MAX_VALUE)));
+        assertThrows(IOException.class, () -> GraphApiStreamingDecoder.decodeGroupsDeltaPage(createParser("\"value\""), new RecordingDeltaCallback()));
+        assertThrows(IOException.class, () -> GraphApiStreamingDecoder.decodeFirstProfilePosition(createParser("[]")));
+    }
+
+    @Test
+    void testGroupsDeltaPage() throws IOException {
+        String json = """
+            {
+              "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#groups(displayName,members)",
+              "@odata.nextLink": "https://graph.microsoft.com/v1.0/groups/delta?$skiptoken=1",
+              "value": [
+                {
+                  "displayName": "Sales and Marketing",
+                  "description": { "ignored": ["nested"] },
+                  "id": "%1$s",
+                  "members@delta": [
+                    { "@odata.type": "#microsoft.graph.user", "id": "%3$s" },
+                    { "@odata.type": "#microsoft.graph.user", "id": "%4$s", "@removed": { "reason": "deleted" } },
+                    { "@odata.type": "#microsoft.graph.group", "id": "%2$s" },
+                    { "@odata.type": "#microsoft.graph.device", "id": "c5b1e9b5-0a4a-4c4b-9f0e-0c1a3f6c1a0d" },
+                    { "id": "a0f2d7b4-3d6b-4b3e-8f5a-2b0c9e1d7f6a" }
+                  ]
+                },
+                { "id": "%2$s", "@removed": { "reason": "changed" } },
+                { "displayName": "No id" }
+              ]
+            }
+            """.formatted(GROUP_1, GROUP_2, USER_1, USER_2);
+
+        RecordingDeltaCallback callback = new RecordingDeltaCallback();
+        GraphApiStreamingDecoder.decodeGroupsDeltaPage(createParser(json), callback);
+
+        assertEquals(List.of(
+            "next:https://graph.microsoft.com/v1.0/groups/delta?$skiptoken=1",
+            "group:" + GROUP_1 + ":Sales and Marketing:false",
+            "member:" + GROUP_1 + ":" + USER_1 + ":false",
+            "member:" + GROUP_1 + ":" + USER_2 + ":true",
+            "nestedGroup:" + GROUP_1 + ":" + GROUP_2 + ":false",
+            "group:" + GROUP_2 + ":null:true"
+        ), callback.events);
+    }
+
+    @Test
+    void testGroupsDeltaLastPage() throws IOException {
+        String json = """
+            {
+              "value": [
+                {
+                  "id": "%s",
+                  "members@delta": [{ "@odata.type": "#microsoft.graph.group", "id": "%s", "@removed": { "reason": "deleted" } }]
+                }
+              ],
+              "@odata.deltaLink": "https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=1"
+            }
+            """.formatted(GROUP_1, GROUP_2);
+
+        RecordingDeltaCallback callback = new RecordingDeltaCallback();
+        GraphApiStreamingDecoder.decodeGroupsDeltaPage(createParser(json), callback);
+
+        assertEquals(List.of(
+            "group:" + GROUP_1 + ":null:false",
+            "nestedGroup:" + GROUP_1 + ":" + GROUP_2 + ":true",
+            "delta:https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=1"
+        ), callback.events);
+    }
+
+    @Test
+    void testGroupsDeltaEmptyPage() throws IOException {
+        RecordingDeltaCallback callback = new RecordingDeltaCallback();
+        GraphApiStreamingDecoder.decodeGroupsDeltaPage(createParser("{ \"value\": [], \"@odata.deltaLink\": \"https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=2\" }"), callback);
+
+        assertEquals(List.of("delta:https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=2"), callback.events);
+    }
+
+    @Test
+    void testFirstProfilePosition() throws IOException {
+        String json = """
+            {
+              "@odata.context": "https://graph.microsoft.com/beta/$metadata#users('me')/profile/positions",
+              "value": [
+                {
+                  "allowedAudiences": "organization",
+                  "detail": {
+                    "jobTitle": "Marketing Manager",
+                    "company": {
+                      "displayName": "Contoso",
+                      "address": { "city": "Redmond", "countryOrRegion": "US" },
+                      "department": "Sales & Marketing"
+                    }
+                  },
+                  "source": { "type": ["Official"] }
+                },
+                { "detail": { "company": { "displayName": "Fabrikam" } } }
+              ]
+            }
+            """;
+
+        GraphProfilePosition position = GraphApiStreamingDecoder.decodeFirstProfilePosition(createParser(json));
+
+        assertEquals("Contoso", position.getDetail().getCompany().getDisplayName());
+        assertEquals("Sales & Marketing", position.getDetail().getCompany().getDepartment());
+    }
+
+    @Test
+    void testNoProfilePositions() throws IOException {
+        assertNull(GraphApiStreamingDecoder.decodeFirstProfilePosition(createParser("{ \"@odata.context\": \"positions\", \"value\": [] }")));
+        assertNull(GraphApiStreamingDecoder.decodeFirstProfilePosition(createParser("{ \"@odata.context\": \"positions\" }")));
+
+        GraphProfilePosition position = GraphApiStreamingDecoder.decodeFirstProfilePosition(createParser("{ \"value\": [{ \"id\": \"1\" }] }"));
+        assertNull(position.getDetail());
+    }
+
+    /**
+     * Creates a JSON parser for a payload
+     *
+     * @param json payload
+     * @return JSON parser
+     * @throws IOException when the parser cannot be created
+     */
+    private static JsonParser createParser(String json) throws IOException {
+        return GraphApiJson.factory().createParser(json);
+    }
+
+    /**
+     * Page callback recording received groups and links
+     */
+    private static class RecordingPageCallback implements GraphApiStreamingDecoder.GroupPageCallback {
+
+        private final int maxGroups;
+        private final List<TransitiveMemberOfGroup> groups = new ArrayList<>();
+        private final List<String> nextLinks = new ArrayList<>();
+        private final List<String> events = new ArrayList<>();
+
+        /**
+         * Constructor
+         *
+         * @param maxGroups number of groups after which decoding is stopped
+         */
+        private RecordingPageCallback(int maxGroups) {
+            this.maxGroups = maxGroups;
+        }
+
+        @Override
+        public void nextLink(String nextLink) {
+            nextLinks.add(nextLink);
+            events.add("next:" + nextLink);
+        }
+
+        @Override
+        public boolean group(TransitiveMemberOfGroup group) {
+            groups.add(group);
+            events.add("group:" + group.getDisplayName());
+            return groups.size() < maxGroups;
+        }
+
+    }
+
+    /**
+     * Delta page callback recording received changes and links
+     */
+    private static class RecordingDeltaCallback implements GraphApiStreamingDecoder.GroupDeltaPageCallback {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void nextLink(String nextLink) {
+            events.add("next:" + nextLink);
+        }
+
+        @Override
+        public void deltaLink(String deltaLink) {
+            events.add("delta:" + deltaLink);
+        }
+
+        @Override
+        public void group(String groupId, String displayName, boolean removed) {
+            events.add(String.format("group:%s:%s:%s", groupId, displayName, removed));
+        }
+
+        @Override
+        public void member(String groupId, String userId, boolean removed) {
+            events.add(String.format("member:%s:%s:%s", groupId, userId, removed));
+        }
+
+        @Override
+        public void nestedGroup(String groupId, String memberGroupId, boolean removed) {
+            events.add(String.format("nestedGroup:%s:%s:%s", groupId, memberGroupId, removed));
+        }
+
+    }
+
+}
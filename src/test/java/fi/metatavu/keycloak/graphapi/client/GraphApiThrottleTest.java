@@ -0,0 +1,159 @@
+package fi.metatavu.keycloak.graphapi.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GraphApiThrottleTest {
+
+    private static final String TENANT = "tenant";
+    private static final long NO_DEADLINE = Long.MAX_VALUE / 2;
+
+    @Test
+    void testRetryAfterSeconds() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 3);
+
+        long delay = throttle.onThrottled(TENANT, Optional.of(" 2 "), 0, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertBetween(TimeUnit.SECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(2200), delay);
+    }
+
+    @Test
+    void testRetryAfterHttpDate() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 3);
+        String retryAt = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+
+        long delay = throttle.onThrottled(TENANT, Optional.of(retryAt), 0, NO_DEADLINE);
+        assertBetween(TimeUnit.SECONDS.toNanos(28), TimeUnit.SECONDS.toNanos(34), delay);
+    }
+
+    @Test
+    void testRetryAfterPastHttpDate() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 3);
+        String retryAt = ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(1).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+
+        assertEquals(0, throttle.onThrottled(TENANT, Optional.of(retryAt), 0, NO_DEADLINE));
+    }
+
+    @Test
+    void testBackoffWithoutRetryAfter() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 10);
+
+        for (int i = 0; i < 100; i++) {
+            assertBetween(0, TimeUnit.MILLISECONDS.toNanos(500), throttle.onThrottled(TENANT, Optional.empty(), 0, NO_DEADLINE));
+            assertBetween(0, TimeUnit.MILLISECONDS.toNanos(2000), throttle.onThrottled(TENANT, Optional.empty(), 2, NO_DEADLINE));
+            assertBetween(0, TimeUnit.MILLISECONDS.toNanos(10000), throttle.onThrottled(TENANT, Optional.of("invalid"), 9, NO_DEADLINE));
+        }
+    }
+
+    @Test
+    void testRetriesExhausted() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 2);
+
+        assertTrue(throttle.onThrottled(TENANT, Optional.of("0"), 1, NO_DEADLINE) >= 0);
+        assertEquals(-1, throttle.onThrottled(TENANT, Optional.of("0"), 2, NO_DEADLINE));
+        assertEquals(-1, throttle.onThrottled(TENANT, Optional.of("5"), 0, System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+
+        GraphApiThrottleStatistics statistics = throttle.getStatistics();
+        assertEquals(3, statistics.throttledResponses());
+        assertEquals(1, statistics.retries());
+        assertEquals(2, statistics.exhaustedRequests());
+    }
+
+    @Test
+    void testRetryAfterPausesTenant() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 3);
+
+        throttle.onThrottled(TENANT, Optional.of("5"), 0, NO_DEADLINE);
+        assertBetween(TimeUnit.SECONDS.toNanos(4), TimeUnit.SECONDS.toNanos(5), throttle.reserve(TENANT));
+        assertEquals(0, throttle.reserve("other"));
+    }
+
+    @Test
+    void testTokenBucket() {
+        GraphApiThrottle throttle = createThrottle(10, 2, 3);
+
+        assertEquals(0, throttle.reserve(TENANT));
+        assertEquals(0, throttle.reserve(TENANT));
+        assertBetween(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100), throttle.reserve(TENANT));
+        assertBetween(TimeUnit.MILLISECONDS.toNanos(150), TimeUnit.MILLISECONDS.toNanos(200), throttle.reserve(TENANT));
+        assertEquals(0, throttle.reserve("other"));
+        assertEquals(2, throttle.getStatistics().delayedRequests());
+    }
+
+    @Test
+    void testTokenBucketRelease() {
+        GraphApiThrottle throttle = createThrottle(1, 1, 3);
+
+        assertEquals(0, throttle.reserve(TENANT));
+        throttle.release(TENANT);
+        assertEquals(0, throttle.reserve(TENANT));
+        assertTrue(throttle.reserve(TENANT) > 0);
+    }
+
+    @Test
+    void testNoRateLimit() {
+        GraphApiThrottle throttle = createThrottle(0, 1, 3);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, throttle.reserve(TENANT));
+        }
+    }
+
+    @Test
+    void testGetTenantId() {
+        assertEquals("b9f1bc5a-2f6b-4c3a-9d0e-1c1f3c2c5e7a", GraphApiThrottle.getTenantId(createToken("{\"aud\":[\"graph\"],\"tid\":\"b9f1bc5a-2f6b-4c3a-9d0e-1c1f3c2c5e7a\"}")));
+        assertEquals(GraphApiThrottle.DEFAULT_TENANT, GraphApiThrottle.getTenantId(createToken("{\"sub\":\"user\"}")));
+        assertEquals(GraphApiThrottle.DEFAULT_TENANT, GraphApiThrottle.getTenantId("opaque-token"));
+        assertEquals(GraphApiThrottle.DEFAULT_TENANT, GraphApiThrottle.getTenantId("header.%%%.signature"));
+        assertEquals(GraphApiThrottle.DEFAULT_TENANT, GraphApiThrottle.getTenantId(null));
+    }
+
+    /**
+     * Creates a throttle
+     *
+     * @param rateLimit requests per second or 0 for no rate limit
+     * @param burst rate limit burst
+     * @param maxRetries maximum number of retries
+     * @return throttle
+     */
+    private static GraphApiThrottle createThrottle(int rateLimit, int burst, int maxRetries) {
+        GraphApiClientSettings settings = new GraphApiClientSettings();
+        settings.setRateLimit(rateLimit);
+        settings.setRateLimitBurst(burst);
+        settings.setMaxRetries(maxRetries);
+        settings.setRetryBudget(60000);
+        return new GraphApiThrottle(settings);
+    }
+
+    /**
+     * Creates an unsigned JWT with given payload
+     *
+     * @param payload payload JSON
+     * @return token
+     */
+    private static String createToken(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "." + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    /**
+     * Asserts that a value is within a range
+     *
+     * @param min minimum value
+     * @param max maximum value
+     * @param actual actual value
+     */
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual >= min && actual <= max, String.format("expected %d to be between %d and %d", actual, min, max));
+    }
+
+}